@@ -1,20 +1,80 @@
 package com.sais.utils.cassandra;
 
-import com.datastax.driver.core.Cluster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.Cluster.Builder;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class Keyspace {
 
+	/** The default maximum number of rows per query of a table scan */
+	public static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+
+	/** The maximum time in milliseconds between retries of a write */
+	private static final long MAX_RETRY_DELAY = 30000;
+
 	private String name;
-	private Cluster cluster;
 	private Session session;
+	private StatementCache statementCache;
+
+	/** The reusable mutators of the writing threads */
+	private final ThreadLocal<Mutator> threadMutators = new ThreadLocal<Mutator>();
+
+	/** The permits of the asynchronous writes, or {@code null} if unlimited */
+	private volatile Semaphore pendingWrites;
+	private int maxPendingWrites;
+
+	/** The retries of the failed idempotent asynchronous writes */
+	private volatile int maxRetries;
+	private volatile long retryDelayMillis;
+	private ScheduledExecutorService retryScheduler;
+
+	/** The results of the writes waiting for a retry, failed on shutdown */
+	private final Set<SettableFuture<Void>> pendingRetries =
+	    Collections.newSetFromMap(new ConcurrentHashMap<SettableFuture<Void>, Boolean>());
+
+	/* Metrics */
+	private final AtomicLong retriedWrites = new AtomicLong();
+	private final AtomicLong failedWrites = new AtomicLong();
 
 	public Keyspace(String hosts, String name) {
-		Builder builder = Cluster.builder();
-		builder.addContactPoints(hosts.split(","));
-		this.cluster = builder.build();
-		this.session = cluster.connect(name);
+		this.name = name;
+		this.session = SessionRegistry.acquire(hosts, name);
+		this.statementCache = SessionRegistry.getStatementCache(session);
+	}
+
+	/**
+	 * Constructor of a keyspace without a session, which can only render
+	 * mutators, for tests.
+	 * 
+	 * @param name the keyspace's name
+	 */
+	Keyspace(String name) {
+		this.name = name;
 	}
 
 	public String getName() {
@@ -25,24 +85,389 @@ public class Keyspace {
 		return session;
 	}
 
+	/**
+	 * Returns the cache of the prepared statements used by this keyspace.
+	 * 
+	 * @return the {@link StatementCache}
+	 */
+	public StatementCache getStatementCache() {
+		return statementCache;
+	}
+
 	public Mutator getMutator(ConsistencyLevel consistencyLevel,
 	                          Integer ttlSeconds,
 	                          NullPolicy nullPolicy) {
 		return new Mutator(this, ttlSeconds, consistencyLevel, nullPolicy);
 	}
 
+	public Mutator getMutator(ConsistencyLevel consistencyLevel,
+	                          Integer ttlSeconds,
+	                          NullPolicy nullPolicy,
+	                          boolean atomic) {
+		return new Mutator(this, ttlSeconds, consistencyLevel, nullPolicy, atomic);
+	}
+
+	/**
+	 * Returns the mutator of the calling thread, reset with the specified
+	 * defaults, so hot write loops reuse its storage instead of allocating a
+	 * new mutator per batch.
+	 * 
+	 * The returned mutator is reset again by the next call from the same
+	 * thread, so it must not be kept after being executed. An asynchronous
+	 * execution binds its statements before returning, so the mutator can be
+	 * reused right after {@link Mutator#executeAsync()} returns.
+	 * 
+	 * @param consistencyLevel the default {@link ConsistencyLevel}
+	 * @param ttlSeconds the default TTL in seconds, or {@code null}
+	 * @param nullPolicy the {@link NullPolicy}
+	 * @return the reset {@link Mutator} of the calling thread
+	 */
+	public Mutator getThreadMutator(ConsistencyLevel consistencyLevel, Integer ttlSeconds, NullPolicy nullPolicy) {
+		Mutator mutator = threadMutators.get();
+		if (mutator == null) {
+			mutator = new Mutator(this, ttlSeconds, consistencyLevel, nullPolicy);
+			threadMutators.set(mutator);
+			return mutator;
+		}
+		return mutator.reset(ttlSeconds, consistencyLevel, nullPolicy);
+	}
+
+	/**
+	 * Executes the specified mutator, as a single logged batch if it is
+	 * atomic, or as parallel partition batches otherwise, waiting for all of
+	 * them.
+	 * 
+	 * @param mutator the {@link Mutator}
+	 */
 	void execute(Mutator mutator) {
-		String statement = mutator.getBatchStatement();
-		session.execute(statement);
+		if (mutator.getStatements().isEmpty()) return;
+		if (mutator.isAtomic()) {
+			session.execute(bind(mutator));
+			return;
+		}
+		List<BoundStatement> statements = bindPartitions(mutator);
+		if (statements.size() == 1) {
+			session.execute(statements.get(0));
+			return;
+		}
+		List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>(statements.size());
+		for (BoundStatement statement : statements) {
+			futures.add(session.executeAsync(statement));
+		}
+		RuntimeException error = null;
+		for (ResultSetFuture future : futures) {
+			try {
+				future.getUninterruptibly();
+			} catch (RuntimeException e) {
+				if (error == null) error = e;
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	/**
+	 * Executes the specified mutator asynchronously, as a single logged batch
+	 * if it is atomic, or as parallel partition batches otherwise.
+	 * 
+	 * Each batch waits for a permit if the number of pending writes is
+	 * limited, and it is retried with an exponential backoff if it fails
+	 * with a timeout or unavailable error and the mutator is idempotent.
+	 * 
+	 * @param mutator the {@link Mutator}
+	 * @return a {@link ListenableFuture} done when all the batches are
+	 *         written, or failed with the error of the first failed one
+	 */
+	ListenableFuture<Void> executeAsync(Mutator mutator) {
+		if (mutator.getStatements().isEmpty()) return Futures.immediateFuture(null);
+		List<BoundStatement> statements;
+		if (mutator.isAtomic()) {
+			statements = new ArrayList<BoundStatement>(1);
+			statements.add(bind(mutator));
+		} else {
+			statements = bindPartitions(mutator);
+		}
+		int retries = mutator.isIdempotent() ? maxRetries : 0;
+		if (statements.size() == 1) return write(statements.get(0), retries);
+		List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>(statements.size());
+		for (BoundStatement statement : statements) {
+			futures.add(write(statement, retries));
+		}
+		return Futures.transform(Futures.allAsList(futures), new Function<List<Void>, Void>() {
+			@Override
+			public Void apply(List<Void> results) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes the specified statement asynchronously, holding a permit until
+	 * it is written or it fails after the specified retries.
+	 */
+	private ListenableFuture<Void> write(BoundStatement statement, int retries) {
+		final Semaphore permits = pendingWrites;
+		if (permits != null) permits.acquireUninterruptibly();
+		SettableFuture<Void> result = SettableFuture.create();
+		Futures.addCallback(result, new FutureCallback<Void>() {
+			@Override
+			public void onSuccess(Void value) {
+				if (permits != null) permits.release();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				failedWrites.incrementAndGet();
+				if (permits != null) permits.release();
+			}
+		});
+		attempt(statement, 0, retries, result);
+		return result;
+	}
+
+	/**
+	 * Executes an attempt of the specified statement, scheduling the next one
+	 * if it fails with a retryable error and there are retries left.
+	 */
+	private void attempt(final BoundStatement statement,
+	                     final int attempt,
+	                     final int retries,
+	                     final SettableFuture<Void> result) {
+		ResultSetFuture future;
+		try {
+			future = session.executeAsync(statement);
+		} catch (RuntimeException e) {
+			result.setException(e);
+			return;
+		}
+		Futures.addCallback(future, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet resultSet) {
+				result.set(null);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				ScheduledExecutorService scheduler = retryScheduler;
+				if (attempt >= retries || scheduler == null || !isRetryable(t)) {
+					result.setException(t);
+					return;
+				}
+				long delay = Math.min(retryDelayMillis << attempt, MAX_RETRY_DELAY);
+				pendingRetries.add(result);
+				try {
+					scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							if (!pendingRetries.remove(result)) return;
+							retriedWrites.incrementAndGet();
+							attempt(statement, attempt + 1, retries, result);
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+				} catch (RuntimeException e) {
+					// The keyspace is shut down
+					pendingRetries.remove(result);
+					result.setException(t);
+				}
+			}
+		});
+	}
+
+	private static boolean isRetryable(Throwable t) {
+		return t instanceof WriteTimeoutException
+		       || t instanceof UnavailableException
+		       || t instanceof NoHostAvailableException;
+	}
+
+	/**
+	 * Limits the number of pending asynchronous writes of this keyspace,
+	 * shared by all its mutators.
+	 * 
+	 * Once the limit is reached, {@link Mutator#executeAsync()} blocks until a
+	 * pending write completes, so callers slow down with the database instead
+	 * of piling up requests. Every partition batch of a mutator is a write.
+	 * 
+	 * @param maxPendingWrites the maximum number of pending asynchronous
+	 *            writes
+	 */
+	public synchronized void limitPendingWrites(int maxPendingWrites) {
+		if (maxPendingWrites <= 0) {
+			throw new IllegalArgumentException("The maximum number of pending writes must be greater than zero");
+		}
+		if (pendingWrites != null) {
+			throw new IllegalStateException("Pending writes are already limited");
+		}
+		this.maxPendingWrites = maxPendingWrites;
+		pendingWrites = new Semaphore(maxPendingWrites);
+	}
+
+	/**
+	 * Returns the number of pending asynchronous writes.
+	 * 
+	 * @return the number of pending asynchronous writes, or zero if they are
+	 *         not limited
+	 */
+	public int getPendingWrites() {
+		Semaphore permits = pendingWrites;
+		return permits == null ? 0 : maxPendingWrites - permits.availablePermits();
+	}
+
+	/**
+	 * Enables the retries of the asynchronous writes of idempotent mutators,
+	 * that is, without counter mutations, when they fail with a timeout or
+	 * unavailable error. The delay doubles after every attempt.
+	 * 
+	 * @param maxRetries the maximum number of retries of a write, or zero to
+	 *            disable them
+	 * @param retryDelayMillis the delay in milliseconds before the first
+	 *            retry
+	 */
+	public synchronized void setRetries(int maxRetries, long retryDelayMillis) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("The maximum number of retries can't be negative");
+		}
+		if (retryDelayMillis < 0) {
+			throw new IllegalArgumentException("The retry delay can't be negative");
+		}
+		if (maxRetries > 0 && retryScheduler == null) {
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "keyspace-retry-" + name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.retryDelayMillis = retryDelayMillis;
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Returns the total number of retried asynchronous writes.
+	 * 
+	 * @return the total number of retries
+	 */
+	public long getRetriedWrites() {
+		return retriedWrites.get();
+	}
+
+	/**
+	 * Returns the total number of asynchronous writes failed after their
+	 * retries, if any.
+	 * 
+	 * @return the total number of failed writes
+	 */
+	public long getFailedWrites() {
+		return failedWrites.get();
+	}
+
+	/**
+	 * Returns the sorted regular columns of the specified table, that is, the
+	 * columns of its rows besides its key.
+	 * 
+	 * @param table the table's name
+	 * @return the sorted names of the regular columns, or {@code null} if the
+	 *         table is unknown or its rows are not identified by its partition
+	 *         key alone
+	 */
+	String[] getRegularColumns(String table) {
+		if (session == null) return null;
+		KeyspaceMetadata metadata = session.getCluster().getMetadata().getKeyspace(name);
+		TableMetadata tableMetadata = metadata == null ? null : metadata.getTable(table);
+		if (tableMetadata == null || !tableMetadata.getClusteringKey().isEmpty()) return null;
+		List<String> columns = new ArrayList<String>();
+		for (ColumnMetadata column : tableMetadata.getColumns()) {
+			columns.add(column.getName());
+		}
+		for (ColumnMetadata column : tableMetadata.getPartitionKey()) {
+			columns.remove(column.getName());
+		}
+		String[] sorted = columns.toArray(new String[columns.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private BoundStatement bind(Mutator mutator) {
+		Mutator.Batch batch = mutator.getAtomicBatch();
+		BoundStatement statement = statementCache.bind(batch.getQuery(), batch.getValues());
+		statement.setConsistencyLevel(ConsistencyLevel.toCQLDriverCL(mutator.getConsistencyLevel()));
+		return statement;
+	}
+
+	private List<BoundStatement> bindPartitions(Mutator mutator) {
+		com.datastax.driver.core.ConsistencyLevel cl = ConsistencyLevel.toCQLDriverCL(mutator.getConsistencyLevel());
+		List<Mutator.Batch> batches = mutator.getPartitionBatches();
+		List<BoundStatement> statements = new ArrayList<BoundStatement>(batches.size());
+		for (Mutator.Batch batch : batches) {
+			BoundStatement statement = statementCache.bind(batch.getQuery(), batch.getValues());
+			statement.setConsistencyLevel(cl);
+			statements.add(statement);
+		}
+		return statements;
+	}
+
+	/**
+	 * Reads all the rows of the specified table, splitting the token ring into
+	 * the specified number of ranges read in parallel.
+	 * 
+	 * @param table the table's name
+	 * @param columns the names of the columns to be read
+	 * @param ranges the number of token ranges, usually a few times the
+	 *            parallelism
+	 * @param parallelism the number of ranges read in parallel
+	 * @param handler the {@link RowHandler}, called from the calling thread
+	 * @return the {@link ScanProgress}, done unless an error is thrown
+	 * @throws InterruptedException if the calling thread is interrupted
+	 * @see #scan(String, String[], ScanProgress, int, RowHandler)
+	 */
+	public ScanProgress scan(String table, String[] columns, int ranges, int parallelism, RowHandler handler) throws InterruptedException {
+		ScanProgress progress = ScanProgress.split(ranges);
+		scan(table, columns, progress, parallelism, handler);
+		return progress;
 	}
 
-	void executeAsync(Mutator mutator) {
-		String statement = mutator.getBatchStatement();
-		session.executeAsync(statement);
+	/**
+	 * Reads the rows of the specified table not read yet according to the
+	 * specified progress, which is updated as the rows are handled, so a
+	 * failed or interrupted scan can be resumed.
+	 * 
+	 * Each range is read by a pool thread in pages of
+	 * {@link #DEFAULT_SCAN_PAGE_SIZE} rows, up to twice the parallelism pages
+	 * are buffered, and the rows are handled by the calling thread. Requires
+	 * the Murmur3 partitioner.
+	 * 
+	 * @param table the table's name
+	 * @param columns the names of the columns to be read
+	 * @param progress the {@link ScanProgress} to be resumed
+	 * @param parallelism the number of ranges read in parallel
+	 * @param handler the {@link RowHandler}, called from the calling thread
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void scan(String table, String[] columns, ScanProgress progress, int parallelism, RowHandler handler) throws InterruptedException {
+		if (progress == null) {
+			throw new IllegalArgumentException("A not null scan progress is required");
+		}
+		if (handler == null) {
+			throw new IllegalArgumentException("A not null row handler is required");
+		}
+		TableScan scan = new TableScan(this, table, columns, DEFAULT_SCAN_PAGE_SIZE, ConsistencyLevel.ONE);
+		scan.scan(progress, parallelism, 2 * parallelism, handler);
 	}
 
+	/**
+	 * Shuts down this keyspace, failing the writes waiting for a retry, so
+	 * their callers don't wait forever and their permits are released.
+	 */
 	public void shutdown() {
-		session.shutdown();
+		synchronized (this) {
+			if (retryScheduler != null) retryScheduler.shutdownNow();
+		}
+		for (SettableFuture<Void> result : pendingRetries) {
+			if (pendingRetries.remove(result)) {
+				result.setException(new IllegalStateException("The keyspace " + name + " was shut down"));
+			}
+		}
+		SessionRegistry.release(session);
 	}
 
 }
@@ -1,23 +1,90 @@
 package com.sais.utils.cassandra;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
-import com.datastax.driver.core.querybuilder.Assignment;
-import com.datastax.driver.core.querybuilder.Clause;
-import com.datastax.driver.core.querybuilder.Delete;
-import com.datastax.driver.core.querybuilder.QueryBuilder;
-import com.datastax.driver.core.querybuilder.Update;
+import com.google.common.util.concurrent.ListenableFuture;
 
+/**
+ * Class accumulating mutations to be written as a single batch.
+ * 
+ * Mutations are rendered as CQL statements using bind markers, and their
+ * values are kept apart as binding parameters, so the batch is prepared once
+ * per shape by the {@link Keyspace}'s {@link StatementCache}.
+ * 
+ * Pending mutations are coalesced by table and key: all the columns of a row
+ * written with the same TTL become a single {@code UPDATE}, its deleted
+ * columns a single {@code DELETE}, and the counter deltas of each cell are
+ * summed into a single {@code UPDATE} of all its counters. A later mutation
+ * of a column supersedes the earlier ones, and a row delete supersedes all
+ * the earlier mutations of the row.
+ * 
+ * All the statements of a batch share its timestamp, and a tombstone wins
+ * over a write with the same timestamp, so a row delete followed by writes
+ * of the same row is rendered as a delete of the table's regular columns not
+ * written, read from the cluster's metadata. This requires the rows of the
+ * table to be identified by its partition key alone, otherwise rendering the
+ * mutator fails with an {@link IllegalStateException}.
+ * 
+ * To keep the number of prepared shapes low, the columns of every statement
+ * are sorted by name, whatever the order of the mutations, and the
+ * statements of an atomic batch are sorted too, so batches of similar rows
+ * share their shapes. TTLs are rendered as literals, since Cassandra 1.2
+ * doesn't accept bind markers for them.
+ * 
+ * Unless the mutator is atomic, it is executed as one unlogged batch per
+ * partition, split if it has more than {@link #getMaxBatchSize()} statements,
+ * and all of them are sent in parallel. Atomic mutators are executed as a
+ * single logged batch, as returned by {@link #getBatchStatement()}.
+ * 
+ * The pending mutations are kept in arrays indexed by an open addressing
+ * table of rows, and a mutator can be {@link #reset()} to be reused without
+ * allocating them again, as the per thread mutators of
+ * {@link Keyspace#getThreadMutator(ConsistencyLevel, Integer, NullPolicy)}.
+ * The lists returned by {@link #getStatements()} and {@link #getValues()}
+ * are reused too, so they are only valid until the next mutation.
+ */
 public class Mutator {
 
+	/** The default maximum number of statements per partition batch */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
 	private Keyspace keyspace;
 	private String keyspaceName;
 	private ConsistencyLevel defaultCL;
 	private Integer defaultTTL;
 	private NullPolicy defaultNullTreatmentPolicy;
+	private ConsistencyLevel consistencyLevel;
+	private boolean atomic;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	/**
+	 * The pending mutations by row, in order of their first mutation. The
+	 * ones after {@link #rowCount} are cleared, to be reused.
+	 */
+	private final List<RowMutations> rows = new ArrayList<RowMutations>();
+	private int rowCount;
+
+	/** The open addressing table of the rows, holding their index plus one */
+	private int[] rowTable = new int[16];
+
+	private int counterMutations;
+	private int otherMutations;
 
-	private final List<String> statements = new LinkedList<String>();
+	/** If the rendered statements and values are up to date */
+	private boolean rendered;
+	private final List<String> statements = new ArrayList<String>();
+	private final List<Object> values = new ArrayList<Object>();
+	private final StringBuilder builder = new StringBuilder();
+	private String batchStatement;
+
+	/** The index of the first value of each statement, plus the values size */
+	private int[] valueStarts = new int[16];
+
+	/** The index of the first statement of each row, plus the statements size */
+	private int[] rowStarts = new int[16];
 
 	/**
 	 * 
@@ -25,20 +92,68 @@ public class Mutator {
 	 * @param defaultTTL
 	 * @param defaultConsistencyLevel
 	 * @param defaultNullTreatmentPolicy
-	 * @param synchronous
-	 * @param atomic
 	 */
 	public Mutator(Keyspace keyspace,
 	               Integer defaultTTL,
 	               ConsistencyLevel defaultConsistencyLevel,
 	               NullPolicy defaultNullTreatmentPolicy) {
+		this(keyspace, defaultTTL, defaultConsistencyLevel, defaultNullTreatmentPolicy, false);
+	}
+
+	/**
+	 * 
+	 * @param keyspace
+	 * @param defaultTTL
+	 * @param defaultConsistencyLevel
+	 * @param defaultNullTreatmentPolicy
+	 * @param atomic if the mutations must be written as a single logged batch
+	 */
+	public Mutator(Keyspace keyspace,
+	               Integer defaultTTL,
+	               ConsistencyLevel defaultConsistencyLevel,
+	               NullPolicy defaultNullTreatmentPolicy,
+	               boolean atomic) {
+		this.atomic = atomic;
 		this.keyspace = keyspace;
 		this.keyspaceName = keyspace.getName();
 		this.defaultTTL = defaultTTL;
 		this.defaultCL = defaultConsistencyLevel;
+		this.consistencyLevel = defaultConsistencyLevel;
 		this.defaultNullTreatmentPolicy = defaultNullTreatmentPolicy;
 	}
 
+	/**
+	 * Discards the pending mutations, keeping their storage to be reused, and
+	 * restores the default consistency level.
+	 * 
+	 * @return this
+	 */
+	public Mutator reset() {
+		for (int i = 0; i < rowCount; i++) {
+			rows.get(i).clear();
+		}
+		rowCount = 0;
+		Arrays.fill(rowTable, 0);
+		counterMutations = 0;
+		otherMutations = 0;
+		consistencyLevel = defaultCL;
+		invalidate();
+		return this;
+	}
+
+	/**
+	 * Discards the pending mutations and replaces the defaults and options of
+	 * this, as a new mutator.
+	 */
+	Mutator reset(Integer defaultTTL, ConsistencyLevel defaultConsistencyLevel, NullPolicy defaultNullTreatmentPolicy) {
+		this.defaultTTL = defaultTTL;
+		this.defaultCL = defaultConsistencyLevel;
+		this.defaultNullTreatmentPolicy = defaultNullTreatmentPolicy;
+		this.atomic = false;
+		this.maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+		return reset();
+	}
+
 	/**
 	 * 
 	 * @return
@@ -71,6 +186,62 @@ public class Mutator {
 		return defaultNullTreatmentPolicy;
 	}
 
+	/**
+	 * Returns if the mutations are written as a single logged batch, instead
+	 * of as parallel unlogged batches per partition.
+	 * 
+	 * @return {@code true} if this is atomic, {@code false} otherwise
+	 */
+	public boolean isAtomic() {
+		return atomic;
+	}
+
+	/**
+	 * Sets if the mutations must be written as a single logged batch, instead
+	 * of as parallel unlogged batches per partition.
+	 * 
+	 * @param atomic if this must be atomic
+	 * @return this
+	 */
+	public Mutator setAtomic(boolean atomic) {
+		this.atomic = atomic;
+		return this;
+	}
+
+	/**
+	 * Returns if the mutations can be safely retried, that is, if there are
+	 * no counter mutations.
+	 * 
+	 * @return {@code true} if this is idempotent, {@code false} otherwise
+	 */
+	public boolean isIdempotent() {
+		return counterMutations == 0;
+	}
+
+	/**
+	 * Returns the maximum number of statements per partition batch.
+	 * 
+	 * @return the maximum number of statements per partition batch
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of statements per partition batch, splitting the
+	 * partitions with more statements.
+	 * 
+	 * @param maxBatchSize the maximum number of statements per batch
+	 * @return this
+	 */
+	public Mutator setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("The maximum batch size must be greater than zero");
+		}
+		this.maxBatchSize = maxBatchSize;
+		return this;
+	}
+
 	/**
 	 * 
 	 * @param tableName
@@ -133,16 +304,12 @@ public class Mutator {
 				throw new RuntimeException("Null treatment policy misunderstanded");
 			}
 		} else {
-			Update update = QueryBuilder.update(keyspaceName, tableName);
-			update.setConsistencyLevel(cl == null ? defaultCL.toCQLDriverCL() : cl.toCQLDriverCL());
-			if (columnTTL != null) {
-				update.using(QueryBuilder.ttl(columnTTL));
-			} else if (defaultTTL != null) {
-				update.using(QueryBuilder.ttl(defaultTTL));
-			}
-			update.where(QueryBuilder.eq(keyName, keyValue));
-			update.with(QueryBuilder.set(columnName, columnValue));
-			statements.add(update.getQueryString());
+			Integer ttl = columnTTL != null ? columnTTL : defaultTTL;
+			RowMutations row = getRow(tableName, keyName, keyValue, cl, false);
+			int i = row.getColumn(columnName);
+			row.kinds[i] = RowMutations.WRITE;
+			row.values[i] = columnValue;
+			row.ttls[i] = ttl;
 		}
 		return this;
 	}
@@ -173,12 +340,11 @@ public class Mutator {
 	                            Object keyValue,
 	                            String columnName,
 	                            ConsistencyLevel cl) {
-		String[] columns = new String[] { columnName };
-		Delete delete = QueryBuilder.delete(columns).from(tableName);
-		delete.setConsistencyLevel(cl == null ? defaultCL.toCQLDriverCL() : cl.toCQLDriverCL());
-		Clause clause = QueryBuilder.eq(keyName, keyValue);
-		delete.where(clause);
-		statements.add(delete.getQueryString());
+		RowMutations row = getRow(tableName, keyName, keyValue, cl, false);
+		int i = row.getColumn(columnName);
+		row.kinds[i] = RowMutations.DELETE;
+		row.values[i] = null;
+		row.ttls[i] = null;
 		return this;
 	}
 
@@ -202,11 +368,9 @@ public class Mutator {
 	 * @return
 	 */
 	public Mutator deleteRow(String tableName, String keyName, Object keyValue, ConsistencyLevel cl) {
-		Delete delete = QueryBuilder.delete().from(tableName);
-		delete.setConsistencyLevel(cl == null ? defaultCL.toCQLDriverCL() : cl.toCQLDriverCL());
-		Clause clause = QueryBuilder.eq(keyName, keyValue);
-		delete.where(clause);
-		statements.add(delete.getQueryString());
+		RowMutations row = getRow(tableName, keyName, keyValue, cl, false);
+		row.clearColumns();
+		row.deleted = true;
 		return this;
 	}
 
@@ -243,13 +407,7 @@ public class Mutator {
 	                                      String counterName,
 	                                      Long counterValue,
 	                                      ConsistencyLevel cl) {
-		Update update = QueryBuilder.update(keyspaceName, tableName);
-		update.setConsistencyLevel(cl == null ? defaultCL.toCQLDriverCL() : cl.toCQLDriverCL());
-		Clause clause = QueryBuilder.eq(keyName, keyValue);
-		update.where(clause);
-		update.with(QueryBuilder.incr(counterName, counterValue));
-		statements.add(update.getQueryString());
-		return this;
+		return updateCounterColumn(tableName, keyName, keyValue, counterName, counterValue, cl);
 	}
 
 	/**
@@ -285,39 +443,314 @@ public class Mutator {
 	                                      String counterName,
 	                                      Long counterValue,
 	                                      ConsistencyLevel cl) {
-		Update update = QueryBuilder.update(keyspaceName, tableName);
-		update.setConsistencyLevel(cl == null ? defaultCL.toCQLDriverCL() : cl.toCQLDriverCL());
-		Clause clause = QueryBuilder.eq(keyName, keyValue);
-		update.where(clause);
-		update.with(QueryBuilder.decr(counterName, counterValue));
-		statements.add(update.getQueryString());
+		return updateCounterColumn(tableName, keyName, keyValue, counterName, -counterValue, cl);
+	}
+
+	private Mutator updateCounterColumn(String tableName,
+	                                    String keyName,
+	                                    Object keyValue,
+	                                    String counterName,
+	                                    long delta,
+	                                    ConsistencyLevel cl) {
+		RowMutations row = getRow(tableName, keyName, keyValue, cl, true);
+		int i = row.getColumn(counterName);
+		if (row.kinds[i] != RowMutations.COUNTER) {
+			row.kinds[i] = RowMutations.COUNTER;
+			row.deltas[i] = 0;
+		}
+		row.deltas[i] += delta;
 		return this;
 	}
 
+	private void appendTable(StringBuilder builder, String tableName) {
+		if (keyspaceName != null) builder.append(keyspaceName).append('.');
+		builder.append(tableName);
+	}
+
 	/**
+	 * Returns the pending mutations of the specified row, registering a new
+	 * mutation of it.
+	 */
+	private RowMutations getRow(String tableName, String keyName, Object keyValue, ConsistencyLevel cl, boolean counter) {
+		if (counter ? otherMutations > 0 : counterMutations > 0) {
+			throw new IllegalStateException("Counter and non counter mutations can't be mixed in the same batch");
+		}
+		if (counter) {
+			counterMutations++;
+		} else {
+			otherMutations++;
+		}
+		if (cl != null) consistencyLevel = cl;
+		invalidate();
+		int hash = hash(tableName, keyName, keyValue);
+		int mask = rowTable.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int index = rowTable[slot] - 1;
+			if (index < 0) break;
+			RowMutations row = rows.get(index);
+			if (row.matches(hash, tableName, keyName, keyValue)) return row;
+		}
+		RowMutations row;
+		if (rowCount < rows.size()) {
+			row = rows.get(rowCount);
+		} else {
+			row = new RowMutations();
+			rows.add(row);
+		}
+		row.set(hash, tableName, keyName, keyValue);
+		rowCount++;
+		if (rowCount * 2 > rowTable.length) {
+			rowTable = new int[rowTable.length * 2];
+			for (int i = 0; i < rowCount; i++) {
+				insertRow(i);
+			}
+		} else {
+			insertRow(rowCount - 1);
+		}
+		return row;
+	}
+
+	private void insertRow(int index) {
+		int mask = rowTable.length - 1;
+		int slot = rows.get(index).hash & mask;
+		while (rowTable[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		rowTable[slot] = index + 1;
+	}
+
+	private static int hash(String tableName, String keyName, Object keyValue) {
+		int h = tableName.hashCode();
+		h = 31 * h + keyName.hashCode();
+		h = 31 * h + (keyValue == null ? 0 : keyValue.hashCode());
+		// Spread the high bits, as the table is indexed by the low ones
+		return h ^ (h >>> 16);
+	}
+
+	private void invalidate() {
+		if (!rendered) return;
+		rendered = false;
+		statements.clear();
+		values.clear();
+		batchStatement = null;
+	}
+
+	/**
+	 * Renders the coalesced statements and their values.
+	 */
+	private void render() {
+		statements.clear();
+		values.clear();
+		if (rowStarts.length < rowCount + 1) rowStarts = new int[Math.max(rowCount + 1, rowStarts.length * 2)];
+		valueStarts[0] = 0;
+		for (int r = 0; r < rowCount; r++) {
+			RowMutations row = rows.get(r);
+			rowStarts[r] = statements.size();
+			String separator = null;
+			if (row.deleted && !row.hasWrites()) {
+				startStatement("DELETE FROM ", row);
+				addStatement(row);
+			} else if (row.deleted) {
+				// Delete the columns not written, which the writes would lose to
+				String[] columns = keyspace.getRegularColumns(row.table);
+				if (columns == null) {
+					throw new IllegalStateException("The columns of " + row.table
+					                                + " can't be written after deleting its row in the same batch");
+				}
+				for (String column : columns) {
+					int i = Arrays.binarySearch(row.columns, 0, row.size, column);
+					if (i >= 0 && row.kinds[i] == RowMutations.WRITE) continue;
+					if (separator == null) {
+						builder.setLength(0);
+						builder.append("DELETE ");
+						separator = ", ";
+					} else {
+						builder.append(separator);
+					}
+					builder.append(column);
+				}
+			} else {
+				for (int i = 0; i < row.size; i++) {
+					if (row.kinds[i] != RowMutations.DELETE) continue;
+					if (separator == null) {
+						builder.setLength(0);
+						builder.append("DELETE ");
+						separator = ", ";
+					} else {
+						builder.append(separator);
+					}
+					builder.append(row.columns[i]);
+				}
+			}
+			if (separator != null) {
+				builder.append(" FROM ");
+				appendTable(builder, row.table);
+				addStatement(row);
+			}
+			// A single update per distinct TTL, usually just one
+			for (int i = 0; i < row.size; i++) {
+				if (row.kinds[i] != RowMutations.WRITE || row.hasEarlierTTL(i)) continue;
+				Integer ttl = row.ttls[i];
+				startStatement("UPDATE ", row);
+				if (ttl != null) builder.append(" USING TTL ").append(ttl.intValue());
+				builder.append(" SET ");
+				for (int j = i; j < row.size; j++) {
+					if (row.kinds[j] != RowMutations.WRITE || !sameTTL(ttl, row.ttls[j])) continue;
+					if (j > i) builder.append(", ");
+					builder.append(row.columns[j]).append(" = ?");
+					values.add(row.values[j]);
+				}
+				addStatement(row);
+			}
+			separator = null;
+			for (int i = 0; i < row.size; i++) {
+				if (row.kinds[i] != RowMutations.COUNTER || row.deltas[i] == 0) continue;
+				if (separator == null) {
+					startStatement("UPDATE ", row);
+					builder.append(" SET ");
+					separator = ", ";
+				} else {
+					builder.append(separator);
+				}
+				builder.append(row.columns[i]).append(" = ").append(row.columns[i]).append(" + ?");
+				values.add(row.deltas[i]);
+			}
+			if (separator != null) addStatement(row);
+		}
+		rowStarts[rowCount] = statements.size();
+		rendered = true;
+	}
+
+	private static boolean sameTTL(Integer ttl, Integer other) {
+		return ttl == null ? other == null : ttl.equals(other);
+	}
+
+	private void startStatement(String verb, RowMutations row) {
+		builder.setLength(0);
+		builder.append(verb);
+		appendTable(builder, row.table);
+	}
+
+	private void addStatement(RowMutations row) {
+		builder.append(" WHERE ").append(row.keyName).append(" = ?");
+		statements.add(builder.toString());
+		values.add(row.keyValue);
+		if (valueStarts.length < statements.size() + 1) valueStarts = Arrays.copyOf(valueStarts, valueStarts.length * 2);
+		valueStarts[statements.size()] = values.size();
+	}
+
+	/**
+	 * Returns the consistency level of the batch, that is, the last one
+	 * explicitly specified for a mutation or the default one if none.
 	 * 
-	 * @return
+	 * @return the consistency level of the batch
+	 */
+	public ConsistencyLevel getConsistencyLevel() {
+		return consistencyLevel;
+	}
+
+	/**
+	 * Returns the CQL statements of this, using {@code ?} as bind markers.
+	 * 
+	 * @return the CQL statements of this
 	 */
 	public List<String> getStatements() {
+		if (!rendered) render();
 		return statements;
 	}
 
 	/**
+	 * Returns the values to be bound to the markers of the batch statement, in
+	 * order.
 	 * 
-	 * @return
+	 * @return the values to be bound
+	 */
+	public List<Object> getValues() {
+		if (!rendered) render();
+		return values;
+	}
+
+	/**
+	 * Returns the CQL batch statement of this, using {@code ?} as bind
+	 * markers.
+	 * 
+	 * @return the CQL batch statement of this
 	 */
 	public String getBatchStatement() {
-		StringBuilder builder = new StringBuilder();
-		builder.append("BEGIN BATCH\n");
-		for (String statement : getStatements()) {
+		if (!rendered) render();
+		if (batchStatement == null) batchStatement = getBatch(counterMutations > 0 ? "BEGIN COUNTER BATCH\n" : "BEGIN BATCH\n", 0, statements.size());
+		return batchStatement;
+	}
+
+	private String getBatch(String begin, int first, int last) {
+		builder.setLength(0);
+		builder.append(begin);
+		for (int i = first; i < last; i++) {
 			builder.append('\t');
-			builder.append(statement);
-			builder.append('\n');
+			builder.append(statements.get(i));
+			builder.append(";\n");
 		}
 		builder.append("APPLY BATCH");
 		return builder.toString();
 	}
 
+	/**
+	 * Returns the logged batch to be executed if this is atomic, with its
+	 * statements sorted.
+	 * 
+	 * @return the atomic batch
+	 */
+	Batch getAtomicBatch() {
+		if (!rendered) render();
+		int size = statements.size();
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return statements.get(a).compareTo(statements.get(b));
+			}
+		});
+		List<Object> batchValues = new ArrayList<Object>(values.size());
+		builder.setLength(0);
+		builder.append(counterMutations > 0 ? "BEGIN COUNTER BATCH\n" : "BEGIN BATCH\n");
+		for (int i = 0; i < size; i++) {
+			int statement = order[i];
+			builder.append('\t');
+			builder.append(statements.get(statement));
+			builder.append(";\n");
+			batchValues.addAll(values.subList(valueStarts[statement], valueStarts[statement + 1]));
+		}
+		builder.append("APPLY BATCH");
+		return new Batch(builder.toString(), batchValues.toArray());
+	}
+
+	/**
+	 * Returns the batches to be executed if this is not atomic, that is, the
+	 * statements of each partition as a single statement or as an unlogged
+	 * batch, split by {@link #getMaxBatchSize()}.
+	 * 
+	 * @return the partition batches
+	 */
+	List<Batch> getPartitionBatches() {
+		if (!rendered) render();
+		List<Batch> batches = new ArrayList<Batch>(rowCount);
+		for (int row = 0; row < rowCount; row++) {
+			int end = rowStarts[row + 1];
+			for (int first = rowStarts[row]; first < end; first += maxBatchSize) {
+				int last = Math.min(first + maxBatchSize, end);
+				String query = last - first == 1
+				               ? statements.get(first)
+				               : getBatch(counterMutations > 0 ? "BEGIN COUNTER BATCH\n" : "BEGIN UNLOGGED BATCH\n", first, last);
+				Object[] batchValues = values.subList(valueStarts[first], valueStarts[last]).toArray();
+				batches.add(new Batch(query, batchValues));
+			}
+		}
+		return batches;
+	}
+
 	/**
 	 * 
 	 */
@@ -326,11 +759,17 @@ public class Mutator {
 	}
 
 	/**
+	 * Executes the mutations asynchronously, waiting for a permit if the
+	 * pending writes of the keyspace are limited, and retrying them if they
+	 * are idempotent and the keyspace has retries enabled.
 	 * 
+	 * Completion callbacks can be added to the returned future with
+	 * {@link com.google.common.util.concurrent.Futures#addCallback}.
+	 * 
+	 * @return a {@link ListenableFuture} done when the mutations are written
 	 */
-	public void executeAsync() {
-		System.out.println(this.toString());
-		keyspace.executeAsync(this);
+	public ListenableFuture<Void> executeAsync() {
+		return keyspace.executeAsync(this);
 	}
 
 	/*
@@ -343,4 +782,127 @@ public class Mutator {
 		return getBatchStatement();
 	}
 
+	/**
+	 * The coalesced pending mutations of a row, with a slot per mutated
+	 * column sorted by name.
+	 */
+	private static final class RowMutations {
+
+		private static final byte WRITE = 0;
+		private static final byte DELETE = 1;
+		private static final byte COUNTER = 2;
+
+		private int hash;
+		private String table;
+		private String keyName;
+		private Object keyValue;
+		private boolean deleted;
+
+		private int size;
+		private String[] columns = new String[8];
+		private byte[] kinds = new byte[8];
+		private Object[] values = new Object[8];
+		private Integer[] ttls = new Integer[8];
+		private long[] deltas = new long[8];
+
+		private void set(int hash, String table, String keyName, Object keyValue) {
+			this.hash = hash;
+			this.table = table;
+			this.keyName = keyName;
+			this.keyValue = keyValue;
+		}
+
+		private boolean matches(int hash, String table, String keyName, Object keyValue) {
+			return this.hash == hash
+			       && this.table.equals(table)
+			       && this.keyName.equals(keyName)
+			       && (this.keyValue == null ? keyValue == null : this.keyValue.equals(keyValue));
+		}
+
+		/**
+		 * Returns the slot of the specified column, inserting it in order if
+		 * missing.
+		 */
+		private int getColumn(String column) {
+			int index = Arrays.binarySearch(columns, 0, size, column);
+			if (index >= 0) return index;
+			index = -index - 1;
+			if (size == columns.length) {
+				int capacity = size * 2;
+				columns = Arrays.copyOf(columns, capacity);
+				kinds = Arrays.copyOf(kinds, capacity);
+				values = Arrays.copyOf(values, capacity);
+				ttls = Arrays.copyOf(ttls, capacity);
+				deltas = Arrays.copyOf(deltas, capacity);
+			}
+			int moved = size - index;
+			System.arraycopy(columns, index, columns, index + 1, moved);
+			System.arraycopy(kinds, index, kinds, index + 1, moved);
+			System.arraycopy(values, index, values, index + 1, moved);
+			System.arraycopy(ttls, index, ttls, index + 1, moved);
+			System.arraycopy(deltas, index, deltas, index + 1, moved);
+			columns[index] = column;
+			kinds[index] = WRITE;
+			values[index] = null;
+			ttls[index] = null;
+			deltas[index] = 0;
+			size++;
+			return index;
+		}
+
+		private boolean hasWrites() {
+			for (int i = 0; i < size; i++) {
+				if (kinds[i] == WRITE) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns if a write before the specified slot has the same TTL.
+		 */
+		private boolean hasEarlierTTL(int index) {
+			for (int i = 0; i < index; i++) {
+				if (kinds[i] == WRITE && sameTTL(ttls[i], ttls[index])) return true;
+			}
+			return false;
+		}
+
+		private void clearColumns() {
+			Arrays.fill(columns, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+			Arrays.fill(ttls, 0, size, null);
+			size = 0;
+		}
+
+		private void clear() {
+			clearColumns();
+			table = null;
+			keyName = null;
+			keyValue = null;
+			deleted = false;
+		}
+	}
+
+	/**
+	 * A query to be executed and its values.
+	 */
+	static final class Batch {
+
+		private final String query;
+		private final Object[] values;
+
+		private Batch(String query, Object[] values) {
+			this.query = query;
+			this.values = values;
+		}
+
+		String getQuery() {
+			return query;
+		}
+
+		Object[] getValues() {
+			return values;
+		}
+	}
+
 }
@@ -0,0 +1,20 @@
+package com.sais.utils.cassandra;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Handler of the rows read by a table scan.
+ *
+ * @author andres
+ *
+ */
+public interface RowHandler {
+
+	/**
+	 * Handles a scanned row.
+	 *
+	 * @param row the {@link Row}, with the requested columns in order
+	 */
+	void handle(Row row);
+
+}
@@ -0,0 +1,190 @@
+package com.sais.utils.cassandra;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress of a table scan, with the position of each of its token ranges.
+ *
+ * The Murmur3 token ring is split into ranges, each of them from an exclusive
+ * start token to an inclusive end token, and the position of a range is the
+ * last token whose rows have all been handled. A failed or interrupted scan
+ * can thus be resumed from its progress, which can be saved with
+ * {@link #toString()} and restored with {@link #parse(String)}. Resumed
+ * ranges may handle again the rows of the partition being read when the scan
+ * stopped, but never skip any.
+ *
+ * @author andres
+ *
+ */
+public class ScanProgress {
+
+	private static final char RANGE_SEPARATOR = ';';
+	private static final char TOKEN_SEPARATOR = ':';
+
+	private final long[] starts;
+	private final long[] ends;
+	private final AtomicLongArray positions;
+	private final AtomicLong scannedRows = new AtomicLong();
+
+	private ScanProgress(long[] starts, long[] ends, long[] positions) {
+		this.starts = starts;
+		this.ends = ends;
+		this.positions = new AtomicLongArray(positions);
+	}
+
+	/**
+	 * Returns the progress of a new scan of the whole token ring, split into
+	 * the specified number of ranges of the same size.
+	 *
+	 * @param ranges the number of token ranges
+	 * @return the new {@link ScanProgress}
+	 */
+	public static ScanProgress split(int ranges) {
+		if (ranges <= 0) {
+			throw new IllegalArgumentException("The number of ranges must be greater than zero");
+		}
+		BigInteger min = BigInteger.valueOf(Long.MIN_VALUE);
+		BigInteger span = BigInteger.valueOf(Long.MAX_VALUE).subtract(min);
+		BigInteger count = BigInteger.valueOf(ranges);
+		long[] starts = new long[ranges];
+		long[] ends = new long[ranges];
+		for (int i = 0; i < ranges; i++) {
+			starts[i] = i == 0 ? Long.MIN_VALUE : ends[i - 1];
+			ends[i] = i == ranges - 1 ? Long.MAX_VALUE
+			                          : min.add(span.multiply(BigInteger.valueOf(i + 1)).divide(count)).longValue();
+		}
+		return new ScanProgress(starts, ends, starts.clone());
+	}
+
+	/**
+	 * Parses a progress saved with {@link #toString()}.
+	 *
+	 * @param progress the saved progress
+	 * @return the parsed {@link ScanProgress}
+	 */
+	public static ScanProgress parse(String progress) {
+		if (progress == null) {
+			throw new IllegalArgumentException("A not null progress is required");
+		}
+		String[] ranges = progress.split(String.valueOf(RANGE_SEPARATOR));
+		long[] starts = new long[ranges.length];
+		long[] ends = new long[ranges.length];
+		long[] positions = new long[ranges.length];
+		for (int i = 0; i < ranges.length; i++) {
+			String[] tokens = ranges[i].split(String.valueOf(TOKEN_SEPARATOR));
+			if (tokens.length != 3) {
+				throw new IllegalArgumentException("Invalid scan progress range: " + ranges[i]);
+			}
+			try {
+				starts[i] = Long.parseLong(tokens[0]);
+				positions[i] = Long.parseLong(tokens[1]);
+				ends[i] = Long.parseLong(tokens[2]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid scan progress range: " + ranges[i]);
+			}
+			if (positions[i] < starts[i] || positions[i] > ends[i]) {
+				throw new IllegalArgumentException("Invalid scan progress range: " + ranges[i]);
+			}
+		}
+		return new ScanProgress(starts, ends, positions);
+	}
+
+	/**
+	 * Records that all the rows of the specified range up to the specified
+	 * token have been handled.
+	 */
+	void advance(int range, long position, int rows) {
+		positions.set(range, position);
+		scannedRows.addAndGet(rows);
+	}
+
+	/**
+	 * Returns the number of token ranges.
+	 *
+	 * @return the number of token ranges
+	 */
+	public int getRangeCount() {
+		return starts.length;
+	}
+
+	/**
+	 * Returns the exclusive start token of a range.
+	 *
+	 * @param range the range's index
+	 * @return the start token
+	 */
+	public long getStart(int range) {
+		return starts[range];
+	}
+
+	/**
+	 * Returns the inclusive end token of a range.
+	 *
+	 * @param range the range's index
+	 * @return the end token
+	 */
+	public long getEnd(int range) {
+		return ends[range];
+	}
+
+	/**
+	 * Returns the last token of a range whose rows have all been handled.
+	 *
+	 * @param range the range's index
+	 * @return the range's position
+	 */
+	public long getPosition(int range) {
+		return positions.get(range);
+	}
+
+	/**
+	 * Returns if all the rows of a range have been handled.
+	 *
+	 * @param range the range's index
+	 * @return {@code true} if the range is done, {@code false} otherwise
+	 */
+	public boolean isDone(int range) {
+		return positions.get(range) == ends[range];
+	}
+
+	/**
+	 * Returns if all the rows of all the ranges have been handled.
+	 *
+	 * @return {@code true} if the scan is done, {@code false} otherwise
+	 */
+	public boolean isDone() {
+		for (int i = 0; i < starts.length; i++) {
+			if (!isDone(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of rows handled since this progress was created or
+	 * parsed.
+	 *
+	 * @return the number of handled rows
+	 */
+	public long getScannedRows() {
+		return scannedRows.get();
+	}
+
+	/**
+	 * Returns the saved form of this progress, to be parsed with
+	 * {@link #parse(String)}.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < starts.length; i++) {
+			if (i > 0) builder.append(RANGE_SEPARATOR);
+			builder.append(starts[i]).append(TOKEN_SEPARATOR);
+			builder.append(positions.get(i)).append(TOKEN_SEPARATOR);
+			builder.append(ends[i]);
+		}
+		return builder.toString();
+	}
+
+}
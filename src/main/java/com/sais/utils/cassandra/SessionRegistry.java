@@ -0,0 +1,205 @@
+package com.sais.utils.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.Session;
+
+/**
+ * Registry of the driver {@link Cluster}s and {@link Session}s shared by all
+ * the components of this JVM.
+ *
+ * There is a single {@link Cluster} per set of contact points, whatever their
+ * order, with its connection pools, threads and metadata refresh, and a
+ * single {@link Session} per keyspace of each cluster, along with its
+ * {@link StatementCache}. Sessions are reference counted: each
+ * {@link #acquire(String, String)} must be paired with a
+ * {@link #release(Session)}, and the last release of a session shuts it down,
+ * as well as its cluster if it has no other sessions.
+ *
+ * @author andres
+ *
+ */
+public final class SessionRegistry {
+
+	/** The clusters by their normalized contact points */
+	private static final Map<String, ClusterEntry> clusters = new HashMap<String, ClusterEntry>();
+
+	/** The acquired sessions */
+	private static final Map<Session, SessionEntry> sessions = new IdentityHashMap<Session, SessionEntry>();
+
+	/** The pooling options of the new clusters, or zero for the defaults */
+	private static int coreConnectionsPerHost;
+	private static int maxConnectionsPerHost;
+	private static int maxRequestsPerConnection;
+
+	private SessionRegistry() {
+	}
+
+	/**
+	 * Sets the pooling options of the local hosts of the clusters created
+	 * from now on, which don't affect the already connected ones.
+	 *
+	 * @param coreConnectionsPerHost the number of connections always open to
+	 *            each host
+	 * @param maxConnectionsPerHost the maximum number of connections to each
+	 *            host
+	 * @param maxRequestsPerConnection the number of simultaneous requests of
+	 *            every connection that triggers opening a new one, up to the
+	 *            maximum
+	 */
+	public static synchronized void setPoolingOptions(int coreConnectionsPerHost,
+	                                                  int maxConnectionsPerHost,
+	                                                  int maxRequestsPerConnection) {
+		if (coreConnectionsPerHost <= 0 || maxConnectionsPerHost < coreConnectionsPerHost) {
+			throw new IllegalArgumentException("The connections per host must be greater than zero, and the maximum not lower than the core ones");
+		}
+		if (maxRequestsPerConnection <= 0) {
+			throw new IllegalArgumentException("The maximum requests per connection must be greater than zero");
+		}
+		SessionRegistry.coreConnectionsPerHost = coreConnectionsPerHost;
+		SessionRegistry.maxConnectionsPerHost = maxConnectionsPerHost;
+		SessionRegistry.maxRequestsPerConnection = maxRequestsPerConnection;
+	}
+
+	/**
+	 * Returns the shared session of the specified keyspace, connecting it,
+	 * and its cluster, if it is not connected yet.
+	 *
+	 * @param contactPoints the contact point hosts separated by commas
+	 * @param keyspace the name of the keyspace
+	 * @return the shared {@link Session}, to be released with
+	 *         {@link #release(Session)}
+	 */
+	public static synchronized Session acquire(String contactPoints, String keyspace) {
+		if (contactPoints == null) {
+			throw new IllegalArgumentException("A not null contact points list is required");
+		}
+		if (keyspace == null) {
+			throw new IllegalArgumentException("A not null keyspace name is required");
+		}
+		List<String> hosts = new ArrayList<String>();
+		for (String host : contactPoints.split(",")) {
+			host = host.trim().toLowerCase();
+			if (host.length() > 0 && !hosts.contains(host)) hosts.add(host);
+		}
+		if (hosts.isEmpty()) {
+			throw new IllegalArgumentException("At least a contact point is required");
+		}
+		Collections.sort(hosts);
+		String key = hosts.toString();
+		ClusterEntry cluster = clusters.get(key);
+		if (cluster == null) {
+			cluster = new ClusterEntry(key, build(hosts));
+			clusters.put(key, cluster);
+		}
+		SessionEntry entry = cluster.sessions.get(keyspace);
+		if (entry == null) {
+			Session session;
+			try {
+				session = cluster.cluster.connect(keyspace);
+			} catch (RuntimeException e) {
+				if (cluster.sessions.isEmpty()) {
+					clusters.remove(key);
+					cluster.cluster.shutdown();
+				}
+				throw e;
+			}
+			entry = new SessionEntry(cluster, keyspace, session);
+			cluster.sessions.put(keyspace, entry);
+			sessions.put(session, entry);
+		}
+		entry.references++;
+		return entry.session;
+	}
+
+	private static Cluster build(List<String> hosts) {
+		Cluster.Builder builder = Cluster.builder();
+		builder.addContactPoints(hosts.toArray(new String[hosts.size()]));
+		if (coreConnectionsPerHost > 0) {
+			PoolingOptions pooling = builder.poolingOptions();
+			// Raise the maximum first, as the core can't exceed it
+			pooling.setMaxConnectionsPerHost(HostDistance.LOCAL, maxConnectionsPerHost);
+			pooling.setCoreConnectionsPerHost(HostDistance.LOCAL, coreConnectionsPerHost);
+			pooling.setMaxSimultaneousRequestsPerConnectionTreshold(HostDistance.LOCAL, maxRequestsPerConnection);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the cache of the prepared statements of the specified session.
+	 *
+	 * @param session a {@link Session} acquired from this registry
+	 * @return the shared {@link StatementCache} of the session
+	 */
+	public static synchronized StatementCache getStatementCache(Session session) {
+		SessionEntry entry = sessions.get(session);
+		if (entry == null) {
+			throw new IllegalArgumentException("The session was not acquired from the registry or it was already released");
+		}
+		return entry.statementCache;
+	}
+
+	/**
+	 * Releases an acquired session, shutting it down if this is its last
+	 * user, as well as its cluster if it has no other sessions. Releasing an
+	 * already shut down session has no effect.
+	 *
+	 * @param session a {@link Session} acquired from this registry
+	 */
+	public static synchronized void release(Session session) {
+		SessionEntry entry = sessions.get(session);
+		if (entry == null) return;
+		if (--entry.references > 0) return;
+		sessions.remove(session);
+		ClusterEntry cluster = entry.cluster;
+		cluster.sessions.remove(entry.keyspace);
+		session.shutdown();
+		if (cluster.sessions.isEmpty()) {
+			clusters.remove(cluster.key);
+			cluster.cluster.shutdown();
+		}
+	}
+
+	/**
+	 * A shared cluster and its sessions by keyspace.
+	 */
+	private static final class ClusterEntry {
+
+		private final String key;
+		private final Cluster cluster;
+		private final Map<String, SessionEntry> sessions = new HashMap<String, SessionEntry>();
+
+		private ClusterEntry(String key, Cluster cluster) {
+			this.key = key;
+			this.cluster = cluster;
+		}
+	}
+
+	/**
+	 * A shared session and its number of users.
+	 */
+	private static final class SessionEntry {
+
+		private final ClusterEntry cluster;
+		private final String keyspace;
+		private final Session session;
+		private final StatementCache statementCache;
+		private int references;
+
+		private SessionEntry(ClusterEntry cluster, String keyspace, Session session) {
+			this.cluster = cluster;
+			this.keyspace = keyspace;
+			this.session = session;
+			this.statementCache = new StatementCache(session);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.sais.utils.cassandra;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Cache of {@link PreparedStatement}s indexed by their CQL query string.
+ *
+ * Each statement shape is prepared only once per {@link Session}, so that
+ * further executions just bind the values instead of sending the full query
+ * to be parsed again by Cassandra. Concurrent requests of a statement not
+ * prepared yet wait for a single preparation.
+ *
+ * The cache holds up to a maximum number of statements, evicting the least
+ * recently used ones, so callers building queries from their data can't grow
+ * it, nor the statements prepared in the cluster, without limit.
+ *
+ * @author andres
+ *
+ */
+public class StatementCache {
+
+	/** The default maximum number of cached statements */
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private final Session session;
+	private final Cache<String, PreparedStatement> statements;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param session the {@link Session} where the statements are prepared
+	 */
+	public StatementCache(Session session) {
+		this(session, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param session the {@link Session} where the statements are prepared
+	 * @param maxSize the maximum number of cached statements
+	 */
+	public StatementCache(Session session, int maxSize) {
+		if (session == null) {
+			throw new IllegalArgumentException("A not null session is required");
+		}
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("The maximum size must be greater than zero");
+		}
+		this.session = session;
+		this.statements = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+	}
+
+	/**
+	 * Returns the {@link PreparedStatement} for the specified CQL query,
+	 * preparing it if it has not been prepared yet.
+	 *
+	 * @param query the CQL query, using {@code ?} as bind markers
+	 * @return the {@link PreparedStatement} for the specified CQL query
+	 */
+	public PreparedStatement prepare(final String query) {
+		PreparedStatement statement = statements.getIfPresent(query);
+		if (statement != null) return statement;
+		try {
+			return statements.get(query, new Callable<PreparedStatement>() {
+				@Override
+				public PreparedStatement call() {
+					return session.prepare(query);
+				}
+			});
+		} catch (UncheckedExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error preparing " + query, e.getCause());
+		}
+	}
+
+	/**
+	 * Returns a {@link BoundStatement} for the specified CQL query and values.
+	 *
+	 * @param query the CQL query, using {@code ?} as bind markers
+	 * @param values the values to be bound
+	 * @return a {@link BoundStatement} for the specified CQL query and values
+	 */
+	public BoundStatement bind(String query, Object... values) {
+		return prepare(query).bind(values);
+	}
+
+	/**
+	 * Returns the number of cached statements.
+	 *
+	 * @return the number of cached statements
+	 */
+	public int size() {
+		return (int) statements.size();
+	}
+
+	/**
+	 * Removes all the cached statements.
+	 */
+	public void clear() {
+		statements.invalidateAll();
+	}
+
+}
@@ -0,0 +1,296 @@
+package com.sais.utils.cassandra;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+
+/**
+ * Parallel scan of a whole table by token ranges.
+ *
+ * Each range of the {@link ScanProgress} is read by a pool thread in pages of
+ * consecutive tokens, every page starting after the last token of the
+ * previous one. Since a page may end in the middle of a partition, the rest
+ * of that partition is read by its key in pages of clustering keys, and the
+ * range's position is only advanced to its token once its last page is
+ * handled, so a resumed scan reads again, and handles again, the rows of a
+ * partition whose reading was interrupted. The pages are handed through a
+ * bounded queue to the calling thread, which runs the {@link RowHandler} and
+ * updates the progress, so slow handlers slow down the readers instead of
+ * piling up rows.
+ *
+ * Requires the Murmur3 partitioner. Every query is limited to the page size,
+ * so the memory of a scan is bounded by the buffered pages, whatever the
+ * width of its partitions.
+ *
+ * @author andres
+ *
+ */
+class TableScan {
+
+	private static final String MURMUR3_PARTITIONER = "org.apache.cassandra.dht.Murmur3Partitioner";
+
+	private final Keyspace keyspace;
+	private final String table;
+	private final int columns;
+	private final int partitionKeys;
+	private final int clusteringKeys;
+	private final String pageQuery;
+	private final int pageSize;
+	private final com.datastax.driver.core.ConsistencyLevel consistencyLevel;
+
+	/**
+	 * The queries of the next rows of a partition by the number of restricted
+	 * clustering keys minus one, all of them but the last one fixed
+	 */
+	private final String[] partitionQueries;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keyspace the scanned {@link Keyspace}
+	 * @param table the table's name
+	 * @param columns the names of the columns to be read
+	 * @param pageSize the maximum number of rows per query
+	 * @param consistencyLevel the {@link ConsistencyLevel} of the queries
+	 */
+	TableScan(Keyspace keyspace, String table, String[] columns, int pageSize, ConsistencyLevel consistencyLevel) {
+		if (columns == null || columns.length == 0) {
+			throw new IllegalArgumentException("At least a column is required");
+		}
+		if (pageSize <= 1) {
+			throw new IllegalArgumentException("The page size must be greater than one");
+		}
+		this.keyspace = keyspace;
+		this.table = table;
+		this.columns = columns.length;
+		this.pageSize = pageSize;
+		this.consistencyLevel = ConsistencyLevel.toCQLDriverCL(consistencyLevel);
+		checkPartitioner(keyspace.getSession());
+		TableMetadata metadata = getMetadata(keyspace, table);
+		List<ColumnMetadata> partitionKey = metadata.getPartitionKey();
+		List<ColumnMetadata> clusteringKey = metadata.getClusteringKey();
+		this.partitionKeys = partitionKey.size();
+		this.clusteringKeys = clusteringKey.size();
+
+		// Select the keys after the requested columns and the token
+		StringBuilder key = new StringBuilder();
+		for (ColumnMetadata column : partitionKey) {
+			if (key.length() > 0) key.append(", ");
+			key.append(column.getName());
+		}
+		String token = "token(" + key + ")";
+		StringBuilder select = new StringBuilder("SELECT ");
+		for (String column : columns) {
+			select.append(column).append(", ");
+		}
+		select.append(token);
+		for (ColumnMetadata column : partitionKey) {
+			select.append(", ").append(column.getName());
+		}
+		for (ColumnMetadata column : clusteringKey) {
+			select.append(", ").append(column.getName());
+		}
+		select.append(" FROM ").append(table).append(" WHERE ");
+		this.pageQuery = select + token + " > ? AND " + token + " <= ? LIMIT " + pageSize;
+
+		StringBuilder partition = new StringBuilder(select);
+		for (int i = 0; i < partitionKeys; i++) {
+			if (i > 0) partition.append(" AND ");
+			partition.append(partitionKey.get(i).getName()).append(" = ?");
+		}
+		this.partitionQueries = new String[clusteringKeys];
+		for (int i = 0; i < clusteringKeys; i++) {
+			StringBuilder query = new StringBuilder(partition);
+			for (int j = 0; j < i; j++) {
+				query.append(" AND ").append(clusteringKey.get(j).getName()).append(" = ?");
+			}
+			query.append(" AND ").append(clusteringKey.get(i).getName()).append(" > ? LIMIT ").append(pageSize);
+			partitionQueries[i] = query.toString();
+		}
+	}
+
+	private static void checkPartitioner(Session session) {
+		Row local = session.execute("SELECT partitioner FROM system.local").one();
+		String partitioner = local == null ? null : local.getString(0);
+		if (!MURMUR3_PARTITIONER.equals(partitioner)) {
+			throw new IllegalStateException("Token range scans require the Murmur3 partitioner, not " + partitioner);
+		}
+	}
+
+	private static TableMetadata getMetadata(Keyspace keyspace, String table) {
+		KeyspaceMetadata metadata = keyspace.getSession().getCluster().getMetadata().getKeyspace(keyspace.getName());
+		TableMetadata tableMetadata = metadata == null ? null : metadata.getTable(table);
+		if (tableMetadata == null) {
+			throw new IllegalArgumentException("Unknown table " + keyspace.getName() + "." + table);
+		}
+		return tableMetadata;
+	}
+
+	/**
+	 * Scans the ranges of the specified progress not done yet.
+	 *
+	 * @param progress the {@link ScanProgress}, updated as the rows are
+	 *            handled
+	 * @param parallelism the number of ranges read in parallel
+	 * @param bufferedPages the maximum number of pages read and not handled
+	 *            yet
+	 * @param handler the {@link RowHandler}, called from the calling thread
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	void scan(final ScanProgress progress, int parallelism, int bufferedPages, RowHandler handler) throws InterruptedException {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("The parallelism must be greater than zero");
+		}
+		if (bufferedPages <= 0) {
+			throw new IllegalArgumentException("The number of buffered pages must be greater than zero");
+		}
+		final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(bufferedPages);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "keyspace-scan-" + keyspace.getName() + "." + table);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		int pending = 0;
+		try {
+			for (int i = 0; i < progress.getRangeCount(); i++) {
+				if (progress.isDone(i)) continue;
+				final int range = i;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							read(range, progress.getPosition(range), progress.getEnd(range), pages);
+						} catch (InterruptedException e) {
+							// The scan was stopped
+						} catch (Throwable t) {
+							try {
+								pages.put(new Page(range, t));
+							} catch (InterruptedException e) {
+								// The scan was stopped
+							}
+						}
+					}
+				});
+				pending++;
+			}
+			while (pending > 0) {
+				Page page = pages.take();
+				if (page.error != null) {
+					if (page.error instanceof RuntimeException) throw (RuntimeException) page.error;
+					if (page.error instanceof Error) throw (Error) page.error;
+					throw new IllegalStateException(page.error);
+				}
+				for (Row row : page.rows) {
+					handler.handle(row);
+				}
+				progress.advance(page.range, page.position, page.rows.size());
+				if (page.position == progress.getEnd(page.range)) pending--;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads a range from the specified position, putting its pages in the
+	 * specified queue. The last page ends at the range's end, even if empty.
+	 */
+	private void read(int range, long position, long end, BlockingQueue<Page> pages) throws InterruptedException {
+		while (position < end) {
+			BoundStatement statement = keyspace.getStatementCache().bind(pageQuery, position, end);
+			List<Row> rows = query(statement);
+			if (rows.size() < pageSize) {
+				pages.put(new Page(range, rows, end));
+				return;
+			}
+			Row last = rows.get(rows.size() - 1);
+			position = getToken(last);
+			if (clusteringKeys == 0) {
+				// Every partition is a single row
+				pages.put(new Page(range, rows, position));
+			} else {
+				pages.put(new Page(range, rows, position - 1));
+				readPartition(range, last, position, pages);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows of the partition of the specified row after it, putting
+	 * its pages in the specified queue. The last page ends at the partition's
+	 * token, even if empty.
+	 *
+	 * Without multi-column comparisons, the rows after a clustering key are
+	 * read from its deepest column up, fixing the previous columns: once the
+	 * rows sharing all but the last column are read, the rows sharing all but
+	 * the last two ones are read, and so on.
+	 */
+	private void readPartition(int range, Row row, long token, BlockingQueue<Page> pages) throws InterruptedException {
+		int restricted = clusteringKeys;
+		while (true) {
+			BoundStatement statement = keyspace.getStatementCache().prepare(partitionQueries[restricted - 1]).bind();
+			int offset = columns + 1;
+			for (int i = 0; i < partitionKeys + restricted; i++) {
+				statement.setBytesUnsafe(i, row.getBytesUnsafe(offset + i));
+			}
+			List<Row> rows = query(statement);
+			if (rows.size() < pageSize && restricted == 1) {
+				pages.put(new Page(range, rows, token));
+				return;
+			}
+			if (!rows.isEmpty()) {
+				pages.put(new Page(range, rows, token - 1));
+				row = rows.get(rows.size() - 1);
+			}
+			restricted = rows.size() < pageSize ? restricted - 1 : clusteringKeys;
+		}
+	}
+
+	private List<Row> query(BoundStatement statement) {
+		statement.setConsistencyLevel(consistencyLevel);
+		return keyspace.getSession().execute(statement).all();
+	}
+
+	private long getToken(Row row) {
+		return row.getLong(columns);
+	}
+
+	/**
+	 * Rows of a range up to a position, or the error of the range.
+	 */
+	private static final class Page {
+
+		private final int range;
+		private final List<Row> rows;
+		private final long position;
+		private final Throwable error;
+
+		private Page(int range, List<Row> rows, long position) {
+			this.range = range;
+			this.rows = rows;
+			this.position = position;
+			this.error = null;
+		}
+
+		private Page(int range, Throwable error) {
+			this.range = range;
+			this.rows = null;
+			this.position = 0;
+			this.error = error;
+		}
+	}
+
+}
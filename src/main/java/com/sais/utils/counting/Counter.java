@@ -1,24 +1,28 @@
 package com.sais.utils.counting;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
-import org.joda.time.DateTime;
-
-import com.datastax.driver.core.ConsistencyLevel;
-import com.datastax.driver.core.Session;
-import com.datastax.driver.core.querybuilder.Batch;
-import com.datastax.driver.core.querybuilder.Delete;
-import com.datastax.driver.core.querybuilder.QueryBuilder;
-import com.datastax.driver.core.querybuilder.Update;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.hazelcast.core.Transaction;
-import com.sais.utils.cassandra.Keyspace;
 
 public class Counter {
 
-	
-	private Session session;
-	private String cfName;
+	/** The reusable bucket starts of the updating threads, by granularity */
+	private static final ThreadLocal<long[]> bucketStarts = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[TimeGranularity.values().length];
+		}
+	};
+
+	private CounterService service;
 	private String name;
+	private CounterProfile profile;
 
 	/**
 	 * Constructor for obtain the root counter.
@@ -30,23 +34,23 @@ public class Counter {
 	/**
 	 * Constructor.
 	 * 
-	 * @param keyspace the {@link Keyspace} to be used
-	 * @param cfName
+	 * @param service the owner {@link CounterService}
 	 * @param name
+	 * @param profile the {@link CounterProfile} defining the stored values
 	 */
-	Counter(Session session, String cfName, String name) {
-		if (session == null) {
-			throw new IllegalArgumentException("A not null session is required");
-		}
-		if (cfName == null || cfName.isEmpty()) {
-			throw new IllegalArgumentException("A not null or empty column family name is required");
+	Counter(CounterService service, String name, CounterProfile profile) {
+		if (service == null) {
+			throw new IllegalArgumentException("A not null counter service is required");
 		}
 		if (name == null || name.isEmpty()) {
 			throw new IllegalArgumentException("A not null or empty counter name is required");
 		}
-		this.session = session;
-		this.cfName = cfName;
+		if (profile == null) {
+			throw new IllegalArgumentException("A not null counter profile is required");
+		}
+		this.service = service;
 		this.name = name;
+		this.profile = profile;
 	}
 
 	/**
@@ -56,6 +60,15 @@ public class Counter {
 	public String getName() {
 		return name;
 	}
+
+	/**
+	 * Returns the {@link CounterProfile} defining the values stored for this.
+	 * 
+	 * @return the {@link CounterProfile}
+	 */
+	public CounterProfile getProfile() {
+		return profile;
+	}
 	
 	/**
 	 * Increase this in one unit for the current date.
@@ -91,31 +104,352 @@ public class Counter {
 	 * Updates the value of this {@link Counter} and of all its ancestors using
 	 * the specified value and date.
 	 * 
+	 * Only the granularities and value types of the {@link CounterProfile} of
+	 * this are written.
+	 * 
+	 * If the owner {@link CounterService} has aggregation enabled then the
+	 * increments are buffered by its {@link CounterAggregator}, otherwise they
+	 * are written immediately.
+	 * 
+	 * If the owner {@link CounterService} has rollup enabled then only the
+	 * finest stored granularity is written, and the coarser ones are derived
+	 * later by its {@link CounterRollup}, which may also defer the write to its
+	 * background thread, as for the first update of the counter in this node.
+	 * 
 	 * @param transaction the atomic {@link Transaction} to be used
 	 * @param date the event's date
 	 * @param value the event's value for means, deviations and variances
 	 */
-	public void update(Date date, Long value) {		
-		Batch batch = QueryBuilder.batch();
-		for (TimeGranularity granularity : TimeGranularity.values()) {
-			batch.add(update(ValueType.COUNTS, granularity, date, 1L));
-			if (value != null) {
-				batch.add(update(ValueType.SUMS, granularity, date, value));
-				batch.add(update(ValueType.SQUARES, granularity, date, value * value));
+	public void update(Date date, Long value) {
+		CounterBatch batch = prepare(date, value);
+		if (batch != null) batch.execute();
+	}
+
+	/**
+	 * Asynchronously updates the value of this {@link Counter} using the
+	 * specified value and date, as {@link #update(Date, Long)} does.
+	 * 
+	 * If the owner {@link CounterService} has a limit of pending writes then
+	 * this blocks while the limit is reached, giving backpressure to the
+	 * caller when the database slows down. If the increments are buffered by
+	 * a {@link CounterAggregator} then the returned future is already done.
+	 * 
+	 * @param date the event's date
+	 * @param value the event's value for means, deviations and variances
+	 * @return a {@link ListenableFuture} done when the increments are written
+	 */
+	public ListenableFuture<Void> updateAsync(Date date, Long value) {
+		CounterBatch batch = prepare(date, value);
+		if (batch == null || batch.size() == 0) return Futures.immediateFuture(null);
+		return service.executeAsync(batch);
+	}
+
+	/**
+	 * Computes the increments of the specified event, buffering them in the
+	 * {@link CounterAggregator} if aggregation is enabled.
+	 * 
+	 * @return the {@link CounterBatch} to be written, or {@code null} if the
+	 *         increments are buffered
+	 */
+	private CounterBatch prepare(Date date, Long value) {
+		CounterAggregator aggregator = service.getAggregator();
+		CounterBatch batch = aggregator == null ? new CounterBatch(service, profile.getCellsPerUpdate()) : null;
+		prepare(aggregator, batch, date.getTime(), value);
+		return batch;
+	}
+
+	/**
+	 * Computes the increments of the specified event, adding them to the
+	 * {@link CounterAggregator} if it is not {@code null} or to the
+	 * {@link CounterBatch} otherwise.
+	 * 
+	 * @param aggregator the {@link CounterAggregator}, or {@code null}
+	 * @param batch the {@link CounterBatch} if there is no aggregator
+	 * @param millis the event's time in milliseconds
+	 * @param value the event's value for means, deviations and variances
+	 */
+	void prepare(CounterAggregator aggregator, CounterBatch batch, long millis, Long value) {
+		prepare(service, name, profile, aggregator, batch, millis, value);
+	}
+
+	/**
+	 * Computes the increments of the specified event of the counter with the
+	 * specified name and profile, as {@link #prepare(CounterAggregator,
+	 * CounterBatch, long, Long)} does, without building its {@link Counter}.
+	 * 
+	 * @param service the owner {@link CounterService}
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}
+	 * @param aggregator the {@link CounterAggregator}, or {@code null}
+	 * @param batch the {@link CounterBatch} if there is no aggregator
+	 * @param millis the event's time in milliseconds
+	 * @param value the event's value for means, deviations and variances
+	 */
+	static void prepare(CounterService service,
+	                    String name,
+	                    CounterProfile profile,
+	                    CounterAggregator aggregator,
+	                    CounterBatch batch,
+	                    long millis,
+	                    Long value) {
+		CounterHeavyHitters heavyHitters = service.getHeavyHitters();
+		if (heavyHitters != null) {
+			heavyHitters.offer(name, millis);
+		}
+		CounterRates rates = service.getRates();
+		if (rates != null) {
+			rates.record(name, value);
+		}
+		service.indexName(name);
+		long[] starts = bucketStarts.get();
+		service.getBucketer().getStarts(millis, starts);
+		TimeGranularity only = null;
+		CounterRollup rollup = service.getRollup();
+		if (rollup != null && CounterRollup.isRolledUp(profile)) {
+			switch (rollup.route(name, profile, starts, millis, value)) {
+			case DEFERRED:
+				return;
+			case FINEST:
+				only = profile.getFinest();
+				break;
+			case ALL:
+				break;
 			}
-		}		
-		session.execute(batch);
+		}
+		add(name, profile, aggregator, batch, starts, value, only);
+	}
+
+	/**
+	 * Adds the increments of an event to the {@link CounterAggregator} if it
+	 * is not {@code null} or to the {@link CounterBatch} otherwise.
+	 * 
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}
+	 * @param aggregator the {@link CounterAggregator}, or {@code null}
+	 * @param batch the {@link CounterBatch} if there is no aggregator
+	 * @param starts the bucket starts of the event's time, by granularity
+	 * @param value the event's value for means, deviations and variances
+	 * @param only the only granularity to be written, or {@code null} to
+	 *            write all the stored ones
+	 */
+	static void add(String name,
+	                CounterProfile profile,
+	                CounterAggregator aggregator,
+	                CounterBatch batch,
+	                long[] starts,
+	                Long value,
+	                TimeGranularity only) {
+		for (TimeGranularity granularity : profile.getGranularities()) {
+			if (only != null && granularity != only) continue;
+			long time = starts[granularity.ordinal()];
+			for (ValueType type : profile.getTypes()) {
+				switch (type) {
+				case COUNTS:
+					update(name, aggregator, batch, type, granularity, time, 1L);
+					break;
+				case SUMS:
+					if (value != null) update(name, aggregator, batch, type, granularity, time, value);
+					break;
+				case SQUARES:
+					if (value != null) update(name, aggregator, batch, type, granularity, time, value * value);
+					break;
+				}
+			}
+		}
 	}
 	
-	private Update update(ValueType type, TimeGranularity granularity, Date date, Long value) {
-		Update update = QueryBuilder.update(cfName);
-		update.setConsistencyLevel(ConsistencyLevel.QUORUM);
-		update.where(QueryBuilder.eq("name", name));
-		update.where(QueryBuilder.eq("type", type.getCode()));
-		update.where(QueryBuilder.eq("granularity", mapTimeGranularityName(granularity)));
-		update.where(QueryBuilder.eq("time", normalizeDate(granularity, date)));
-		update.with(QueryBuilder.incr("value", value));
-		return update;
+	private static void update(String name,
+	                           CounterAggregator aggregator,
+	                           CounterBatch batch,
+	                           ValueType type,
+	                           TimeGranularity granularity,
+	                           long time,
+	                           long value) {
+		if (aggregator == null) {
+			batch.add(name, type, granularity, time, value);
+		} else {
+			aggregator.add(new CounterCell(name, type, granularity, time), value);
+		}
+	}
+
+	/**
+	 * Records the specified value in the histograms of this for the specified
+	 * date, buffering it until the next flush.
+	 * 
+	 * The value is recorded for all the granularities of the
+	 * {@link CounterProfile} of this.
+	 * 
+	 * @param date the event's date
+	 * @param value the event's non negative value, such as a latency
+	 * @throws IllegalStateException if histograms are not enabled in the owner
+	 *             {@link CounterService}
+	 */
+	public void recordValue(Date date, long value) {
+		getHistograms().record(name, profile, date.getTime(), value);
+	}
+
+	/**
+	 * Returns the histogram of the values of this recorded within the
+	 * specified time range, merging the histograms of all its buckets.
+	 * 
+	 * @param granularity the {@link TimeGranularity} whose buckets are merged
+	 * @param start the inclusive range start, which is rounded down to the
+	 *            start of its bucket
+	 * @param finish the inclusive range end
+	 * @return the merged {@link Histogram}
+	 * @throws IllegalArgumentException if the requested granularity can't be
+	 *             derived from the stored ones
+	 */
+	public Histogram getHistogram(TimeGranularity granularity, Date start, Date finish) {
+		TimeGranularity source = profile.getSource(granularity);
+		if (source == null) {
+			throw new IllegalArgumentException("Granularity " + granularity + " is not stored by " + profile);
+		}
+		TimeBucketer bucketer = service.getBucketer();
+		long from = bucketer.getStart(granularity, start.getTime());
+		long to = finish.getTime();
+		if (source != granularity) {
+			long next = bucketer.getNext(granularity, bucketer.getStart(granularity, to));
+			to = next == Long.MAX_VALUE ? next : next - 1;
+		}
+		return getHistograms().read(name, source, from, to);
+	}
+
+	private CounterHistograms getHistograms() {
+		CounterHistograms histograms = service.getHistograms();
+		if (histograms == null) {
+			throw new IllegalStateException("Histograms are not enabled");
+		}
+		return histograms;
+	}
+
+	/**
+	 * Adds the specified item to the distinct items of this for the specified
+	 * date, buffering it until the next flush.
+	 * 
+	 * The item is added for all the granularities of the
+	 * {@link CounterProfile} of this.
+	 * 
+	 * @param date the event's date
+	 * @param item the item, such as a user id
+	 * @throws IllegalStateException if distinct counting is not enabled in
+	 *             the owner {@link CounterService}
+	 */
+	public void addDistinct(Date date, String item) {
+		if (item == null) {
+			throw new IllegalArgumentException("A not null item is required");
+		}
+		getDistincts().add(name, profile, date.getTime(), item);
+	}
+
+	/**
+	 * Returns the estimator of the distinct items of this added within the
+	 * specified time range, merging the estimators of all its buckets.
+	 * 
+	 * @param granularity the {@link TimeGranularity} whose buckets are merged
+	 * @param start the inclusive range start, which is rounded down to the
+	 *            start of its bucket
+	 * @param finish the inclusive range end
+	 * @return the merged {@link HyperLogLog}
+	 * @throws IllegalArgumentException if the requested granularity can't be
+	 *             derived from the stored ones
+	 */
+	public HyperLogLog getDistinct(TimeGranularity granularity, Date start, Date finish) {
+		TimeGranularity source = profile.getSource(granularity);
+		if (source == null) {
+			throw new IllegalArgumentException("Granularity " + granularity + " is not stored by " + profile);
+		}
+		TimeBucketer bucketer = service.getBucketer();
+		long from = bucketer.getStart(granularity, start.getTime());
+		long to = finish.getTime();
+		if (source != granularity) {
+			long next = bucketer.getNext(granularity, bucketer.getStart(granularity, to));
+			to = next == Long.MAX_VALUE ? next : next - 1;
+		}
+		return getDistincts().read(name, source, from, to);
+	}
+
+	private CounterDistincts getDistincts() {
+		CounterDistincts distincts = service.getDistincts();
+		if (distincts == null) {
+			throw new IllegalStateException("Distinct counting is not enabled");
+		}
+		return distincts;
+	}
+
+	/**
+	 * Starts tracking the in-memory rates of the updates of this, from now
+	 * on.
+	 * 
+	 * @return this
+	 * @throws IllegalStateException if rates are not enabled in the owner
+	 *             {@link CounterService}
+	 */
+	public Counter trackRates() {
+		getRates().track(name);
+		return this;
+	}
+
+	/**
+	 * Returns the updates per second of this in this node over the specified
+	 * last seconds, without reading the database.
+	 * 
+	 * @param seconds the window in seconds, up to
+	 *            {@link CounterRates#MAX_SECONDS}
+	 * @return the updates per second
+	 * @throws IllegalStateException if the rates of this are not tracked
+	 */
+	public double getRate(int seconds) {
+		return getRates().getRate(name, seconds);
+	}
+
+	/**
+	 * Returns the mean value of the updates of this in this node over the
+	 * specified last seconds, without reading the database.
+	 * 
+	 * @param seconds the window in seconds, up to
+	 *            {@link CounterRates#MAX_SECONDS}
+	 * @return the mean value, or zero if there are no updates
+	 * @throws IllegalStateException if the rates of this are not tracked
+	 */
+	public double getRecentMean(int seconds) {
+		return getRates().getMean(name, seconds);
+	}
+
+	/**
+	 * Returns the updates per second of this in all the cluster over the
+	 * specified last seconds, without reading the database.
+	 * 
+	 * @param seconds the window in seconds, up to
+	 *            {@link CounterRates#MAX_SECONDS}
+	 * @return the updates per second
+	 * @throws IllegalStateException if the rates of this are not tracked or
+	 *             cluster wide rates are not enabled
+	 */
+	public double getClusterRate(int seconds) {
+		return getRates().getClusterRate(name, seconds);
+	}
+
+	/**
+	 * Returns the mean value of the updates of this in all the cluster over
+	 * the specified last seconds, without reading the database.
+	 * 
+	 * @param seconds the window in seconds, up to
+	 *            {@link CounterRates#MAX_SECONDS}
+	 * @return the mean value, or zero if there are no updates
+	 * @throws IllegalStateException if the rates of this are not tracked or
+	 *             cluster wide rates are not enabled
+	 */
+	public double getClusterRecentMean(int seconds) {
+		return getRates().getClusterMean(name, seconds);
+	}
+
+	private CounterRates getRates() {
+		CounterRates rates = service.getRates();
+		if (rates == null) {
+			throw new IllegalStateException("Rates are not enabled");
+		}
+		return rates;
 	}
 
 	/**
@@ -124,237 +458,141 @@ public class Counter {
 	 * @param transaction the atomic {@link Transaction} to be used
 	 */
 	public void delete() {
-		Delete delete = QueryBuilder.delete().from(cfName);
-		delete.setConsistencyLevel(ConsistencyLevel.QUORUM);
-		delete.where(QueryBuilder.eq("name", name));
-		session.execute(delete);
-	}
-
-//	/**
-//	 * Get the both column families row key for this node.
-//	 * 
-//	 * @return the both column families row key this node
-//	 */
-//	private String getRowKey() {
-//		return name;
-//	}
-//
-//	/**
-//	 * Get the counter values column famliy's column name for the specified
-//	 * {@link ValueType}, {@link TimeGranularity} and time..
-//	 * 
-//	 * @param valueType the {@link ValueType}
-//	 * @param granularity the {@link TimeGranularity}
-//	 * @param date the time expressed in milliseconds
-//	 * @param normalize if the specified time must be normalized
-//	 * @return the counter values column famliy's column name for the specified
-//	 *         {@link ValueType}, {@link TimeGranularity} and time
-//	 */
-//	private Composite getColumnName(ValueType valueType, TimeGranularity granularity, Date date, boolean normalize) {
-//		Composite columnName = new Composite();
-//		columnName.add(valueType.getCode());
-//		columnName.add(mapTimeGranularityName(granularity));
-//		columnName.addComponent(normalize ? normalizeDate(granularity, date) : date, das);
-//		return columnName;
-//	}
-//
-//	/*
-//	 * (non-Javadoc)
-//	 * 
-//	 * @see
-//	 * com.g4m3.platform.analytics.Counter#getStats(com.g4m3.platform.analytics
-//	 * .Counter.StatType, com.g4m3.platform.analytics.Counter.TimeGranularity,
-//	 * java.util.Date, java.util.Date)
-//	 */
-//	@Override
-//	public Map<Date, Double> getStats(StatType stat, TimeGranularity granularity, Date start, Date finish) {
-//		switch (stat) {
-//		case COUNTS:
-//			return getCounts(granularity, start, finish);
-//		case SUMS:
-//			return getSums(granularity, start, finish);
-//		case SQUARES:
-//			return getSquares(granularity, start, finish);
-//		case MEANS:
-//			return getMeans(granularity, start, finish);
-//		case DEVIATIONS:
-//			return getDeviations(granularity, start, finish);
-//		case VARIANCES:
-//			return getVariances(granularity, start, finish);
-//		default:
-//			throw new RuntimeException();
-//		}
-//	}
-//
-//	private Map<Date, Double> getCounts(TimeGranularity granularity, Date start, Date finish) {
-//		return queryValues(ValueType.COUNTS, granularity, start, finish);
-//	}
-//
-//	private Map<Date, Double> getSums(TimeGranularity granularity, Date start, Date finish) {
-//		return queryValues(ValueType.SUMS, granularity, start, finish);
-//	}
-//
-//	private Map<Date, Double> getSquares(TimeGranularity granularity, Date start, Date finish) {
-//		return queryValues(ValueType.SQUARES, granularity, start, finish);
-//	}
-//
-//	private Map<Date, Double> getMeans(TimeGranularity granularity, Date start, Date finish) {
-//		Map<Date, Double> counts = getCounts(granularity, start, finish);
-//		Map<Date, Double> sums = getSums(granularity, start, finish);
-//		Map<Date, Double> means = new HashMap<Date, Double>(counts.size());
-//		for (Date time : counts.keySet()) {
-//			double count = counts.get(time);
-//			double sum = sums.get(time);
-//			double mean = sum / count;
-//			means.put(time, mean);
-//		}
-//		return means;
-//	}
-//
-//	private Map<Date, Double> getDeviations(TimeGranularity granularity, Date start, Date finish) {
-//		Map<Date, Double> counts = getCounts(granularity, start, finish);
-//		Map<Date, Double> sums = getSums(granularity, start, finish);
-//		Map<Date, Double> squares = getSquares(granularity, start, finish);
-//		Map<Date, Double> deviations = new HashMap<Date, Double>(counts.size());
-//		for (Date time : counts.keySet()) {
-//			double count = counts.get(time);
-//			double sum = sums.get(time);
-//			double square = squares.get(time);
-//			double deviation = 0.0;
-//			if (count > 1) {
-//				deviation = Math.sqrt((square - sum * sum / count) / (count - 1));
-//			}
-//			deviations.put(time, deviation);
-//		}
-//		return deviations;
-//	}
-//
-//	private Map<Date, Double> getVariances(TimeGranularity granularity, Date start, Date finish) {
-//		Map<Date, Double> deviations = getDeviations(granularity, start, finish);
-//		Map<Date, Double> variances = new HashMap<Date, Double>(deviations.size());
-//		for (Date time : deviations.keySet()) {
-//			double deviation = deviations.get(time);
-//			double variance = deviation * deviation;
-//			variances.put(time, variance);
-//		}
-//		return variances;
-//
-//	}
-//
-//	private Map<Date, Double> queryValues(ValueType valueType, TimeGranularity granularity, Date start, Date finish) {
-//
-//		// Build row key
-//		String rowKey = getRowKey();
-//
-//		// Build range column names
-//		Composite startColName = getColumnName(valueType, granularity, start, true);
-//		Composite finishColName = getColumnName(valueType, granularity, finish, false);
-//
-//		// Setup query
-//		SliceCounterQuery<String, Composite> query = HFactory.createCounterSliceQuery(keyspace, ss, cs);
-//		query.setKey(rowKey);
-//		query.setColumnFamily(cfName);
-//		query.setRange(startColName, finishColName, false, 1000);
-//
-//		// Run query
-//		QueryResult<CounterSlice<Composite>> queryResult = query.execute();
-//
-//		// Parse query
-//		CounterSlice<Composite> counterSlice = queryResult.get();
-//		List<HCounterColumn<Composite>> columns = counterSlice.getColumns();
-//		Map<Date, Double> result = new HashMap<Date, Double>(columns.size());
-//		for (HCounterColumn<Composite> column : columns) {
-//			Composite columnName = column.getName();
-//			Date counterDate = columnName.get(2, das);
-//			Long counterValue = column.getValue();
-//			result.put(counterDate, counterValue.doubleValue());
-//		}
-//
-//		// Return result
-//		return result;
-//	}
-//
-//	/*
-//	 * (non-Javadoc)
-//	 * 
-//	 * @see com.g4m3.platform.analytics.Counter#toString()
-//	 */
-//	@Override
-//	public String toString() {
-//		StringBuilder builder = new StringBuilder();
-//		builder.append(name);
-//		return builder.toString();
-//	}
+		CounterTable table = service.getTable();
+		if (table.isPartitioned()) {
+			deletePartitions(table);
+		} else {
+			BoundStatement delete = service.getStatementCache().bind(table.getDeleteQuery(), name);
+			delete.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+			service.getSession().execute(delete);
+		}
+		CounterCache cache = service.getCache();
+		if (cache != null) cache.invalidate(name);
+	}
+
+	/**
+	 * Deletes all the partitions of this from the origin of the time
+	 * partitioned column family to the current time.
+	 */
+	private void deletePartitions(CounterTable table) {
+		List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>();
+		for (TimeGranularity granularity : TimeGranularity.values()) {
+			long[] buckets = table.getBuckets(granularity, Long.MIN_VALUE, Long.MAX_VALUE, service.getBucketer());
+			for (ValueType type : ValueType.values()) {
+				for (long bucket : buckets) {
+					Object[] key = table.getPartitionKey(name, type, granularity, bucket, 0);
+					BoundStatement delete = service.getStatementCache().bind(table.getDeleteQuery(), key);
+					delete.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+					futures.add(service.getSession().executeAsync(delete));
+				}
+			}
+		}
+		for (ResultSetFuture future : futures) {
+			future.getUninterruptibly();
+		}
+	}
+
+	/**
+	 * Returns the values of this for the specified {@link TimeGranularity}
+	 * and time range.
+	 * 
+	 * If the requested granularity is not stored by the {@link CounterProfile}
+	 * of this then it is derived from the coarsest stored granularity finer
+	 * than it.
+	 * 
+	 * If the owner {@link CounterService} has caching enabled then the closed
+	 * buckets are served from its {@link CounterCache}.
+	 * 
+	 * The counts, sums and squares are fetched concurrently, and means,
+	 * deviations and variances can be derived from the returned
+	 * {@link CounterSeries} with {@link CounterSeries#getStats(StatType)}.
+	 * 
+	 * @param granularity the {@link TimeGranularity}
+	 * @param start the inclusive range start, which is rounded down to the
+	 *            start of its bucket
+	 * @param finish the inclusive range end
+	 * @return the {@link CounterSeries} of the buckets within the range
+	 * @throws IllegalArgumentException if the requested granularity can't be
+	 *             derived from the stored ones
+	 */
+	public CounterSeries getSeries(TimeGranularity granularity, Date start, Date finish) {
+		TimeGranularity source = profile.getSource(granularity);
+		if (source == null) {
+			throw new IllegalArgumentException("Granularity " + granularity + " is not stored by " + profile);
+		}
+		TimeBucketer bucketer = service.getBucketer();
+		long from = bucketer.getStart(granularity, start.getTime());
+		long to = finish.getTime();
+		if (source == granularity) {
+			return read(source, from, to);
+		}
+
+		// Derive the requested granularity from a finer one, reading whole buckets
+		long next = bucketer.getNext(granularity, bucketer.getStart(granularity, to));
+		to = next == Long.MAX_VALUE ? next : next - 1;
+		return read(source, from, to).rollup(granularity, bucketer);
+	}
+
+	private CounterSeries read(TimeGranularity granularity, long from, long to) {
+		CounterCache cache = service.getCache();
+		boolean values = profile.stores(ValueType.SUMS) || profile.stores(ValueType.SQUARES);
+		if (cache != null) {
+			return cache.read(name, granularity, from, to, values);
+		}
+		return service.getReader().read(name, granularity, from, to, values);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
 
 	/**
 	 * Enumerated type representing the type of a value.
 	 */
-	private static enum ValueType {
+	public static enum ValueType {
 
-		COUNTS("counts"), SUMS("sums"), SQUARES("squares");
+		COUNTS("counts", 0), SUMS("sums", 1), SQUARES("squares", 2);
 
 		private String code;
 
-		private ValueType(String code) {
+		/** The stable identifier in the binary formats, which must never change */
+		private byte id;
+
+		private ValueType(String code, int id) {
 			this.code = code;
+			this.id = (byte) id;
 		}
 
-		private String getCode() {
+		String getCode() {
 			return code;
 		}
-	}
 
-	private String mapTimeGranularityName(TimeGranularity granularity) {
-		switch (granularity) {
-		case ALL:
-			return "all";
-		case MINUTELY:
-			return "minutelly";
-		case HOURLY:
-			return "hourly";
-		case DAILY:
-			return "daily";
-		case MONTHLY:
-			return "monthly";
-		case YEARLY:
-			return "yearly";
-		default:
-			throw new RuntimeException();
+		byte getId() {
+			return id;
 		}
-	}
 
-	private Date normalizeDate(TimeGranularity granularity, Date date) {
-		DateTime dateTime = new DateTime(date);
-		switch (granularity) {
-		case MINUTELY:
-			return new DateTime(dateTime.getYear(),
-			                    dateTime.getMonthOfYear(),
-			                    dateTime.getDayOfMonth(),
-			                    dateTime.getHourOfDay(),
-			                    dateTime.getMinuteOfHour()).toDate();
-		case HOURLY:
-			return new DateTime(dateTime.getYear(),
-			                    dateTime.getMonthOfYear(),
-			                    dateTime.getDayOfMonth(),
-			                    dateTime.getHourOfDay(),
-			                    0).toDate();
-		case DAILY:
-			return new DateTime(dateTime.getYear(), dateTime.getMonthOfYear(), dateTime.getDayOfMonth(), 0, 0).toDate();
-		case MONTHLY:
-			return new DateTime(dateTime.getYear(), dateTime.getMonthOfYear(), 1, 0, 0).toDate();
-		case YEARLY:
-			return new DateTime(dateTime.getYear(), 1, 1, 0, 0).toDate();
-		case ALL:
-			return new DateTime(0).toDate();
-		default:
-			throw new RuntimeException();
+		/**
+		 * Returns the type of the specified identifier, or {@code null} if
+		 * unknown.
+		 */
+		static ValueType fromId(byte id) {
+			for (ValueType type : values()) {
+				if (type.id == id) return type;
+			}
+			return null;
 		}
 	}
 
 	/**
 	 * Enumerated type representing the type of a statistical indicator.
 	 */
-	static enum StatType {
+	public static enum StatType {
 		COUNTS, SUMS, SQUARES, MEANS, DEVIATIONS, VARIANCES;
 	}
 
@@ -363,8 +601,39 @@ public class Counter {
 	 * Enumerated type representing a time's granularity.
 	 * 
 	 */
-	static enum TimeGranularity {
-		ALL, MINUTELY, HOURLY, DAILY, MONTHLY, YEARLY;
+	public static enum TimeGranularity {
+
+		ALL("all", 0), MINUTELY("minutelly", 1), HOURLY("hourly", 2), DAILY("daily", 3), MONTHLY("monthly", 4),
+		YEARLY("yearly", 5);
+
+		private String code;
+
+		/** The stable identifier in the binary formats, which must never change */
+		private byte id;
+
+		private TimeGranularity(String code, int id) {
+			this.code = code;
+			this.id = (byte) id;
+		}
+
+		String getCode() {
+			return code;
+		}
+
+		byte getId() {
+			return id;
+		}
+
+		/**
+		 * Returns the granularity of the specified identifier, or {@code null}
+		 * if unknown.
+		 */
+		static TimeGranularity fromId(byte id) {
+			for (TimeGranularity granularity : values()) {
+				if (granularity.id == id) return granularity;
+			}
+			return null;
+		}
 	}
 
 }
@@ -0,0 +1,388 @@
+package com.sais.utils.counting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-combining buffer for {@link Counter} increments.
+ *
+ * Increments are accumulated in memory by {@link CounterCell} and the combined
+ * deltas are written to the database when the number of buffered cells
+ * reaches a limit or when the flush interval expires, whatever happens first.
+ * This way, any number of updates of the same counter within the same time
+ * bucket are written as a single increment.
+ *
+ * If a {@link CounterJournal} is attached, each increment is appended to it
+ * before being buffered, and its segments are acknowledged after each
+ * successful periodic flush.
+ *
+ * If a {@link CounterClusterAggregation} is attached, the increments of the
+ * counters owned by other cluster members are sent to them on each flush
+ * instead of being written.
+ *
+ * @author andres
+ *
+ */
+public class CounterAggregator {
+
+	/** The marker value of an accumulator removed from the buffer */
+	private static final long RETIRED = Long.MIN_VALUE;
+
+	/** The maximum number of increments per written batch */
+	private static final int BATCH_SIZE = 100;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final CounterService service;
+	private final int maxCells;
+	private final ConcurrentHashMap<CounterCell, AtomicLong> cells;
+	private final AtomicInteger numCells = new AtomicInteger();
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final ScheduledExecutorService scheduler;
+	private volatile CounterJournal journal;
+	private volatile CounterClusterAggregation cluster;
+
+	/* Metrics */
+	private final AtomicLong receivedIncrements = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+	private final AtomicLong writtenIncrements = new AtomicLong();
+	private volatile long lastFlushTime;
+	private volatile long lastFlushDuration;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param maxCells the maximum number of buffered cells before flushing
+	 * @param flushIntervalMillis the maximum time in milliseconds between
+	 *            flushes
+	 */
+	CounterAggregator(CounterService service, int maxCells, long flushIntervalMillis) {
+		if (maxCells <= 0) {
+			throw new IllegalArgumentException("The maximum number of cells must be greater than zero");
+		}
+		if (flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("The flush interval must be greater than zero");
+		}
+		this.service = service;
+		this.maxCells = maxCells;
+		this.cells = new ConcurrentHashMap<CounterCell, AtomicLong>(Math.min(maxCells, 1 << 16));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-aggregator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Throwable t) {
+					logger.error("Unexpected error flushing counters", t);
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the specified increment to the buffer.
+	 *
+	 * If the buffer is full then it is flushed by the calling thread.
+	 *
+	 * @param cell the {@link CounterCell} to be incremented
+	 * @param delta the increment
+	 */
+	void add(CounterCell cell, long delta) {
+		add(cell, delta, true);
+	}
+
+	/**
+	 * Adds the specified increment forwarded by another cluster member to the
+	 * buffer, without flushing it even if it is full, since the sender is
+	 * waiting for this.
+	 *
+	 * @param cell the {@link CounterCell} to be incremented
+	 * @param delta the increment
+	 */
+	void receive(CounterCell cell, long delta) {
+		add(cell, delta, false);
+	}
+
+	private void add(CounterCell cell, long delta, boolean bounded) {
+		receivedIncrements.incrementAndGet();
+		CounterJournal current = journal;
+		if (current == null) {
+			accumulate(cell, delta, bounded);
+			return;
+		}
+		Lock appendLock = current.getAppendLock();
+		appendLock.lock();
+		try {
+			current.append(cell, delta);
+			accumulate(cell, delta, bounded);
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the specified increment replayed from a {@link CounterJournal} to
+	 * the buffer, without journaling it again.
+	 *
+	 * @param cell the {@link CounterCell} to be incremented
+	 * @param delta the increment
+	 */
+	void replay(CounterCell cell, long delta) {
+		receivedIncrements.incrementAndGet();
+		accumulate(cell, delta, true);
+	}
+
+	/**
+	 * Attaches the specified journal, which must have already replayed its
+	 * segments into this.
+	 *
+	 * @param journal the {@link CounterJournal}
+	 */
+	void setJournal(CounterJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Attaches the specified cluster aggregation, or detaches the current one
+	 * if it is {@code null}.
+	 *
+	 * @param cluster the {@link CounterClusterAggregation}, or {@code null}
+	 */
+	void setCluster(CounterClusterAggregation cluster) {
+		this.cluster = cluster;
+	}
+
+	private void accumulate(CounterCell cell, long delta, boolean bounded) {
+		for (;;) {
+			AtomicLong accumulator = cells.get(cell);
+			if (accumulator == null) {
+				if (bounded && numCells.get() >= maxCells) {
+					flush(true);
+					continue;
+				}
+				AtomicLong created = new AtomicLong(delta);
+				accumulator = cells.putIfAbsent(cell, created);
+				if (accumulator == null) {
+					numCells.incrementAndGet();
+					return;
+				}
+			}
+			long current = accumulator.get();
+			if (current == RETIRED) {
+				// Help the flusher to remove the retired accumulator
+				if (cells.remove(cell, accumulator)) numCells.decrementAndGet();
+			} else if (accumulator.compareAndSet(current, current + delta)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes all the buffered increments to the database.
+	 *
+	 * Accumulators that have not received any increment since the previous
+	 * flush are removed from the buffer. Increments whose writing fails are
+	 * put back into the buffer to be retried in the next flush.
+	 *
+	 * If a {@link CounterJournal} is attached, a new segment is started before
+	 * flushing, and the previous ones are acknowledged if all the writes
+	 * succeed.
+	 */
+	public void flush() {
+		CounterJournal current = journal;
+		if (current == null) {
+			flush(false);
+			return;
+		}
+		// Rotate before taking the flush lock, since a full buffer is flushed
+		// by writers holding the append lock
+		long marker = current.rotate();
+		if (flush(false)) current.acknowledge(marker);
+	}
+
+	/**
+	 * Writes all the buffered increments to the database.
+	 *
+	 * @param evict if all the accumulators must be removed from the buffer,
+	 *            instead of only the idle ones
+	 * @return {@code true} if all the writes succeeded, {@code false}
+	 *         otherwise
+	 */
+	private boolean flush(boolean evict) {
+		flushLock.lock();
+		try {
+			long start = System.currentTimeMillis();
+			List<CounterCell> batchCells = new ArrayList<CounterCell>(BATCH_SIZE);
+			long[] batchDeltas = new long[BATCH_SIZE];
+			boolean failed = false;
+			CounterClusterAggregation currentCluster = cluster;
+			CounterClusterAggregation.Forwarding forwarding = currentCluster == null
+			                                                  ? null
+			                                                  : currentCluster.startForwarding();
+			for (Map.Entry<CounterCell, AtomicLong> entry : cells.entrySet()) {
+				CounterCell cell = entry.getKey();
+				AtomicLong accumulator = entry.getValue();
+				long delta;
+				if (evict) {
+					delta = accumulator.getAndSet(RETIRED);
+					if (cells.remove(cell, accumulator)) numCells.decrementAndGet();
+				} else {
+					delta = accumulator.getAndSet(0);
+					// Retire idle accumulators to keep the buffer bounded
+					if (delta == 0 && accumulator.compareAndSet(0, RETIRED) && cells.remove(cell, accumulator)) {
+						numCells.decrementAndGet();
+					}
+				}
+				if (delta == 0 || delta == RETIRED) continue;
+				if (forwarding != null && forwarding.add(cell, delta)) continue;
+				batchDeltas[batchCells.size()] = delta;
+				batchCells.add(cell);
+				if (batchCells.size() == BATCH_SIZE) {
+					failed |= !write(batchCells, batchDeltas);
+					batchCells.clear();
+				}
+			}
+			if (forwarding != null) {
+				// Write the increments that couldn't be delivered to their owners
+				for (Map.Entry<CounterCell, Long> entry : forwarding.send().entrySet()) {
+					batchDeltas[batchCells.size()] = entry.getValue();
+					batchCells.add(entry.getKey());
+					if (batchCells.size() == BATCH_SIZE) {
+						failed |= !write(batchCells, batchDeltas);
+						batchCells.clear();
+					}
+				}
+			}
+			failed |= !write(batchCells, batchDeltas);
+			flushes.incrementAndGet();
+			if (failed) failedFlushes.incrementAndGet();
+			lastFlushTime = start;
+			lastFlushDuration = System.currentTimeMillis() - start;
+			return !failed;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private boolean write(List<CounterCell> batchCells, long[] batchDeltas) {
+		if (batchCells.isEmpty()) return true;
+		CounterBatch batch = new CounterBatch(service, batchCells.size());
+		for (int i = 0; i < batchCells.size(); i++) {
+			batch.add(batchCells.get(i), batchDeltas[i]);
+		}
+		try {
+			batch.execute();
+			writtenIncrements.addAndGet(batchCells.size());
+			return true;
+		} catch (RuntimeException e) {
+			logger.error("Error flushing " + batchCells.size() + " counter increments, they will be retried", e);
+			for (int i = 0; i < batchCells.size(); i++) {
+				accumulate(batchCells.get(i), batchDeltas[i], false);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the periodic flushing and writes all the buffered increments.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Returns the number of cells currently buffered.
+	 *
+	 * @return the number of cells currently buffered
+	 */
+	public int getBufferedCells() {
+		return numCells.get();
+	}
+
+	/**
+	 * Returns the total number of increments received.
+	 *
+	 * @return the total number of increments received
+	 */
+	public long getReceivedIncrements() {
+		return receivedIncrements.get();
+	}
+
+	/**
+	 * Returns the total number of combined increments written to the
+	 * database.
+	 *
+	 * @return the total number of combined increments written to the database
+	 */
+	public long getWrittenIncrements() {
+		return writtenIncrements.get();
+	}
+
+	/**
+	 * Returns the total number of flushes.
+	 *
+	 * @return the total number of flushes
+	 */
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * Returns the number of flushes with at least one failed write.
+	 *
+	 * @return the number of flushes with at least one failed write
+	 */
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * Returns the start time in milliseconds of the last flush.
+	 *
+	 * @return the start time in milliseconds of the last flush
+	 */
+	public long getLastFlushTime() {
+		return lastFlushTime;
+	}
+
+	/**
+	 * Returns the duration in milliseconds of the last flush.
+	 *
+	 * @return the duration in milliseconds of the last flush
+	 */
+	public long getLastFlushDuration() {
+		return lastFlushDuration;
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.sais.utils.counting;
+
+import java.util.Arrays;
+
+import com.datastax.driver.core.BoundStatement;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Batch of counter increments to be written in a single request.
+ *
+ * The batch is sent as a prepared statement whose shape only depends on the
+ * number of increments, so the query is parsed once by Cassandra and then
+ * only the values are bound.
+ *
+ * @author andres
+ *
+ */
+class CounterBatch {
+
+	private final CounterService service;
+	private final CounterTable table;
+	private final int valuesPerIncrement;
+	private Object[] values;
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param capacity the expected number of increments
+	 */
+	CounterBatch(CounterService service, int capacity) {
+		this.service = service;
+		this.table = service.getTable();
+		this.valuesPerIncrement = table.getValuesPerIncrement();
+		this.values = new Object[Math.max(1, capacity) * valuesPerIncrement];
+	}
+
+	/**
+	 * Adds the specified increment to this batch.
+	 *
+	 * @param cell the {@link CounterCell} to be incremented
+	 * @param delta the increment
+	 */
+	void add(CounterCell cell, long delta) {
+		add(cell.getName(), cell.getType(), cell.getGranularity(), cell.getTime(), delta);
+	}
+
+	/**
+	 * Adds the specified increment to this batch, without building its
+	 * {@link CounterCell}.
+	 *
+	 * @param name the counter's name
+	 * @param type the {@link ValueType}
+	 * @param granularity the {@link TimeGranularity}
+	 * @param time the normalized time
+	 * @param delta the increment
+	 */
+	void add(String name, ValueType type, TimeGranularity granularity, long time, long delta) {
+		if (size == CounterTable.MAX_BATCH_SIZE) {
+			throw new IllegalStateException("Counter batch is full");
+		}
+		int i = size * valuesPerIncrement;
+		if (i == values.length) {
+			values = Arrays.copyOf(values, Math.min(values.length * 2, CounterTable.MAX_BATCH_SIZE * valuesPerIncrement));
+		}
+		values[i++] = delta;
+		values[i++] = name;
+		values[i++] = type.getCode();
+		values[i++] = granularity.getCode();
+		if (table.isPartitioned()) {
+			values[i++] = table.getBucket(granularity, time, service.getBucketer());
+		}
+		values[i] = time;
+		size++;
+	}
+
+	/**
+	 * Returns the number of increments in this batch.
+	 *
+	 * @return the number of increments in this batch
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the {@link BoundStatement} writing this batch.
+	 *
+	 * @return the {@link BoundStatement} writing this batch
+	 */
+	BoundStatement toStatement() {
+		String query = table.getIncrementBatch(size);
+		int numValues = size * valuesPerIncrement;
+		Object[] bound = numValues == values.length ? values : Arrays.copyOf(values, numValues);
+		BoundStatement statement = service.getStatementCache().bind(query, bound);
+		statement.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+		return statement;
+	}
+
+	/**
+	 * Writes this batch.
+	 */
+	void execute() {
+		if (size > 0) service.getSession().execute(toStatement());
+	}
+
+}
@@ -0,0 +1,298 @@
+package com.sais.utils.counting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Read cache of {@link CounterSeries}.
+ *
+ * Once a time bucket is closed its values don't change anymore, so closed
+ * buckets are cached until they are evicted in least recently used order. The
+ * still open buckets are cached only for a short time to live. A range query
+ * is served from the cached buckets, and only the missing tail of the range is
+ * read from the database.
+ *
+ * A bucket is considered closed once its end is older than the close delay,
+ * which should cover any buffering of the increments, such as the
+ * {@link CounterAggregator}'s flush interval.
+ *
+ * @author andres
+ *
+ */
+public class CounterCache {
+
+	private final CounterService service;
+	private final long maxBuckets;
+	private final long openBucketTtl;
+	private final long closeDelay;
+
+	/** The cached series in access order, guarded by itself */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long cachedBuckets;
+
+	/* Metrics */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong partialHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param maxBuckets the maximum number of cached buckets
+	 * @param openBucketTtlMillis the time to live in milliseconds of the
+	 *            cached open buckets
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            bucket is considered closed
+	 */
+	CounterCache(CounterService service, long maxBuckets, long openBucketTtlMillis, long closeDelayMillis) {
+		if (maxBuckets <= 0) {
+			throw new IllegalArgumentException("The maximum number of buckets must be greater than zero");
+		}
+		if (openBucketTtlMillis < 0 || closeDelayMillis < 0) {
+			throw new IllegalArgumentException("Times can't be negative");
+		}
+		this.service = service;
+		this.maxBuckets = maxBuckets;
+		this.openBucketTtl = openBucketTtlMillis;
+		this.closeDelay = closeDelayMillis;
+	}
+
+	/**
+	 * Reads the series of the specified counter, {@link TimeGranularity} and
+	 * time range, using the cached buckets when possible.
+	 *
+	 * @param name the counter's name
+	 * @param granularity the {@link TimeGranularity}
+	 * @param from the inclusive start of the range in milliseconds, already
+	 *            normalized to the start of its bucket
+	 * @param to the inclusive end of the range in milliseconds
+	 * @param values if sums and squares must be read besides counts
+	 * @return the read {@link CounterSeries}
+	 */
+	CounterSeries read(String name, TimeGranularity granularity, long from, long to, boolean values) {
+		long now = System.currentTimeMillis();
+		long closedBoundary = service.getBucketer().getStart(granularity, now - closeDelay);
+		Key key = new Key(name, granularity);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+
+		// Read the whole range if it is not covered by the cache
+		if (entry == null || from < entry.from) {
+			misses.incrementAndGet();
+			CounterSeries fetched = service.getReader().read(name, granularity, from, to, values);
+			put(key, entry, new Entry(from, fetched.slice(from, from - 1), Long.MIN_VALUE, 0)
+			                .extend(fetched, closedBoundary, to, now));
+			return fetched;
+		}
+
+		// Serve the range from the cached buckets if they are enough
+		CounterSeries closed = entry.closed.slice(from, to);
+		if (to < entry.closedUntil) {
+			hits.incrementAndGet();
+			return closed;
+		}
+		if (entry.tail != null && to <= entry.tailTo && now - entry.tailTime <= openBucketTtl) {
+			hits.incrementAndGet();
+			return closed.append(entry.tail.slice(from, to));
+		}
+
+		// Read only the tail after the cached closed buckets
+		partialHits.incrementAndGet();
+		CounterSeries fetched = service.getReader().read(name, granularity, entry.closedUntil, to, values);
+		put(key, entry, entry.extend(fetched, closedBoundary, to, now));
+		return closed.append(fetched.slice(from, to));
+	}
+
+	/**
+	 * Removes from the cache all the series of the specified counter.
+	 *
+	 * @param name the counter's name
+	 */
+	void invalidate(String name) {
+		synchronized (entries) {
+			Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Key, Entry> mapEntry = iterator.next();
+				if (mapEntry.getKey().name.equals(name)) {
+					cachedBuckets -= mapEntry.getValue().size();
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cached series.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			cachedBuckets = 0;
+		}
+	}
+
+	private void put(Key key, Entry previous, Entry entry) {
+		synchronized (entries) {
+			Entry current = entries.get(key);
+			if (current != previous && current != null && current.closedUntil > entry.closedUntil) {
+				// A concurrent read has already cached more buckets
+				return;
+			}
+			if (current != null) cachedBuckets -= current.size();
+			entries.put(key, entry);
+			cachedBuckets += entry.size();
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (cachedBuckets > maxBuckets && iterator.hasNext()) {
+				Entry eldest = iterator.next();
+				cachedBuckets -= eldest.size();
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of queries served only from the cache.
+	 *
+	 * @return the number of queries served only from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of queries served from the cache plus a read of the
+	 * missing tail.
+	 *
+	 * @return the number of queries partially served from the cache
+	 */
+	public long getPartialHits() {
+		return partialHits.get();
+	}
+
+	/**
+	 * Returns the number of queries fully read from the database.
+	 *
+	 * @return the number of queries fully read from the database
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of series evicted from the cache.
+	 *
+	 * @return the number of evicted series
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of currently cached buckets.
+	 *
+	 * @return the number of cached buckets
+	 */
+	public long getCachedBuckets() {
+		synchronized (entries) {
+			return cachedBuckets;
+		}
+	}
+
+	/**
+	 * Returns the number of currently cached series.
+	 *
+	 * @return the number of cached series
+	 */
+	public int getCachedSeries() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Cache key of a series.
+	 */
+	private static final class Key {
+
+		private final String name;
+		private final TimeGranularity granularity;
+
+		private Key(String name, TimeGranularity granularity) {
+			this.name = name;
+			this.granularity = granularity;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * name.hashCode() + granularity.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return granularity == other.granularity && name.equals(other.name);
+		}
+	}
+
+	/**
+	 * Immutable cached series, made of the closed buckets from a start time
+	 * and the latest read of the open buckets after them.
+	 */
+	private static final class Entry {
+
+		/** The start of the cached range */
+		private final long from;
+
+		/** The closed buckets starting before {@link #closedUntil} */
+		private final CounterSeries closed;
+		private final long closedUntil;
+
+		/** The open buckets from {@link #closedUntil} to {@link #tailTo} */
+		private final CounterSeries tail;
+		private final long tailTo;
+		private final long tailTime;
+
+		private Entry(long from, CounterSeries closed, long closedUntil, long tailTime) {
+			this(from, closed, closedUntil, null, Long.MIN_VALUE, tailTime);
+		}
+
+		private Entry(long from, CounterSeries closed, long closedUntil, CounterSeries tail, long tailTo, long tailTime) {
+			this.from = from;
+			this.closed = closed;
+			this.closedUntil = closedUntil;
+			this.tail = tail;
+			this.tailTo = tailTo;
+			this.tailTime = tailTime;
+		}
+
+		/**
+		 * Returns a new entry adding the specified series, read from the end of
+		 * the closed buckets of this to the specified time.
+		 */
+		private Entry extend(CounterSeries fetched, long closedBoundary, long to, long now) {
+			long start = closedUntil == Long.MIN_VALUE ? from : closedUntil;
+			long end = to == Long.MAX_VALUE ? closedBoundary : Math.min(closedBoundary, to + 1);
+			if (end <= start) {
+				return new Entry(from, closed, start, fetched.slice(start, to), to, now);
+			}
+			CounterSeries newClosed = closed.append(fetched.slice(start, end - 1));
+			CounterSeries newTail = end == closedBoundary ? fetched.slice(end, to) : null;
+			return new Entry(from, newClosed, end, newTail, newTail == null ? Long.MIN_VALUE : to, now);
+		}
+
+		private int size() {
+			return closed.size() + (tail == null ? 0 : tail.size());
+		}
+	}
+
+}
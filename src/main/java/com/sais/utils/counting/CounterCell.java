@@ -0,0 +1,80 @@
+package com.sais.utils.counting;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Class representing the address of a single counter value in the database,
+ * that is, its name, {@link ValueType}, {@link TimeGranularity} and normalized
+ * time.
+ *
+ * @author andres
+ *
+ */
+final class CounterCell {
+
+	private final String name;
+	private final ValueType type;
+	private final TimeGranularity granularity;
+	private final long time;
+	private final int hash;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name the counter's name
+	 * @param type the {@link ValueType}
+	 * @param granularity the {@link TimeGranularity}
+	 * @param time the normalized time in milliseconds
+	 */
+	CounterCell(String name, ValueType type, TimeGranularity granularity, long time) {
+		this.name = name;
+		this.type = type;
+		this.granularity = granularity;
+		this.time = time;
+		int h = name.hashCode();
+		h = 31 * h + type.hashCode();
+		h = 31 * h + granularity.hashCode();
+		h = 31 * h + (int) (time ^ (time >>> 32));
+		this.hash = h;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	ValueType getType() {
+		return type;
+	}
+
+	TimeGranularity getGranularity() {
+		return granularity;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof CounterCell)) return false;
+		CounterCell other = (CounterCell) obj;
+		return hash == other.hash
+		       && time == other.time
+		       && type == other.type
+		       && granularity == other.granularity
+		       && name.equals(other.name);
+	}
+
+	@Override
+	public String toString() {
+		return name + ":" + type.getCode() + ":" + granularity.getCode() + ":" + time;
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.sais.utils.counting;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.partition.Partition;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Cluster wide combination of the increments buffered by the
+ * {@link CounterAggregator}s of all the nodes of a Hazelcast cluster.
+ *
+ * Each counter name is owned by the cluster member owning its Hazelcast
+ * partition. When a node flushes its aggregator, the combined increments of
+ * the counters owned by other members are sent to their owners with a single
+ * distributed task per owner, instead of being written to the database, and
+ * the owners add them to their own aggregators. This way each counter cell is
+ * written by a single node, with the increments of all the cluster combined.
+ *
+ * Increments that can't be delivered, because the owner left, timed out or has
+ * no aggregation with the same name, are written directly by the sender. A
+ * task whose response is lost after being executed may thus be counted twice,
+ * which is the same guarantee of a retried counter write.
+ *
+ * @author andres
+ *
+ */
+public class CounterClusterAggregation {
+
+	/** The maximum time in milliseconds to wait for an owner */
+	private static final long FORWARD_TIMEOUT = 10000;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	/** The aggregations of this JVM by name, to be found by the received tasks */
+	private static final ConcurrentHashMap<String, CounterClusterAggregation> aggregations = new ConcurrentHashMap<String, CounterClusterAggregation>();
+
+	private final String name;
+	private final HazelcastInstance hazelcast;
+	private final CounterAggregator aggregator;
+
+	/* Metrics */
+	private final AtomicLong forwardedIncrements = new AtomicLong();
+	private final AtomicLong receivedIncrements = new AtomicLong();
+	private final AtomicLong undeliveredIncrements = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name the name shared by the aggregations of all the nodes
+	 * @param hazelcast the {@link HazelcastInstance} of the cluster
+	 * @param aggregator the local {@link CounterAggregator}
+	 */
+	CounterClusterAggregation(String name, HazelcastInstance hazelcast, CounterAggregator aggregator) {
+		if (hazelcast == null) {
+			throw new IllegalArgumentException("A not null Hazelcast instance is required");
+		}
+		this.name = name;
+		this.hazelcast = hazelcast;
+		this.aggregator = aggregator;
+		if (aggregations.putIfAbsent(name, this) != null) {
+			throw new IllegalStateException("There is already a cluster aggregation named " + name);
+		}
+	}
+
+	/**
+	 * Starts the forwarding of the increments of a flush.
+	 *
+	 * @return the new {@link Forwarding}
+	 */
+	Forwarding startForwarding() {
+		return new Forwarding();
+	}
+
+	/**
+	 * Adds the specified increments received from another node to the local
+	 * aggregator.
+	 */
+	private void receive(String[] names, byte[] types, byte[] granularities, long[] times, long[] deltas) {
+		ValueType[] valueTypes = ValueType.values();
+		TimeGranularity[] timeGranularities = TimeGranularity.values();
+		for (int i = 0; i < names.length; i++) {
+			CounterCell cell = new CounterCell(names[i], valueTypes[types[i]], timeGranularities[granularities[i]], times[i]);
+			aggregator.receive(cell, deltas[i]);
+		}
+		receivedIncrements.addAndGet(names.length);
+	}
+
+	/**
+	 * Stops receiving increments from other nodes, which will write them
+	 * directly from now on.
+	 */
+	void shutdown() {
+		aggregations.remove(name, this);
+	}
+
+	/**
+	 * Returns the name shared by the aggregations of all the nodes.
+	 *
+	 * @return the aggregation's name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the total number of increments sent to other nodes.
+	 *
+	 * @return the total number of forwarded increments
+	 */
+	public long getForwardedIncrements() {
+		return forwardedIncrements.get();
+	}
+
+	/**
+	 * Returns the total number of increments received from other nodes.
+	 *
+	 * @return the total number of received increments
+	 */
+	public long getReceivedIncrements() {
+		return receivedIncrements.get();
+	}
+
+	/**
+	 * Returns the total number of increments that couldn't be delivered to
+	 * their owners and were written directly.
+	 *
+	 * @return the total number of undelivered increments
+	 */
+	public long getUndeliveredIncrements() {
+		return undeliveredIncrements.get();
+	}
+
+	/**
+	 * The increments of a flush owned by other members, grouped by owner.
+	 */
+	class Forwarding {
+
+		private final Map<Member, Map<CounterCell, Long>> owned = new HashMap<Member, Map<CounterCell, Long>>();
+
+		private Forwarding() {
+		}
+
+		/**
+		 * Adds the specified increment if its counter is owned by another
+		 * member.
+		 *
+		 * @param cell the {@link CounterCell}
+		 * @param delta the combined increment
+		 * @return {@code true} if the increment will be forwarded,
+		 *         {@code false} if it must be written locally
+		 */
+		boolean add(CounterCell cell, long delta) {
+			Partition partition = hazelcast.getPartitionService().getPartition(cell.getName());
+			Member owner = partition.getOwner();
+			if (owner == null || owner.localMember()) return false;
+			Map<CounterCell, Long> deltas = owned.get(owner);
+			if (deltas == null) {
+				deltas = new LinkedHashMap<CounterCell, Long>();
+				owned.put(owner, deltas);
+			}
+			Long previous = deltas.get(cell);
+			deltas.put(cell, previous == null ? delta : previous + delta);
+			return true;
+		}
+
+		/**
+		 * Sends the added increments to their owners, waiting for all of
+		 * them.
+		 *
+		 * @return the increments that couldn't be delivered, to be written
+		 *         locally
+		 */
+		Map<CounterCell, Long> send() {
+			Map<CounterCell, Long> undelivered = new LinkedHashMap<CounterCell, Long>();
+			if (owned.isEmpty()) return undelivered;
+			ExecutorService executor = hazelcast.getExecutorService();
+			List<DistributedTask<Boolean>> tasks = new ArrayList<DistributedTask<Boolean>>(owned.size());
+			List<Map<CounterCell, Long>> sent = new ArrayList<Map<CounterCell, Long>>(owned.size());
+			for (Map.Entry<Member, Map<CounterCell, Long>> entry : owned.entrySet()) {
+				DistributedTask<Boolean> task = new DistributedTask<Boolean>(new Merge(name, entry.getValue()), entry.getKey());
+				try {
+					executor.execute(task);
+					tasks.add(task);
+					sent.add(entry.getValue());
+				} catch (RuntimeException e) {
+					logger.warn("Error forwarding counter increments to " + entry.getKey() + ", writing them locally", e);
+					undelivered.putAll(entry.getValue());
+				}
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				Map<CounterCell, Long> deltas = sent.get(i);
+				boolean delivered = false;
+				try {
+					delivered = Boolean.TRUE.equals(tasks.get(i).get(FORWARD_TIMEOUT, TimeUnit.MILLISECONDS));
+					if (!delivered) logger.warn("Counter increments rejected by their owner, writing them locally");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					logger.warn("Interrupted forwarding counter increments, writing them locally");
+				} catch (Exception e) {
+					logger.warn("Error forwarding counter increments, writing them locally", e);
+				}
+				if (delivered) {
+					forwardedIncrements.addAndGet(deltas.size());
+				} else {
+					undeliveredIncrements.addAndGet(deltas.size());
+					undelivered.putAll(deltas);
+				}
+			}
+			return undelivered;
+		}
+	}
+
+	/**
+	 * Task merging the increments of another node into the aggregator of the
+	 * owner, which returns {@code false} if the owner has no aggregation with
+	 * the same name.
+	 */
+	private static final class Merge implements Callable<Boolean>, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String aggregation;
+		private final String[] names;
+		private final byte[] types;
+		private final byte[] granularities;
+		private final long[] times;
+		private final long[] deltas;
+
+		private Merge(String aggregation, Map<CounterCell, Long> cells) {
+			int size = cells.size();
+			this.aggregation = aggregation;
+			this.names = new String[size];
+			this.types = new byte[size];
+			this.granularities = new byte[size];
+			this.times = new long[size];
+			this.deltas = new long[size];
+			int i = 0;
+			for (Map.Entry<CounterCell, Long> entry : cells.entrySet()) {
+				CounterCell cell = entry.getKey();
+				names[i] = cell.getName();
+				types[i] = (byte) cell.getType().ordinal();
+				granularities[i] = (byte) cell.getGranularity().ordinal();
+				times[i] = cell.getTime();
+				deltas[i] = entry.getValue();
+				i++;
+			}
+		}
+
+		@Override
+		public Boolean call() {
+			CounterClusterAggregation target = aggregations.get(aggregation);
+			if (target == null) return Boolean.FALSE;
+			target.receive(names, types, granularities, times, deltas);
+			return Boolean.TRUE;
+		}
+	}
+
+}
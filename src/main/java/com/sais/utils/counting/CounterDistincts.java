@@ -0,0 +1,491 @@
+package com.sais.utils.counting;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Buffer and store of the {@link HyperLogLog} estimators of the distinct
+ * items of the counters.
+ *
+ * Items are hashed once and merged into local estimators by counter,
+ * granularity and time bucket. Periodic flushes write the registers of the
+ * changed estimators as compact blobs, one row per bucket and writer, where
+ * each {@link CounterService} is a different writer, so the rows of a writer
+ * are just overwritten with its latest registers and no coordination between
+ * writers is needed. Reads merge the registers of all the writers and time
+ * buckets of a range, paging through the writers of each time, so the
+ * distinct items of any range are estimated with a fixed amount of memory and
+ * a bounded error. A writer identified by a stable id keeps writing the same
+ * rows after a restart, merging the registers of the open buckets stored by
+ * its previous run, so the rows of long buckets don't grow with every
+ * restart.
+ *
+ * The estimators of a time bucket are kept in memory until the bucket is
+ * closed and flushed, or until they have been flushed and idle for
+ * {@link #MAX_IDLE_TIME}, as the estimators of the open buckets of coarse
+ * granularities such as {@link TimeGranularity#ALL}. Items of an already
+ * closed or released bucket are merged with the registers stored by this
+ * writer before being written.
+ *
+ * @author andres
+ *
+ */
+public class CounterDistincts {
+
+	/** The name of the column family holding the estimators */
+	public static final String TABLE_NAME = "counter_distincts";
+
+	/** The maximum number of rows returned by a range query */
+	private static final int PAGE_SIZE = 1000;
+
+	/** The maximum number of partitions fetched concurrently per read */
+	private static final int MAX_PARTITIONS_IN_FLIGHT = 32;
+
+	/** The time in milliseconds after its last item when a flushed estimator is released */
+	private static final long MAX_IDLE_TIME = 10 * 60 * 1000L;
+
+	private static final String INSERT = "INSERT INTO " + TABLE_NAME + " "
+	                                     + "(name, granularity, bucket, time, writer, registers) VALUES (?, ?, ?, ?, ?, ?)";
+	private static final String SELECT = "SELECT registers FROM " + TABLE_NAME + " "
+	                                     + "WHERE name = ? AND granularity = ? AND bucket = ? AND time = ? AND writer = ?";
+	private static final String RANGE = "SELECT time, writer, registers FROM " + TABLE_NAME + " "
+	                                    + "WHERE name = ? AND granularity = ? AND bucket = ? AND time >= ? AND time <= ? "
+	                                    + "LIMIT " + PAGE_SIZE;
+	private static final String RANGE_WRITERS = "SELECT time, writer, registers FROM " + TABLE_NAME + " "
+	                                            + "WHERE name = ? AND granularity = ? AND bucket = ? AND time = ? "
+	                                            + "AND writer > ? LIMIT " + PAGE_SIZE;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final CounterService service;
+	private final UUID writer;
+	private final long closeDelay;
+	private final ConcurrentHashMap<Key, Estimator> buffer = new ConcurrentHashMap<Key, Estimator>();
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * The bucket time before which the estimators of open buckets may have
+	 * been released after being written, so they must be loaded
+	 */
+	private volatile long loadBefore = Long.MIN_VALUE;
+
+	/* Metrics */
+	private final AtomicLong addedItems = new AtomicLong();
+	private final AtomicLong writtenEstimators = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param flushIntervalMillis the time in milliseconds between flushes
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            bucket is considered closed
+	 * @param writerId the stable identifier of this writer across restarts,
+	 *            or {@code null} to use a new writer
+	 */
+	CounterDistincts(CounterService service, long flushIntervalMillis, long closeDelayMillis, String writerId) {
+		if (flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("The flush interval must be greater than zero");
+		}
+		if (closeDelayMillis < 0) {
+			throw new IllegalArgumentException("The close delay can't be negative");
+		}
+		this.service = service;
+		this.closeDelay = closeDelayMillis;
+		if (writerId == null) {
+			this.writer = UUID.randomUUID();
+		} else {
+			// The open buckets may have been written by the previous run
+			this.writer = UUID.nameUUIDFromBytes((service.getTable().getName() + ';' + writerId).getBytes(CounterExport.UTF8));
+			this.loadBefore = System.currentTimeMillis();
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-distincts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Throwable t) {
+					logger.error("Unexpected error flushing distinct counters", t);
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the specified item to the estimators of all the granularities of
+	 * the specified profile.
+	 *
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}
+	 * @param millis the event's time in milliseconds
+	 * @param item the item
+	 */
+	void add(String name, CounterProfile profile, long millis, String item) {
+		long hash = HyperLogLog.hash(item);
+		TimeBucketer bucketer = service.getBucketer();
+		long now = System.currentTimeMillis();
+		for (TimeGranularity granularity : profile.getGranularities()) {
+			Key key = new Key(name, granularity, bucketer.getStart(granularity, millis));
+			for (;;) {
+				Estimator estimator = buffer.get(key);
+				if (estimator == null) {
+					Estimator created = new Estimator(isClosed(key, now) || key.time < loadBefore);
+					estimator = buffer.putIfAbsent(key, created);
+					if (estimator == null) estimator = created;
+				}
+				synchronized (estimator) {
+					if (!estimator.retired) {
+						estimator.dirty |= estimator.hll.addHash(hash);
+						estimator.lastAdded = now;
+						break;
+					}
+				}
+				// Help the flusher to remove the retired estimator
+				buffer.remove(key, estimator);
+			}
+		}
+		addedItems.incrementAndGet();
+	}
+
+	private boolean isClosed(Key key, long now) {
+		long next = service.getBucketer().getNext(key.granularity, key.time);
+		return next != Long.MAX_VALUE && next + closeDelay <= now;
+	}
+
+	/**
+	 * Writes the registers of all the changed estimators, and removes from
+	 * the buffer the unchanged estimators of closed buckets and the ones idle
+	 * for {@link #MAX_IDLE_TIME}.
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			List<Key> keys = new ArrayList<Key>();
+			List<Estimator> estimators = new ArrayList<Estimator>();
+			List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>();
+			for (Map.Entry<Key, Estimator> entry : buffer.entrySet()) {
+				Key key = entry.getKey();
+				Estimator estimator = entry.getValue();
+				boolean load;
+				synchronized (estimator) {
+					if (!estimator.dirty) {
+						boolean closed = isClosed(key, now);
+						if (closed || now - estimator.lastAdded >= MAX_IDLE_TIME) {
+							// Open buckets created again must load what this wrote
+							if (!closed && key.time >= loadBefore) loadBefore = key.time + 1;
+							estimator.retired = true;
+							buffer.remove(key, estimator);
+						}
+						continue;
+					}
+					estimator.dirty = false;
+					load = estimator.load;
+				}
+				if (load) {
+					// Merge the registers already stored by this writer
+					Row row = service.getSession().execute(bind(SELECT, key, writer)).one();
+					synchronized (estimator) {
+						if (row != null && !row.isNull(0)) {
+							ByteBuffer stored = row.getBytes(0);
+							byte[] bytes = new byte[stored.remaining()];
+							stored.duplicate().get(bytes);
+							estimator.hll.merge(bytes, 0, bytes.length);
+						}
+						estimator.load = false;
+					}
+				}
+				byte[] registers;
+				synchronized (estimator) {
+					registers = estimator.hll.toBytes();
+				}
+				futures.add(service.getSession().executeAsync(bind(INSERT, key, writer, ByteBuffer.wrap(registers))));
+				keys.add(key);
+				estimators.add(estimator);
+			}
+			boolean failed = false;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).getUninterruptibly();
+					writtenEstimators.incrementAndGet();
+				} catch (RuntimeException e) {
+					logger.error("Error flushing distinct counter " + keys.get(i) + ", it will be retried", e);
+					Estimator estimator = estimators.get(i);
+					synchronized (estimator) {
+						estimator.dirty = true;
+					}
+					failed = true;
+				}
+			}
+			if (failed) failedFlushes.incrementAndGet();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Binds the specified query with the key of the specified estimator
+	 * followed by the specified values.
+	 */
+	private BoundStatement bind(String query, Key key, Object... values) {
+		Object[] bound = new Object[4 + values.length];
+		bound[0] = key.name;
+		bound[1] = key.granularity.getCode();
+		bound[2] = getBucket(key.granularity, key.time);
+		bound[3] = key.time;
+		System.arraycopy(values, 0, bound, 4, values.length);
+		BoundStatement statement = service.getStatementCache().bind(query, bound);
+		statement.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+		return statement;
+	}
+
+	/**
+	 * Reads the union of the estimators of the specified counter, granularity
+	 * and time range.
+	 *
+	 * @param name the counter's name
+	 * @param granularity the stored {@link TimeGranularity} to be read
+	 * @param from the inclusive start of the range in milliseconds
+	 * @param to the inclusive end of the range in milliseconds
+	 * @return the merged {@link HyperLogLog}
+	 */
+	HyperLogLog read(String name, TimeGranularity granularity, long from, long to) {
+		TimeGranularity partitionGranularity = CounterTable.partitionGranularityOf(granularity);
+		long[] buckets = partitionGranularity == null
+		                 ? new long[] { CounterTable.NO_BUCKET }
+		                 : CounterTable.getPartitionStarts(partitionGranularity, from, to, service.getBucketer());
+		HyperLogLog union = new HyperLogLog();
+		PartitionFetch[] fetches = new PartitionFetch[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			fetches[i] = new PartitionFetch(name, granularity, buckets[i], to);
+		}
+		int requested = 0;
+		for (int i = 0; i < fetches.length; i++) {
+			while (requested < fetches.length && requested - i < MAX_PARTITIONS_IN_FLIGHT) {
+				fetches[requested++].request(from);
+			}
+			while (!fetches[i].done) {
+				fetches[i].collect(union);
+			}
+		}
+		return union;
+	}
+
+	private long getBucket(TimeGranularity granularity, long time) {
+		TimeGranularity partitionGranularity = CounterTable.partitionGranularityOf(granularity);
+		return partitionGranularity == null
+		       ? CounterTable.NO_BUCKET
+		       : service.getBucketer().getStart(partitionGranularity, time);
+	}
+
+	/**
+	 * Stops the periodic flushing and writes all the changed estimators.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Returns the total number of added items.
+	 *
+	 * @return the total number of added items
+	 */
+	public long getAddedItems() {
+		return addedItems.get();
+	}
+
+	/**
+	 * Returns the total number of estimators written to the database.
+	 *
+	 * @return the total number of written estimators
+	 */
+	public long getWrittenEstimators() {
+		return writtenEstimators.get();
+	}
+
+	/**
+	 * Returns the number of flushes with at least one failed write.
+	 *
+	 * @return the number of failed flushes
+	 */
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * Returns the number of estimators currently buffered.
+	 *
+	 * @return the number of buffered estimators
+	 */
+	public int getBufferedEstimators() {
+		return buffer.size();
+	}
+
+	/**
+	 * Buffer key of an estimator.
+	 */
+	private static final class Key {
+
+		private final String name;
+		private final TimeGranularity granularity;
+		private final long time;
+		private final int hash;
+
+		private Key(String name, TimeGranularity granularity, long time) {
+			this.name = name;
+			this.granularity = granularity;
+			this.time = time;
+			this.hash = 31 * (31 * name.hashCode() + granularity.hashCode()) + (int) (time ^ (time >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return time == other.time && granularity == other.granularity && name.equals(other.name);
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + granularity.getCode() + ":" + time;
+		}
+	}
+
+	/**
+	 * Buffered estimator of a time bucket, guarded by itself.
+	 */
+	private static final class Estimator {
+
+		private final HyperLogLog hll = new HyperLogLog();
+
+		/** If it has changed since it was last written */
+		private boolean dirty;
+
+		/** If the registers stored by this writer must be merged before writing */
+		private boolean load;
+
+		private boolean retired;
+
+		/** The time in milliseconds when its last item was added */
+		private long lastAdded;
+
+		private Estimator(boolean load) {
+			this.load = load;
+		}
+	}
+
+	/**
+	 * Paged fetch of the estimators of a single partition.
+	 */
+	private class PartitionFetch {
+
+		private final String name;
+		private final TimeGranularity granularity;
+		private final long bucket;
+		private final long to;
+		private ResultSetFuture future;
+		private boolean done;
+
+		/** The time whose writers are being read, or {@code null} if none */
+		private Long time;
+
+		private PartitionFetch(String name, TimeGranularity granularity, long bucket, long to) {
+			this.name = name;
+			this.granularity = granularity;
+			this.bucket = bucket;
+			this.to = to;
+		}
+
+		private void request(long from) {
+			BoundStatement query = service.getStatementCache().bind(RANGE,
+			                                                        name,
+			                                                        granularity.getCode(),
+			                                                        bucket,
+			                                                        from,
+			                                                        to);
+			query.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+			future = service.getSession().executeAsync(query);
+			time = null;
+		}
+
+		private void request(long time, UUID after) {
+			BoundStatement query = service.getStatementCache().bind(RANGE_WRITERS,
+			                                                        name,
+			                                                        granularity.getCode(),
+			                                                        bucket,
+			                                                        time,
+			                                                        after);
+			query.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+			future = service.getSession().executeAsync(query);
+			this.time = time;
+		}
+
+		private void collect(HyperLogLog union) {
+			int rows = 0;
+			long last = Long.MIN_VALUE;
+			UUID lastWriter = null;
+			for (Row row : future.getUninterruptibly()) {
+				rows++;
+				last = row.getLong(0);
+				lastWriter = row.getUUID(1);
+				ByteBuffer registers = row.getBytes(2);
+				byte[] bytes = new byte[registers.remaining()];
+				registers.duplicate().get(bytes);
+				union.merge(bytes, 0, bytes.length);
+			}
+			future = null;
+			if (rows == PAGE_SIZE) {
+				// Read the rest of the writers of the last time
+				request(last, lastWriter);
+			} else if (time != null && time < to) {
+				// Read the times after the one whose writers were read
+				request(time + 1);
+			} else {
+				done = true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.sais.utils.counting;
+
+import java.util.Date;
+
+/**
+ * Class representing a single event to be counted, that is, the name of the
+ * updated {@link Counter}, the event's date and its optional value.
+ *
+ * @author andres
+ *
+ */
+public final class CounterEvent {
+
+	private final String name;
+	private final long time;
+	private final Long value;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name the counter's name
+	 * @param date the event's date
+	 * @param value the event's value for means, deviations and variances, or
+	 *            {@code null} if it only has to be counted
+	 */
+	public CounterEvent(String name, Date date, Long value) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("A not null or empty counter name is required");
+		}
+		if (date == null) {
+			throw new IllegalArgumentException("A not null event date is required");
+		}
+		this.name = name;
+		this.time = date.getTime();
+		this.value = value;
+	}
+
+	/**
+	 * Returns the counter's name.
+	 *
+	 * @return the counter's name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the event's date.
+	 *
+	 * @return the event's date
+	 */
+	public Date getDate() {
+		return new Date(time);
+	}
+
+	/**
+	 * Returns the event's value.
+	 *
+	 * @return the event's value, or {@code null} if it has none
+	 */
+	public Long getValue() {
+		return value;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return name + "@" + time + (value == null ? "" : "=" + value);
+	}
+
+}
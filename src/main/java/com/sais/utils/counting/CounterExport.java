@@ -0,0 +1,359 @@
+package com.sais.utils.counting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Streaming exporter of the stored values of a set of counters to a file.
+ *
+ * The series of each counter, value type and granularity are read page by
+ * page, prefetching the next page while the current one is written, and each
+ * page is written as a self contained block, so memory is bounded by the
+ * number of counters exported in parallel, whatever the size of the export.
+ * Blocks of different counters may be interleaved, but the blocks of a series
+ * are in time order.
+ *
+ * The binary format starts with {@link #MAGIC} and {@link #VERSION}, followed
+ * by the blocks. Each block has its length, the counter name, the stable
+ * identifiers of its value type and granularity, the number of values, and
+ * then the column of times followed by the column of values, both delta
+ * encoded as variable length integers. It is read back with
+ * {@link CounterExportReader}.
+ *
+ * The CSV format has a header line and a line per value with the counter
+ * name, value type, granularity, time in milliseconds and value.
+ *
+ * @author andres
+ *
+ */
+public class CounterExport {
+
+	/** The first bytes of a binary export */
+	static final int MAGIC = 0x434e5458;
+
+	/** The version of the binary format */
+	static final byte VERSION = 1;
+
+	/** The maximum number of bytes of an encoded variable length long */
+	private static final int MAX_VARINT_SIZE = 10;
+
+	private static final String CSV_HEADER = "name,type,granularity,time,value\n";
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final CounterService service;
+	private final int parallelism;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param parallelism the number of counters exported in parallel
+	 */
+	CounterExport(CounterService service, int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("The parallelism must be greater than zero");
+		}
+		this.service = service;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Exports the values of the specified counters to a binary file.
+	 *
+	 * @param file the output file, which is overwritten
+	 * @param names the counter names
+	 * @param granularities the {@link TimeGranularity}s to be exported, if
+	 *            stored by the {@link CounterProfile} of each counter
+	 * @param start the inclusive range start
+	 * @param finish the inclusive range end
+	 * @return the number of exported values
+	 * @throws IOException if the file can't be written
+	 */
+	public long exportBinary(File file,
+	                         Collection<String> names,
+	                         TimeGranularity[] granularities,
+	                         Date start,
+	                         Date finish) throws IOException {
+		return export(file, false, names, granularities, start, finish);
+	}
+
+	/**
+	 * Exports the values of the specified counters to a CSV file.
+	 *
+	 * @param file the output file, which is overwritten
+	 * @param names the counter names
+	 * @param granularities the {@link TimeGranularity}s to be exported, if
+	 *            stored by the {@link CounterProfile} of each counter
+	 * @param start the inclusive range start
+	 * @param finish the inclusive range end
+	 * @return the number of exported values
+	 * @throws IOException if the file can't be written
+	 */
+	public long exportCsv(File file,
+	                      Collection<String> names,
+	                      TimeGranularity[] granularities,
+	                      Date start,
+	                      Date finish) throws IOException {
+		return export(file, true, names, granularities, start, finish);
+	}
+
+	private long export(File file,
+	                    final boolean csv,
+	                    Collection<String> names,
+	                    final TimeGranularity[] granularities,
+	                    Date start,
+	                    Date finish) throws IOException {
+		final long from = start.getTime();
+		final long to = finish.getTime();
+		final AtomicLong exported = new AtomicLong();
+		long startTime = System.currentTimeMillis();
+		FileOutputStream output = new FileOutputStream(file);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-export");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			final FileChannel channel = output.getChannel();
+			if (csv) {
+				write(channel, ByteBuffer.wrap(CSV_HEADER.getBytes(UTF8)));
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(5);
+				header.putInt(MAGIC).put(VERSION).flip();
+				write(channel, header);
+			}
+			List<Future<?>> futures = new ArrayList<Future<?>>(names.size());
+			for (final String name : names) {
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							exported.addAndGet(export(channel, csv, name, granularities, from, to));
+						} catch (IOException e) {
+							throw new ExportException(e);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted exporting counters");
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof ExportException) throw (IOException) cause.getCause();
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					throw new IllegalStateException(cause);
+				}
+			}
+			channel.force(false);
+		} finally {
+			executor.shutdownNow();
+			output.close();
+		}
+		logger.info("Exported " + exported.get() + " values of " + names.size() + " counters to " + file + " in "
+		            + (System.currentTimeMillis() - startTime) + " ms");
+		return exported.get();
+	}
+
+	/**
+	 * Exports all the series of a counter.
+	 */
+	private long export(FileChannel channel,
+	                    boolean csv,
+	                    String name,
+	                    TimeGranularity[] granularities,
+	                    long from,
+	                    long to) throws IOException {
+		CounterProfile profile = service.getProfile(name);
+		CounterTable table = service.getTable();
+		long exported = 0;
+		long[] times = new long[CounterTable.PAGE_SIZE];
+		long[] values = new long[CounterTable.PAGE_SIZE];
+		ByteBuffer buffer = null;
+		for (TimeGranularity granularity : granularities) {
+			if (!profile.stores(granularity)) continue;
+			long[] buckets = table.getBuckets(granularity, from, to, service.getBucketer());
+			for (ValueType type : profile.getTypes()) {
+				for (long bucket : buckets) {
+					ResultSetFuture future = request(table, name, type, granularity, bucket, from, to);
+					while (future != null) {
+						int size = 0;
+						for (Row row : future.getUninterruptibly()) {
+							times[size] = row.getLong(0);
+							values[size] = row.getLong(1);
+							size++;
+						}
+						// Prefetch the next page while this one is written
+						future = size == CounterTable.PAGE_SIZE && times[size - 1] < to
+						         ? request(table, name, type, granularity, bucket, times[size - 1] + 1, to)
+						         : null;
+						if (size == 0) continue;
+						buffer = csv ? encodeCsv(buffer, name, type, granularity, times, values, size)
+						             : encodeBlock(buffer, name, type, granularity, times, values, size);
+						write(channel, buffer);
+						exported += size;
+					}
+				}
+			}
+		}
+		return exported;
+	}
+
+	private ResultSetFuture request(CounterTable table,
+	                                String name,
+	                                ValueType type,
+	                                TimeGranularity granularity,
+	                                long bucket,
+	                                long from,
+	                                long to) {
+		Object[] bound = table.getPartitionKey(name, type, granularity, bucket, 2);
+		bound[bound.length - 2] = from;
+		bound[bound.length - 1] = to;
+		BoundStatement query = service.getStatementCache().bind(table.getRangeQuery(), bound);
+		query.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+		return service.getSession().executeAsync(query);
+	}
+
+	/**
+	 * Writes a whole buffer, so the blocks written by different threads are
+	 * not interleaved.
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		synchronized (channel) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a binary block, reusing the specified buffer if it is large
+	 * enough.
+	 */
+	static ByteBuffer encodeBlock(ByteBuffer buffer,
+	                              String name,
+	                              ValueType type,
+	                              TimeGranularity granularity,
+	                              long[] times,
+	                              long[] values,
+	                              int size) {
+		byte[] nameBytes = name.getBytes(UTF8);
+		if (nameBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Counter name too long to be exported: " + name);
+		}
+		int capacity = 4 + 2 + nameBytes.length + 2 + MAX_VARINT_SIZE * (1 + 2 * size);
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		buffer.clear();
+		buffer.position(4);
+		buffer.putShort((short) nameBytes.length);
+		buffer.put(nameBytes);
+		buffer.put(type.getId());
+		buffer.put(granularity.getId());
+		putVarint(buffer, size);
+		long previous = 0;
+		for (int i = 0; i < size; i++) {
+			putVarint(buffer, zigzag(times[i] - previous));
+			previous = times[i];
+		}
+		previous = 0;
+		for (int i = 0; i < size; i++) {
+			putVarint(buffer, zigzag(values[i] - previous));
+			previous = values[i];
+		}
+		buffer.putInt(0, buffer.position() - 4);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes the CSV lines of a page, reusing the specified buffer if it is
+	 * large enough.
+	 */
+	private static ByteBuffer encodeCsv(ByteBuffer buffer,
+	                                    String name,
+	                                    ValueType type,
+	                                    TimeGranularity granularity,
+	                                    long[] times,
+	                                    long[] values,
+	                                    int size) {
+		String prefix = quote(name) + ',' + type.getCode() + ',' + granularity.getCode() + ',';
+		StringBuilder builder = new StringBuilder(size * (prefix.length() + 32));
+		for (int i = 0; i < size; i++) {
+			builder.append(prefix).append(times[i]).append(',').append(values[i]).append('\n');
+		}
+		byte[] bytes = builder.toString().getBytes(UTF8);
+		if (buffer == null || buffer.capacity() < bytes.length) {
+			buffer = ByteBuffer.allocate(bytes.length);
+		}
+		buffer.clear();
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	private static String quote(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void putVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Unchecked wrapper of the I/O errors of the export tasks.
+	 */
+	private static final class ExportException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private ExportException(IOException cause) {
+			super(cause);
+		}
+	}
+
+}
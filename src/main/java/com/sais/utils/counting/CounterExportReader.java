@@ -0,0 +1,218 @@
+package com.sais.utils.counting;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Reader of the binary files written by {@link CounterExport}, block by block.
+ *
+ * Each call to {@link #next()} decodes the next block into arrays reused
+ * between blocks, so a file of any size is read with the memory of its
+ * largest block.
+ *
+ * <pre>
+ * CounterExportReader reader = new CounterExportReader(file);
+ * try {
+ * 	while (reader.next()) {
+ * 		for (int i = 0; i &lt; reader.size(); i++) {
+ * 			process(reader.getName(), reader.getTime(i), reader.getValue(i));
+ * 		}
+ * 	}
+ * } finally {
+ * 	reader.close();
+ * }
+ * </pre>
+ *
+ * @author andres
+ *
+ */
+public class CounterExportReader implements Closeable {
+
+	private final FileInputStream input;
+	private final FileChannel channel;
+	private final ByteBuffer length = ByteBuffer.allocate(4);
+	private ByteBuffer block = ByteBuffer.allocate(1 << 16);
+
+	private String name;
+	private ValueType type;
+	private TimeGranularity granularity;
+	private long[] times = new long[16];
+	private long[] values = new long[16];
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file the binary export file
+	 * @throws IOException if the file can't be read or it is not a binary
+	 *             export
+	 */
+	public CounterExportReader(File file) throws IOException {
+		this.input = new FileInputStream(file);
+		this.channel = input.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(5);
+		try {
+			if (!read(header) || header.getInt(0) != CounterExport.MAGIC) {
+				throw new IOException("Not a counters export: " + file);
+			}
+			if (header.get(4) != CounterExport.VERSION) {
+				throw new IOException("Unsupported counters export version " + header.get(4) + ": " + file);
+			}
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next block.
+	 *
+	 * @return {@code true} if a block was read, {@code false} at the end of
+	 *         the file
+	 * @throws IOException if the file can't be read or it is corrupt
+	 */
+	public boolean next() throws IOException {
+		length.clear();
+		if (!read(length)) return false;
+		int blockLength = length.getInt(0);
+		if (blockLength < 0) {
+			throw new IOException("Corrupt counters export block");
+		}
+		if (block.capacity() < blockLength) {
+			block = ByteBuffer.allocate(Math.max(blockLength, block.capacity() * 2));
+		}
+		block.clear();
+		block.limit(blockLength);
+		if (!read(block)) {
+			throw new EOFException("Truncated counters export block");
+		}
+		block.flip();
+		byte[] nameBytes = new byte[block.getShort() & 0xFFFF];
+		block.get(nameBytes);
+		name = new String(nameBytes, CounterExport.UTF8);
+		byte typeId = block.get();
+		byte granularityId = block.get();
+		type = ValueType.fromId(typeId);
+		granularity = TimeGranularity.fromId(granularityId);
+		if (type == null || granularity == null) {
+			throw new IOException("Corrupt counters export block: unknown value type " + typeId + " or granularity "
+			                      + granularityId);
+		}
+		size = (int) getVarint(block);
+		if (times.length < size) {
+			times = new long[size];
+			values = new long[size];
+		}
+		long previous = 0;
+		for (int i = 0; i < size; i++) {
+			previous += unzigzag(getVarint(block));
+			times[i] = previous;
+		}
+		previous = 0;
+		for (int i = 0; i < size; i++) {
+			previous += unzigzag(getVarint(block));
+			values[i] = previous;
+		}
+		return true;
+	}
+
+	/**
+	 * Fills the specified buffer from the file.
+	 *
+	 * @return {@code false} if the file ended before any byte was read
+	 */
+	private boolean read(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (buffer.position() == 0) return false;
+				throw new EOFException("Truncated counters export");
+			}
+		}
+		return true;
+	}
+
+	private static long getVarint(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Returns the counter name of the current block.
+	 *
+	 * @return the counter name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the {@link ValueType} of the current block.
+	 *
+	 * @return the {@link ValueType}
+	 */
+	public ValueType getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the {@link TimeGranularity} of the current block.
+	 *
+	 * @return the {@link TimeGranularity}
+	 */
+	public TimeGranularity getGranularity() {
+		return granularity;
+	}
+
+	/**
+	 * Returns the number of values of the current block.
+	 *
+	 * @return the number of values
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the normalized time of a value of the current block.
+	 *
+	 * @param index the value's index
+	 * @return the time in milliseconds
+	 */
+	public long getTime(int index) {
+		if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+		return times[index];
+	}
+
+	/**
+	 * Returns a value of the current block.
+	 *
+	 * @param index the value's index
+	 * @return the value
+	 */
+	public long getValue(int index) {
+		if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+		return values[index];
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+}
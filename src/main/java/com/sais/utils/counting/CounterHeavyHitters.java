@@ -0,0 +1,584 @@
+package com.sais.utils.counting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Streaming tracker of the most updated counters of each time window.
+ *
+ * Each window keeps a Space-Saving summary of a fixed number of counter names,
+ * so the hottest counters are known at any time with constant memory whatever
+ * the number of counters. A name not tracked yet replaces the least updated
+ * one, inheriting its count as the error of its own count, so the count of a
+ * tracked name is never underestimated, it is overestimated by at most its
+ * error, and any name updated more than {@code total / capacity} times is
+ * guaranteed to be tracked.
+ *
+ * To keep the writing threads from contending on a single summary, each
+ * window has a summary per stripe, chosen by thread, and the stripes are
+ * merged when the window is read or persisted, as the summaries of several
+ * writers are.
+ *
+ * The summaries count the updates of this node only. Only the last windows
+ * are kept in memory, and the summaries of the closed windows can be persisted
+ * to the heavy hitters column family, one partition per column family of the
+ * counters and window, with the rows of each {@link CounterService} apart as
+ * a different writer, as the distinct estimators are. Reading a persisted
+ * window merges the summaries of all the writers, adding up the counts and
+ * errors of each name, plus the minimum count of each full summary without
+ * it, so the merged counts keep the guarantees of the summaries.
+ *
+ * @author andres
+ *
+ */
+public class CounterHeavyHitters {
+
+	/** The name of the column family holding the closed windows */
+	public static final String TABLE_NAME = "counter_heavy_hitters";
+
+	/** The time in milliseconds between checks of the closed windows */
+	private static final long CHECK_INTERVAL = 1000;
+
+	/** The time in milliseconds after its end when a window is closed */
+	private static final long CLOSE_DELAY = 10000;
+
+	/** The maximum number of rows returned by a window query */
+	private static final int PAGE_SIZE = 1000;
+
+	private static final String INSERT = "INSERT INTO " + TABLE_NAME + " "
+	                                     + "(family, granularity, time, writer, name, count, error) "
+	                                     + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String SELECT = "SELECT writer, name, count, error FROM " + TABLE_NAME + " "
+	                                     + "WHERE family = ? AND granularity = ? AND time = ? LIMIT " + PAGE_SIZE;
+	private static final String SELECT_WRITER = "SELECT writer, name, count, error FROM " + TABLE_NAME + " "
+	                                            + "WHERE family = ? AND granularity = ? AND time = ? "
+	                                            + "AND writer = ? AND name > ? LIMIT " + PAGE_SIZE;
+	private static final String SELECT_NEXT_WRITERS = "SELECT writer, name, count, error FROM " + TABLE_NAME + " "
+	                                                  + "WHERE family = ? AND granularity = ? AND time = ? "
+	                                                  + "AND writer > ? LIMIT " + PAGE_SIZE;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	/** The order of the heavy hitters by descending count */
+	private static final Comparator<HeavyHitter> COUNT_ORDER = new Comparator<HeavyHitter>() {
+		@Override
+		public int compare(HeavyHitter a, HeavyHitter b) {
+			int result = a.count > b.count ? -1 : a.count < b.count ? 1 : 0;
+			if (result == 0) result = a.name.compareTo(b.name);
+			return result;
+		}
+	};
+
+	private final CounterService service;
+	private final String family;
+	private final UUID writer = UUID.randomUUID();
+	private final TimeGranularity granularity;
+	private final int capacity;
+	private final int stripes;
+	private final int retainedWindows;
+	private final boolean persist;
+	private final ConcurrentSkipListMap<Long, Window> windows = new ConcurrentSkipListMap<Long, Window>();
+	private final ScheduledExecutorService scheduler;
+
+	/* Metrics */
+	private final AtomicLong offeredUpdates = new AtomicLong();
+	private final AtomicLong droppedUpdates = new AtomicLong();
+	private final AtomicLong persistedWindows = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param granularity the {@link TimeGranularity} of the windows
+	 * @param capacity the number of counter names tracked per window
+	 * @param retainedWindows the number of windows kept in memory
+	 * @param persist if the closed windows must be persisted
+	 */
+	CounterHeavyHitters(CounterService service,
+	                    TimeGranularity granularity,
+	                    int capacity,
+	                    int retainedWindows,
+	                    boolean persist) {
+		if (granularity == null || granularity == TimeGranularity.ALL) {
+			throw new IllegalArgumentException("A not null granularity other than " + TimeGranularity.ALL
+			                                   + " is required");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("The capacity must be greater than zero");
+		}
+		if (retainedWindows <= 0) {
+			throw new IllegalArgumentException("The number of retained windows must be greater than zero");
+		}
+		this.service = service;
+		this.family = service.getTable().getName();
+		this.granularity = granularity;
+		this.capacity = capacity;
+		this.stripes = Runtime.getRuntime().availableProcessors();
+		this.retainedWindows = retainedWindows;
+		this.persist = persist;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-heavy-hitters");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					close(System.currentTimeMillis(), false);
+				} catch (Throwable t) {
+					logger.error("Unexpected error closing heavy hitters windows", t);
+				}
+			}
+		}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Counts an update of the specified counter at the specified time.
+	 *
+	 * Updates older than all the retained windows are dropped.
+	 *
+	 * @param name the counter's name
+	 * @param millis the update's time in milliseconds
+	 */
+	void offer(String name, long millis) {
+		long start = service.getBucketer().getStart(granularity, millis);
+		Window window = windows.get(start);
+		if (window == null) {
+			if (windows.size() >= retainedWindows && start < windows.firstKey()) {
+				droppedUpdates.incrementAndGet();
+				return;
+			}
+			Window created = new Window(stripes, capacity);
+			window = windows.putIfAbsent(start, created);
+			if (window == null) window = created;
+		}
+		window.stripes[(int) (Thread.currentThread().getId() % stripes)].offer(name, 1);
+		offeredUpdates.incrementAndGet();
+	}
+
+	/**
+	 * Persists the closed windows not persisted yet, if enabled, and discards
+	 * the oldest windows beyond the retained ones.
+	 *
+	 * @param now the current time in milliseconds
+	 * @param all if all the windows must be persisted, even if not closed
+	 */
+	private synchronized void close(long now, boolean all) {
+		if (persist) {
+			for (Map.Entry<Long, Window> entry : windows.entrySet()) {
+				long start = entry.getKey();
+				Window window = entry.getValue();
+				if (window.persisted) continue;
+				boolean closed = service.getBucketer().getNext(granularity, start) + CLOSE_DELAY <= now;
+				if ((closed || all) && persist(start, window)) {
+					window.persisted = closed;
+				}
+			}
+		}
+		while (windows.size() > retainedWindows) {
+			Map.Entry<Long, Window> oldest = windows.pollFirstEntry();
+			if (persist && !oldest.getValue().persisted) {
+				logger.warn("Discarding heavy hitters window " + new Date(oldest.getKey()) + " before it was closed");
+			}
+		}
+	}
+
+	/**
+	 * Persists the merged stripes of a window as the summary of this writer,
+	 * keeping the most updated names up to the capacity. The count of a name
+	 * not kept is not greater than the minimum kept one, so the persisted
+	 * summary keeps the guarantees of the stripes.
+	 */
+	private boolean persist(long start, Window window) {
+		List<HeavyHitter> top = getTop(window, capacity);
+		List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>(top.size());
+		for (HeavyHitter hitter : top) {
+			BoundStatement insert = service.getStatementCache().bind(INSERT,
+			                                                         family,
+			                                                         granularity.getCode(),
+			                                                         start,
+			                                                         writer,
+			                                                         hitter.name,
+			                                                         hitter.count,
+			                                                         hitter.error);
+			insert.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+			futures.add(service.getSession().executeAsync(insert));
+		}
+		try {
+			for (ResultSetFuture future : futures) {
+				future.getUninterruptibly();
+			}
+			persistedWindows.incrementAndGet();
+			return true;
+		} catch (RuntimeException e) {
+			logger.error("Error persisting heavy hitters window " + new Date(start) + ", it will be retried", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the most updated counters of the current window.
+	 *
+	 * @param k the maximum number of counters
+	 * @return the {@link HeavyHitter}s sorted by descending count
+	 */
+	public List<HeavyHitter> getTop(int k) {
+		return getTop(new Date(), k);
+	}
+
+	/**
+	 * Returns the most updated counters of the window of the specified date,
+	 * reading it from database if it is no longer in memory and persistence is
+	 * enabled, in which case the persisted summaries of all the writers are
+	 * merged.
+	 *
+	 * @param date any date of the window
+	 * @param k the maximum number of counters
+	 * @return the {@link HeavyHitter}s sorted by descending count, which are
+	 *         none if the window is unknown
+	 */
+	public List<HeavyHitter> getTop(Date date, int k) {
+		long start = service.getBucketer().getStart(granularity, date.getTime());
+		Window window = windows.get(start);
+		if (window != null) {
+			return getTop(window, k);
+		}
+		if (!persist) {
+			return Collections.emptyList();
+		}
+		return getTop(merge(read(start).values()), k);
+	}
+
+	private List<HeavyHitter> getTop(Window window, int k) {
+		List<List<HeavyHitter>> summaries = new ArrayList<List<HeavyHitter>>(window.stripes.length);
+		for (Summary stripe : window.stripes) {
+			summaries.add(stripe.getAll());
+		}
+		return getTop(merge(summaries), k);
+	}
+
+	private static List<HeavyHitter> getTop(List<HeavyHitter> hitters, int k) {
+		Collections.sort(hitters, COUNT_ORDER);
+		return hitters.size() > k ? new ArrayList<HeavyHitter>(hitters.subList(0, k)) : hitters;
+	}
+
+	/**
+	 * Reads the persisted summaries of a window by writer, paging through the
+	 * rows of each writer.
+	 */
+	private Map<UUID, List<HeavyHitter>> read(long start) {
+		Map<UUID, List<HeavyHitter>> summaries = new LinkedHashMap<UUID, List<HeavyHitter>>();
+		UUID lastWriter = null;
+		String lastName = null;
+		boolean withinWriter = false;
+		for (;;) {
+			BoundStatement select;
+			if (lastWriter == null) {
+				select = service.getStatementCache().bind(SELECT, family, granularity.getCode(), start);
+			} else if (withinWriter) {
+				select = service.getStatementCache().bind(SELECT_WRITER,
+				                                          family,
+				                                          granularity.getCode(),
+				                                          start,
+				                                          lastWriter,
+				                                          lastName);
+			} else {
+				select = service.getStatementCache().bind(SELECT_NEXT_WRITERS,
+				                                          family,
+				                                          granularity.getCode(),
+				                                          start,
+				                                          lastWriter);
+			}
+			select.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+			int rows = 0;
+			for (Row row : service.getSession().execute(select)) {
+				rows++;
+				lastWriter = row.getUUID(0);
+				lastName = row.getString(1);
+				List<HeavyHitter> summary = summaries.get(lastWriter);
+				if (summary == null) {
+					summary = new ArrayList<HeavyHitter>();
+					summaries.put(lastWriter, summary);
+				}
+				summary.add(new HeavyHitter(lastName, row.getLong(2), row.getLong(3)));
+			}
+			if (rows == PAGE_SIZE) {
+				// Go on with the rest of the last writer
+				withinWriter = true;
+			} else if (withinWriter) {
+				// Go on with the next writers
+				withinWriter = false;
+			} else {
+				return summaries;
+			}
+		}
+	}
+
+	/**
+	 * Merges the summaries of several writers or stripes, adding to the count
+	 * and error of each name the minimum count of the full summaries without
+	 * it, which bounds its untracked updates in them.
+	 */
+	private List<HeavyHitter> merge(Collection<List<HeavyHitter>> summaries) {
+		Map<String, long[]> merged = new HashMap<String, long[]>();
+		long fullMinimums = 0;
+		for (List<HeavyHitter> summary : summaries) {
+			long minimum = Long.MAX_VALUE;
+			for (HeavyHitter hitter : summary) {
+				minimum = Math.min(minimum, hitter.count);
+			}
+			boolean full = summary.size() >= capacity;
+			if (full) fullMinimums += minimum;
+			for (HeavyHitter hitter : summary) {
+				long[] totals = merged.get(hitter.name);
+				if (totals == null) {
+					totals = new long[3];
+					merged.put(hitter.name, totals);
+				}
+				totals[0] += hitter.count;
+				totals[1] += hitter.error;
+				if (full) totals[2] += minimum;
+			}
+		}
+		List<HeavyHitter> top = new ArrayList<HeavyHitter>(merged.size());
+		for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+			long[] totals = entry.getValue();
+			long untracked = fullMinimums - totals[2];
+			top.add(new HeavyHitter(entry.getKey(), totals[0] + untracked, totals[1] + untracked));
+		}
+		return top;
+	}
+
+	/**
+	 * Returns the {@link TimeGranularity} of the windows.
+	 *
+	 * @return the {@link TimeGranularity} of the windows
+	 */
+	public TimeGranularity getGranularity() {
+		return granularity;
+	}
+
+	/**
+	 * Stops the periodic checks and persists all the windows, if enabled.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		close(System.currentTimeMillis(), true);
+	}
+
+	/**
+	 * Returns the total number of counted updates.
+	 *
+	 * @return the total number of counted updates
+	 */
+	public long getOfferedUpdates() {
+		return offeredUpdates.get();
+	}
+
+	/**
+	 * Returns the total number of updates dropped for being too old.
+	 *
+	 * @return the total number of dropped updates
+	 */
+	public long getDroppedUpdates() {
+		return droppedUpdates.get();
+	}
+
+	/**
+	 * Returns the total number of windows persisted to the database.
+	 *
+	 * @return the total number of persisted windows
+	 */
+	public long getPersistedWindows() {
+		return persistedWindows.get();
+	}
+
+	/**
+	 * Counter tracked as one of the most updated of a window.
+	 */
+	public static final class HeavyHitter {
+
+		private final String name;
+		private final long count;
+		private final long error;
+
+		private HeavyHitter(String name, long count, long error) {
+			this.name = name;
+			this.count = count;
+			this.error = error;
+		}
+
+		/**
+		 * Returns the counter's name.
+		 *
+		 * @return the counter's name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the estimated number of updates, which may be overestimated
+		 * by at most the error.
+		 *
+		 * @return the estimated number of updates
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the maximum overestimation of the count.
+		 *
+		 * @return the maximum overestimation of the count
+		 */
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + count + (error == 0 ? "" : "(-" + error + ")");
+		}
+	}
+
+	/**
+	 * The striped summaries of a window.
+	 */
+	private static final class Window {
+
+		private final Summary[] stripes;
+		private volatile boolean persisted;
+
+		private Window(int stripes, int capacity) {
+			this.stripes = new Summary[stripes];
+			for (int i = 0; i < stripes; i++) {
+				this.stripes[i] = new Summary(capacity);
+			}
+		}
+	}
+
+	/**
+	 * Space-Saving summary, with the tracked names in a binary min-heap by
+	 * count, guarded by itself.
+	 */
+	private static final class Summary {
+
+		private final Map<String, Slot> slots;
+		private final Slot[] heap;
+		private int size;
+
+		private Summary(int capacity) {
+			this.slots = new HashMap<String, Slot>(capacity * 2);
+			this.heap = new Slot[capacity];
+		}
+
+		private synchronized void offer(String name, long count) {
+			Slot slot = slots.get(name);
+			if (slot != null) {
+				slot.count += count;
+				siftDown(slot.index);
+			} else if (size < heap.length) {
+				slot = new Slot(name);
+				slot.count = count;
+				slot.index = size;
+				heap[size++] = slot;
+				slots.put(name, slot);
+				siftUp(slot.index);
+			} else {
+				// Replace the least updated name
+				slot = heap[0];
+				slots.remove(slot.name);
+				slot.name = name;
+				slot.error = slot.count;
+				slot.count += count;
+				slots.put(name, slot);
+				siftDown(0);
+			}
+		}
+
+		private synchronized List<HeavyHitter> getAll() {
+			List<HeavyHitter> all = new ArrayList<HeavyHitter>(size);
+			for (int i = 0; i < size; i++) {
+				all.add(new HeavyHitter(heap[i].name, heap[i].count, heap[i].error));
+			}
+			return all;
+		}
+
+		private void siftUp(int index) {
+			Slot slot = heap[index];
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (heap[parent].count <= slot.count) break;
+				move(heap[parent], index);
+				index = parent;
+			}
+			move(slot, index);
+		}
+
+		private void siftDown(int index) {
+			Slot slot = heap[index];
+			for (;;) {
+				int child = 2 * index + 1;
+				if (child >= size) break;
+				if (child + 1 < size && heap[child + 1].count < heap[child].count) child++;
+				if (slot.count <= heap[child].count) break;
+				move(heap[child], index);
+				index = child;
+			}
+			move(slot, index);
+		}
+
+		private void move(Slot slot, int index) {
+			heap[index] = slot;
+			slot.index = index;
+		}
+	}
+
+	private static final class Slot {
+
+		private String name;
+		private long count;
+		private long error;
+		private int index;
+
+		private Slot(String name) {
+			this.name = name;
+		}
+	}
+
+}
@@ -0,0 +1,435 @@
+package com.sais.utils.counting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Buffer and store of the {@link Histogram}s of the counters values.
+ *
+ * Values are binned and accumulated in memory by counter, granularity and
+ * time bucket, and the bin counts are added to the histograms column family
+ * by periodic flushes, one counter cell per non empty bin, so there is no
+ * read-modify-write. Since the bins are fixed, the histograms of any time
+ * range are merged at read time just by adding the counts of each bin.
+ *
+ * Histogram cells are partitioned by time as in the time partitioned counters
+ * layout, so minutely histograms are partitioned by month and hourly ones by
+ * year.
+ *
+ * @author andres
+ *
+ */
+public class CounterHistograms {
+
+	/** The name of the column family holding the histograms */
+	public static final String TABLE_NAME = "counter_histograms";
+
+	/** The maximum number of increments per written batch */
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * The maximum number of rows returned by a range query, which is greater
+	 * than the number of bins so every page moves forward in time
+	 */
+	private static final int PAGE_SIZE = 5000;
+
+	/** The maximum number of partitions fetched concurrently per read */
+	private static final int MAX_PARTITIONS_IN_FLIGHT = 32;
+
+	private static final String INCREMENT = "UPDATE " + TABLE_NAME + " SET value = value + ? "
+	                                        + "WHERE name = ? AND granularity = ? AND bucket = ? AND time = ? AND bin = ?";
+	private static final String RANGE = "SELECT time, bin, value FROM " + TABLE_NAME + " "
+	                                    + "WHERE name = ? AND granularity = ? AND bucket = ? AND time >= ? AND time <= ? "
+	                                    + "LIMIT " + PAGE_SIZE;
+
+	/** The number of bind values per increment */
+	private static final int VALUES_PER_INCREMENT = 6;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final CounterService service;
+	private final ConcurrentHashMap<Key, Bins> buffer = new ConcurrentHashMap<Key, Bins>();
+	private final AtomicReferenceArray<String> batches = new AtomicReferenceArray<String>(BATCH_SIZE + 1);
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final ScheduledExecutorService scheduler;
+
+	/* Metrics */
+	private final AtomicLong recordedValues = new AtomicLong();
+	private final AtomicLong writtenIncrements = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param flushIntervalMillis the time in milliseconds between flushes
+	 */
+	CounterHistograms(CounterService service, long flushIntervalMillis) {
+		if (flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("The flush interval must be greater than zero");
+		}
+		this.service = service;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-histograms");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Throwable t) {
+					logger.error("Unexpected error flushing histograms", t);
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records the specified value in the histograms of all the granularities
+	 * of the specified profile.
+	 *
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}
+	 * @param millis the event's time in milliseconds
+	 * @param value the non negative value
+	 */
+	void record(String name, CounterProfile profile, long millis, long value) {
+		int bin = Histogram.binOf(value);
+		TimeBucketer bucketer = service.getBucketer();
+		for (TimeGranularity granularity : profile.getGranularities()) {
+			add(new Key(name, granularity, bucketer.getStart(granularity, millis)), bin, 1);
+		}
+		recordedValues.incrementAndGet();
+	}
+
+	private void add(Key key, int bin, long count) {
+		for (;;) {
+			Bins bins = buffer.get(key);
+			if (bins == null) {
+				Bins created = new Bins();
+				bins = buffer.putIfAbsent(key, created);
+				if (bins == null) bins = created;
+			}
+			synchronized (bins) {
+				if (!bins.retired) {
+					bins.add(bin, count);
+					return;
+				}
+			}
+			// Help the flusher to remove the retired bins
+			buffer.remove(key, bins);
+		}
+	}
+
+	/**
+	 * Adds all the buffered bin counts to the database.
+	 *
+	 * Histograms without values since the previous flush are removed from the
+	 * buffer, and the counts whose writing fails are put back into it.
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			List<Object> values = new ArrayList<Object>(BATCH_SIZE * VALUES_PER_INCREMENT);
+			List<Key> keys = new ArrayList<Key>(BATCH_SIZE);
+			boolean failed = false;
+			for (Map.Entry<Key, Bins> entry : buffer.entrySet()) {
+				Key key = entry.getKey();
+				Bins bins = entry.getValue();
+				long[] counts;
+				int offset;
+				synchronized (bins) {
+					if (bins.isEmpty()) {
+						bins.retired = true;
+						buffer.remove(key, bins);
+						continue;
+					}
+					counts = bins.counts;
+					offset = bins.offset;
+					bins.clear();
+				}
+				long bucket = getBucket(key.granularity, key.time);
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] == 0) continue;
+					values.add(counts[i]);
+					values.add(key.name);
+					values.add(key.granularity.getCode());
+					values.add(bucket);
+					values.add(key.time);
+					values.add(offset + i);
+					keys.add(key);
+					if (keys.size() == BATCH_SIZE) {
+						failed |= !write(keys, values);
+					}
+				}
+			}
+			failed |= !write(keys, values);
+			if (failed) failedFlushes.incrementAndGet();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private boolean write(List<Key> keys, List<Object> values) {
+		int size = keys.size();
+		if (size == 0) return true;
+		String query = batches.get(size);
+		if (query == null) {
+			query = CounterTable.buildCounterBatch(INCREMENT, size);
+			batches.set(size, query);
+		}
+		BoundStatement statement = service.getStatementCache().bind(query, values.toArray());
+		statement.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+		boolean written;
+		try {
+			service.getSession().execute(statement);
+			writtenIncrements.addAndGet(size);
+			written = true;
+		} catch (RuntimeException e) {
+			logger.error("Error flushing " + size + " histogram increments, they will be retried", e);
+			for (int i = 0; i < size; i++) {
+				int base = i * VALUES_PER_INCREMENT;
+				add(keys.get(i), (Integer) values.get(base + 5), (Long) values.get(base));
+			}
+			written = false;
+		}
+		keys.clear();
+		values.clear();
+		return written;
+	}
+
+	/**
+	 * Reads the merged histogram of the specified counter, granularity and
+	 * time range.
+	 *
+	 * @param name the counter's name
+	 * @param granularity the stored {@link TimeGranularity} to be read
+	 * @param from the inclusive start of the range in milliseconds
+	 * @param to the inclusive end of the range in milliseconds
+	 * @return the merged {@link Histogram}
+	 */
+	Histogram read(String name, TimeGranularity granularity, long from, long to) {
+		TimeGranularity partitionGranularity = CounterTable.partitionGranularityOf(granularity);
+		long[] buckets = partitionGranularity == null
+		                 ? new long[] { CounterTable.NO_BUCKET }
+		                 : CounterTable.getPartitionStarts(partitionGranularity, from, to, service.getBucketer());
+		Histogram histogram = new Histogram();
+		PartitionFetch[] fetches = new PartitionFetch[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			fetches[i] = new PartitionFetch(name, granularity, buckets[i], to);
+		}
+		int requested = 0;
+		for (int i = 0; i < fetches.length; i++) {
+			while (requested < fetches.length && requested - i < MAX_PARTITIONS_IN_FLIGHT) {
+				fetches[requested++].request(from);
+			}
+			while (!fetches[i].done) {
+				fetches[i].collect(histogram);
+			}
+		}
+		return histogram;
+	}
+
+	private long getBucket(TimeGranularity granularity, long time) {
+		TimeGranularity partitionGranularity = CounterTable.partitionGranularityOf(granularity);
+		return partitionGranularity == null
+		       ? CounterTable.NO_BUCKET
+		       : service.getBucketer().getStart(partitionGranularity, time);
+	}
+
+	/**
+	 * Stops the periodic flushing and writes all the buffered values.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Returns the total number of recorded values.
+	 *
+	 * @return the total number of recorded values
+	 */
+	public long getRecordedValues() {
+		return recordedValues.get();
+	}
+
+	/**
+	 * Returns the total number of bin increments written to the database.
+	 *
+	 * @return the total number of written bin increments
+	 */
+	public long getWrittenIncrements() {
+		return writtenIncrements.get();
+	}
+
+	/**
+	 * Returns the number of flushes with at least one failed write.
+	 *
+	 * @return the number of failed flushes
+	 */
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * Returns the number of histograms currently buffered.
+	 *
+	 * @return the number of buffered histograms
+	 */
+	public int getBufferedHistograms() {
+		return buffer.size();
+	}
+
+	/**
+	 * Buffer key of a histogram.
+	 */
+	private static final class Key {
+
+		private final String name;
+		private final TimeGranularity granularity;
+		private final long time;
+		private final int hash;
+
+		private Key(String name, TimeGranularity granularity, long time) {
+			this.name = name;
+			this.granularity = granularity;
+			this.time = time;
+			this.hash = 31 * (31 * name.hashCode() + granularity.hashCode()) + (int) (time ^ (time >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return time == other.time && granularity == other.granularity && name.equals(other.name);
+		}
+	}
+
+	/**
+	 * Buffered bin counts of a histogram, covering a window of consecutive
+	 * bins which grows as needed, guarded by itself.
+	 */
+	private static final class Bins {
+
+		private static final long[] EMPTY = new long[0];
+
+		private long[] counts = EMPTY;
+		private int offset;
+		private boolean retired;
+
+		private void add(int bin, long count) {
+			if (counts.length == 0) {
+				counts = new long[8];
+				offset = Math.max(0, bin - 4);
+			} else if (bin < offset || bin >= offset + counts.length) {
+				int start = Math.min(offset, bin);
+				int end = Math.max(offset + counts.length, bin + 1);
+				long[] grown = new long[end - start];
+				System.arraycopy(counts, 0, grown, offset - start, counts.length);
+				counts = grown;
+				offset = start;
+			}
+			counts[bin - offset] += count;
+		}
+
+		private boolean isEmpty() {
+			return counts.length == 0;
+		}
+
+		private void clear() {
+			counts = EMPTY;
+		}
+	}
+
+	/**
+	 * Paged fetch of the bins of a single partition.
+	 */
+	private class PartitionFetch {
+
+		private final String name;
+		private final TimeGranularity granularity;
+		private final long bucket;
+		private final long to;
+		private ResultSetFuture future;
+		private long lastTime = Long.MIN_VALUE;
+		private int lastBin = -1;
+		private boolean done;
+
+		private PartitionFetch(String name, TimeGranularity granularity, long bucket, long to) {
+			this.name = name;
+			this.granularity = granularity;
+			this.bucket = bucket;
+			this.to = to;
+		}
+
+		private void request(long from) {
+			BoundStatement query = service.getStatementCache().bind(RANGE,
+			                                                        name,
+			                                                        granularity.getCode(),
+			                                                        bucket,
+			                                                        from,
+			                                                        to);
+			query.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+			future = service.getSession().executeAsync(query);
+		}
+
+		private void collect(Histogram histogram) {
+			int rows = 0;
+			long pageTime = lastTime;
+			int pageBin = lastBin;
+			for (Row row : future.getUninterruptibly()) {
+				rows++;
+				long time = row.getLong(0);
+				int bin = row.getInt(1);
+				// Skip the bins of the last time already read by the previous page
+				if (time == pageTime && bin <= pageBin) continue;
+				histogram.add(bin, row.getLong(2));
+				lastTime = time;
+				lastBin = bin;
+			}
+			future = null;
+			if (rows == PAGE_SIZE && (lastTime != pageTime || lastBin != pageBin)) {
+				request(lastTime);
+			} else {
+				done = true;
+			}
+		}
+	}
+
+}
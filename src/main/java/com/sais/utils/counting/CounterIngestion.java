@@ -0,0 +1,374 @@
+package com.sais.utils.counting;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Bulk loader of {@link CounterEvent}s, intended for backfills and replays of
+ * large amounts of historical events.
+ *
+ * Events are pre-aggregated in memory by {@link CounterCell}, using the
+ * {@link CounterProfile} registered for each counter name, so all the events
+ * of the same counter within the same time bucket become a single increment.
+ * When the number of buffered cells reaches a limit, the cells are sorted by
+ * partition and time and sent as asynchronous batches, so each batch touches
+ * as few partitions as possible, keeping a bounded number of batches in
+ * flight.
+ *
+ * Ingested events are written to all the stored granularities of their
+ * profile. If the owner {@link CounterService} has rollup enabled, each
+ * counter is registered in its {@link CounterRollup} at the first window not
+ * closed yet, if it is not registered already, and the events of the windows
+ * not rolled up yet only write the finest granularity, so the rollup doesn't
+ * add them again. The events of the windows that may be being rolled up are
+ * aggregated apart, by window, and written when all the others are, while
+ * holding the lock of their counter's rollup, so a replay of recent traffic
+ * is written in a few batches instead of one update at a time. Failed
+ * batches are not retried since counter increments are not idempotent.
+ *
+ * The progress metrics can be read from any thread while the ingestion is
+ * running, and they are also logged periodically.
+ *
+ * @author andres
+ *
+ */
+public class CounterIngestion {
+
+	/** The maximum number of increments per written batch */
+	private static final int BATCH_SIZE = 100;
+
+	/** The minimum time in milliseconds between progress logs */
+	private static final long LOG_INTERVAL = 10000;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	/** The order of the cells by partition and time */
+	private static final Comparator<CounterCell> PARTITION_ORDER = new Comparator<CounterCell>() {
+		@Override
+		public int compare(CounterCell a, CounterCell b) {
+			int result = a.getName().compareTo(b.getName());
+			if (result == 0) result = a.getType().compareTo(b.getType());
+			if (result == 0) result = a.getGranularity().compareTo(b.getGranularity());
+			if (result == 0) result = a.getTime() < b.getTime() ? -1 : a.getTime() > b.getTime() ? 1 : 0;
+			return result;
+		}
+	};
+
+	private final CounterService service;
+	private final int maxCells;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+
+	/** The buffered deltas, only accessed by the ingesting thread */
+	private final Map<CounterCell, long[]> cells;
+	private final Map<String, CounterProfile> profiles = new HashMap<String, CounterProfile>();
+
+	/**
+	 * The buffered deltas of the windows that may be being rolled up, by the
+	 * cell of the rollup window of their counter, written at the end
+	 */
+	private final Map<CounterCell, Map<CounterCell, long[]>> windows = new HashMap<CounterCell, Map<CounterCell, long[]>>();
+	private final long[] starts = new long[TimeGranularity.values().length];
+
+	/* Metrics */
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong sentIncrements = new AtomicLong();
+	private final AtomicLong writtenIncrements = new AtomicLong();
+	private final AtomicLong failedIncrements = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private volatile long startTime;
+	private volatile long endTime;
+	private long lastLogTime;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param maxCells the maximum number of buffered cells before sending them
+	 * @param maxInFlight the maximum number of batches in flight
+	 */
+	CounterIngestion(CounterService service, int maxCells, int maxInFlight) {
+		if (maxCells <= 0) {
+			throw new IllegalArgumentException("The maximum number of cells must be greater than zero");
+		}
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("The maximum number of batches in flight must be greater than zero");
+		}
+		this.service = service;
+		this.maxCells = maxCells;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.cells = new HashMap<CounterCell, long[]>(Math.min(maxCells, 1 << 16) * 2);
+	}
+
+	/**
+	 * Ingests all the specified events, returning once all their increments
+	 * have been written or have failed.
+	 *
+	 * @param iterator the {@link CounterEvent}s to be ingested
+	 * @return this, with the final metrics
+	 */
+	public synchronized CounterIngestion ingest(Iterator<CounterEvent> iterator) {
+		startTime = System.currentTimeMillis();
+		lastLogTime = startTime;
+		endTime = 0;
+		try {
+			while (iterator.hasNext()) {
+				add(iterator.next());
+				if (cells.size() >= maxCells) send();
+			}
+			send();
+			inFlight.acquireUninterruptibly(maxInFlight);
+			inFlight.release(maxInFlight);
+			sendWindows();
+		} finally {
+			profiles.clear();
+			windows.clear();
+			endTime = System.currentTimeMillis();
+		}
+		logger.info("Ingestion completed: " + this);
+		return this;
+	}
+
+	private void add(CounterEvent event) {
+		String name = event.getName();
+		CounterRollup rollup = service.getRollup();
+		CounterProfile profile = profiles.get(name);
+		if (profile == null) {
+			profile = service.getProfile(name);
+			profiles.put(name, profile);
+			service.indexName(name);
+			if (rollup != null && CounterRollup.isRolledUp(profile)) rollup.register(name, profile);
+		}
+		Long value = event.getValue();
+		events.incrementAndGet();
+		service.getBucketer().getStarts(event.getTime(), starts);
+		TimeGranularity only = null;
+		Map<CounterCell, long[]> target = cells;
+		if (rollup != null && CounterRollup.isRolledUp(profile)) {
+			switch (rollup.getRoute(name, profile, starts)) {
+			case DEFERRED:
+				TimeGranularity window = profile.getRollupWindow();
+				CounterCell key = new CounterCell(name, ValueType.COUNTS, window, starts[window.ordinal()]);
+				target = windows.get(key);
+				if (target == null) {
+					target = new HashMap<CounterCell, long[]>();
+					windows.put(key, target);
+				}
+				break;
+			case FINEST:
+				only = profile.getFinest();
+				break;
+			case ALL:
+				break;
+			}
+		}
+		for (TimeGranularity granularity : profile.getGranularities()) {
+			if (only != null && granularity != only) continue;
+			long time = starts[granularity.ordinal()];
+			for (ValueType type : profile.getTypes()) {
+				switch (type) {
+				case COUNTS:
+					add(target, new CounterCell(name, type, granularity, time), 1L);
+					break;
+				case SUMS:
+					if (value != null) add(target, new CounterCell(name, type, granularity, time), value);
+					break;
+				case SQUARES:
+					if (value != null) add(target, new CounterCell(name, type, granularity, time), value * value);
+					break;
+				}
+			}
+		}
+	}
+
+	private static void add(Map<CounterCell, long[]> cells, CounterCell cell, long delta) {
+		long[] accumulator = cells.get(cell);
+		if (accumulator == null) {
+			cells.put(cell, new long[] { delta });
+		} else {
+			accumulator[0] += delta;
+		}
+	}
+
+	/**
+	 * Sends all the buffered cells sorted by partition and time.
+	 */
+	private void send() {
+		CounterCell[] sorted = cells.keySet().toArray(new CounterCell[cells.size()]);
+		Arrays.sort(sorted, PARTITION_ORDER);
+		int i = 0;
+		while (i < sorted.length) {
+			int size = Math.min(BATCH_SIZE, sorted.length - i);
+			CounterBatch batch = new CounterBatch(service, size);
+			for (int j = i; j < i + size; j++) {
+				long delta = cells.get(sorted[j])[0];
+				if (delta != 0) batch.add(sorted[j], delta);
+			}
+			send(batch);
+			i += size;
+		}
+		cells.clear();
+		long now = System.currentTimeMillis();
+		if (now - lastLogTime >= LOG_INTERVAL) {
+			lastLogTime = now;
+			logger.info("Ingestion progress: " + this);
+		}
+	}
+
+	private void send(CounterBatch batch) {
+		final int size = batch.size();
+		if (size == 0) return;
+		inFlight.acquireUninterruptibly();
+		try {
+			Futures.addCallback(service.getSession().executeAsync(batch.toStatement()), new FutureCallback<ResultSet>() {
+				@Override
+				public void onSuccess(ResultSet result) {
+					writtenIncrements.addAndGet(size);
+					inFlight.release();
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					failedIncrements.addAndGet(size);
+					inFlight.release();
+					logger.error("Error ingesting " + size + " counter increments", t);
+				}
+			});
+		} catch (RuntimeException e) {
+			failedIncrements.addAndGet(size);
+			inFlight.release();
+			logger.error("Error ingesting " + size + " counter increments", e);
+		}
+		sentIncrements.addAndGet(size);
+		batches.incrementAndGet();
+	}
+
+	/**
+	 * Writes the buffered deltas of the windows that may be being rolled up,
+	 * through the {@link CounterRollup}, which decides under the lock of each
+	 * counter whether they write all the granularities or only the finest.
+	 */
+	private void sendWindows() {
+		CounterRollup rollup = service.getRollup();
+		for (Map.Entry<CounterCell, Map<CounterCell, long[]>> entry : windows.entrySet()) {
+			String name = entry.getKey().getName();
+			Map<CounterCell, long[]> windowCells = entry.getValue();
+			try {
+				int written = rollup.write(name, profiles.get(name), entry.getKey().getTime(), windowCells);
+				sentIncrements.addAndGet(written);
+				writtenIncrements.addAndGet(written);
+			} catch (RuntimeException e) {
+				sentIncrements.addAndGet(windowCells.size());
+				failedIncrements.addAndGet(windowCells.size());
+				logger.error("Error ingesting " + windowCells.size() + " counter increments of " + name, e);
+			}
+		}
+		windows.clear();
+	}
+
+	/**
+	 * Returns the number of ingested events.
+	 *
+	 * @return the number of ingested events
+	 */
+	public long getEvents() {
+		return events.get();
+	}
+
+	/**
+	 * Returns the number of combined increments sent to the database.
+	 *
+	 * @return the number of sent increments
+	 */
+	public long getSentIncrements() {
+		return sentIncrements.get();
+	}
+
+	/**
+	 * Returns the number of combined increments successfully written.
+	 *
+	 * @return the number of written increments
+	 */
+	public long getWrittenIncrements() {
+		return writtenIncrements.get();
+	}
+
+	/**
+	 * Returns the number of combined increments whose writing failed.
+	 *
+	 * @return the number of failed increments
+	 */
+	public long getFailedIncrements() {
+		return failedIncrements.get();
+	}
+
+	/**
+	 * Returns the number of sent batches.
+	 *
+	 * @return the number of sent batches
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Returns the number of batches currently in flight.
+	 *
+	 * @return the number of batches in flight
+	 */
+	public int getBatchesInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * Returns the elapsed time in milliseconds of the current or last
+	 * ingestion.
+	 *
+	 * @return the elapsed time in milliseconds
+	 */
+	public long getElapsedMillis() {
+		long start = startTime;
+		if (start == 0) return 0;
+		long end = endTime;
+		return (end == 0 ? System.currentTimeMillis() : end) - start;
+	}
+
+	/**
+	 * Returns the throughput of the current or last ingestion.
+	 *
+	 * @return the ingested events per second
+	 */
+	public double getEventsPerSecond() {
+		long elapsed = getElapsedMillis();
+		return elapsed == 0 ? 0 : events.get() * 1000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return getEvents() + " events, "
+		       + getSentIncrements() + " increments sent, "
+		       + getWrittenIncrements() + " written, "
+		       + getFailedIncrements() + " failed, "
+		       + getBatches() + " batches in " + getElapsedMillis() + " ms ("
+		       + Math.round(getEventsPerSecond()) + " events/s)";
+	}
+
+}
@@ -0,0 +1,481 @@
+package com.sais.utils.counting;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Local write-ahead journal of the increments buffered by a
+ * {@link CounterAggregator}.
+ *
+ * Increments are appended sequentially to memory-mapped segment files of a
+ * fixed size before being buffered, so they survive a crash of the JVM, and
+ * the segments are forced to disk periodically so they also survive a crash
+ * of the machine, except for the last sync interval.
+ *
+ * Each periodic flush of the aggregator starts a new segment, and once the
+ * flush has written all the buffered increments the segments before it are
+ * acknowledged, renamed so they are not replayed, and recycled for new
+ * segments. On startup, the segments left by a previous run are replayed into
+ * the aggregator, and they are recycled after the next successful flush.
+ *
+ * The delivery is at least once: increments written by a flush that fails
+ * partially, or by a flush interrupted by a crash, are replayed again.
+ *
+ * Each segment starts with a header holding its sequence number, and each
+ * record holds a checksum of the sequence number and its contents, so the
+ * stale records of a recycled segment, or a torn record, end the replay of
+ * the segment. Value types and granularities are recorded by their stable
+ * identifiers, so the journal of a previous version is replayed into the
+ * same cells.
+ *
+ * @author andres
+ *
+ */
+public class CounterJournal {
+
+	/** The prefix of the segment file names */
+	static final String FILE_PREFIX = "counters-";
+
+	/** The prefix of the recycled segment file names */
+	static final String FREE_PREFIX = "counters-free-";
+
+	/** The suffix of the segment file names */
+	static final String FILE_SUFFIX = ".log";
+
+	/** The magic number of the segment headers */
+	private static final int MAGIC = 0x434a4e4c;
+
+	/** The size of the segment headers: magic number and sequence number */
+	private static final int HEADER_SIZE = 12;
+
+	/** The size of the record headers: length and checksum */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/** The size of the fixed part of the records */
+	private static final int RECORD_FIXED_SIZE = 8 + 8 + 1 + 1 + 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final File directory;
+	private final int segmentSize;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Lock held for reading while an increment is appended and buffered, and
+	 * for writing while a new segment is started by a flush, so the flush
+	 * buffer holds all the increments of the previous segments.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/* The segments, guarded by this */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final ArrayDeque<File> recycled = new ArrayDeque<File>();
+	private final CRC32 checksum = new CRC32();
+	private Segment current;
+	private long nextSequence;
+
+	/* Metrics */
+	private final AtomicLong appendedRecords = new AtomicLong();
+	private final AtomicLong replayedRecords = new AtomicLong();
+	private final AtomicLong recycledSegments = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory the directory of the segment files
+	 * @param segmentSize the size in bytes of each segment file
+	 * @param syncIntervalMillis the time in milliseconds between forces of
+	 *            the current segment to disk, or zero to leave it to the
+	 *            operating system
+	 * @throws IOException if the directory can't be used
+	 */
+	CounterJournal(File directory, int segmentSize, long syncIntervalMillis) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("A not null journal directory is required");
+		}
+		if (segmentSize < 4096) {
+			throw new IllegalArgumentException("The segment size must be at least 4096 bytes");
+		}
+		if (syncIntervalMillis < 0) {
+			throw new IllegalArgumentException("The sync interval can't be negative");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create journal directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (syncIntervalMillis > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "counter-journal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sync();
+					} catch (Throwable t) {
+						logger.error("Unexpected error syncing the counters journal", t);
+					}
+				}
+			}, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * Replays the segments left by a previous run into the specified
+	 * aggregator and starts a new segment.
+	 *
+	 * @param aggregator the {@link CounterAggregator} receiving the
+	 *            increments
+	 * @throws IOException if a segment can't be read
+	 */
+	synchronized void open(CounterAggregator aggregator) throws IOException {
+		File[] free = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FREE_PREFIX) && name.endsWith(FILE_SUFFIX);
+			}
+		});
+		recycled.addAll(Arrays.asList(free));
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return parseSequence(name) >= 0;
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long sa = parseSequence(a.getName());
+				long sb = parseSequence(b.getName());
+				return sa < sb ? -1 : sa > sb ? 1 : 0;
+			}
+		});
+		for (File file : files) {
+			long sequence = parseSequence(file.getName());
+			int records = replay(file, sequence, aggregator);
+			nextSequence = Math.max(nextSequence, sequence + 1);
+			if (records > 0) {
+				segments.add(new Segment(sequence, file, null));
+				logger.info("Replayed " + records + " counter increments from " + file);
+			} else {
+				recycled.add(file);
+			}
+		}
+		current = createSegment();
+	}
+
+	private int replay(File file, long sequence, CounterAggregator aggregator) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getLong() != sequence) {
+			return 0;
+		}
+		int records = 0;
+		while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+			int length = buffer.getInt();
+			int crc = buffer.getInt();
+			if (length < RECORD_FIXED_SIZE || length > buffer.remaining()) break;
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			checksum.reset();
+			updateChecksum(sequence);
+			checksum.update(payload, 0, length);
+			if ((int) checksum.getValue() != crc) break;
+			aggregator.replay(decode(payload), decodeDelta(payload));
+			records++;
+		}
+		replayedRecords.addAndGet(records);
+		return records;
+	}
+
+	/**
+	 * Returns the lock to be held for reading while an increment is appended
+	 * and buffered.
+	 *
+	 * @return the append {@link Lock}
+	 */
+	Lock getAppendLock() {
+		return lock.readLock();
+	}
+
+	/**
+	 * Appends the specified increment to the current segment, starting a new
+	 * one if it is full.
+	 *
+	 * @param cell the incremented {@link CounterCell}
+	 * @param delta the increment
+	 */
+	synchronized void append(CounterCell cell, long delta) {
+		byte[] name = cell.getName().getBytes(UTF8);
+		int length = RECORD_FIXED_SIZE + name.length;
+		if (RECORD_HEADER_SIZE + length > segmentSize - HEADER_SIZE) {
+			throw new IllegalArgumentException("Counter name too long for the journal: " + cell.getName());
+		}
+		if (current.buffer.remaining() < RECORD_HEADER_SIZE + length) {
+			current = createSegment();
+		}
+		byte[] payload = encode(cell, delta, name, length);
+		checksum.reset();
+		updateChecksum(current.sequence);
+		checksum.update(payload, 0, length);
+		MappedByteBuffer buffer = current.buffer;
+		buffer.putInt(length);
+		buffer.putInt((int) checksum.getValue());
+		buffer.put(payload);
+		appendedRecords.incrementAndGet();
+	}
+
+	/**
+	 * Starts a new segment once all the in progress appends are buffered,
+	 * returning a marker of the previous segments.
+	 *
+	 * @return the sequence number of the new segment
+	 */
+	long rotate() {
+		lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (current.buffer.position() > HEADER_SIZE) {
+					current = createSegment();
+				}
+				return current.sequence;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Acknowledges all the segments before the specified marker, recycling
+	 * them for new segments.
+	 *
+	 * @param marker the marker returned by {@link #rotate()}
+	 */
+	synchronized void acknowledge(long marker) {
+		Iterator<Segment> iterator = segments.iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (segment.sequence >= marker) break;
+			iterator.remove();
+			// Rename the file so it isn't replayed before being reused
+			File free = new File(directory, FREE_PREFIX + segment.sequence + FILE_SUFFIX);
+			if (segment.file.renameTo(free)) {
+				recycled.add(free);
+			} else if (!segment.file.delete()) {
+				logger.warn("Can't recycle journal segment " + segment.file);
+			}
+			recycledSegments.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Forces the current segment to disk.
+	 */
+	void sync() {
+		MappedByteBuffer buffer;
+		synchronized (this) {
+			buffer = current == null ? null : current.buffer;
+		}
+		if (buffer != null) buffer.force();
+	}
+
+	/**
+	 * Stops the periodic sync and forces the current segment to disk.
+	 */
+	void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		sync();
+	}
+
+	/**
+	 * Creates a new segment, reusing a recycled file if there is any.
+	 */
+	private Segment createSegment() {
+		if (current != null) current.buffer.force();
+		long sequence = nextSequence++;
+		File file = new File(directory, FILE_PREFIX + sequence + FILE_SUFFIX);
+		File reused = recycled.poll();
+		if (reused != null && !reused.renameTo(file) && !reused.delete()) {
+			logger.warn("Can't recycle journal segment " + reused);
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(segmentSize);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+				buffer.putInt(MAGIC);
+				buffer.putLong(sequence);
+				Segment segment = new Segment(sequence, file, buffer);
+				segments.add(segment);
+				return segment;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't create journal segment " + file, e);
+		}
+	}
+
+	private void updateChecksum(long sequence) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			checksum.update((int) (sequence >>> shift));
+		}
+	}
+
+	private static byte[] encode(CounterCell cell, long delta, byte[] name, int length) {
+		byte[] payload = new byte[length];
+		putLong(payload, 0, delta);
+		putLong(payload, 8, cell.getTime());
+		payload[16] = cell.getType().getId();
+		payload[17] = cell.getGranularity().getId();
+		payload[18] = (byte) (name.length >>> 8);
+		payload[19] = (byte) name.length;
+		System.arraycopy(name, 0, payload, RECORD_FIXED_SIZE, name.length);
+		return payload;
+	}
+
+	private static CounterCell decode(byte[] payload) throws IOException {
+		long time = getLong(payload, 8);
+		ValueType type = ValueType.fromId(payload[16]);
+		TimeGranularity granularity = TimeGranularity.fromId(payload[17]);
+		if (type == null || granularity == null) {
+			throw new IOException("Unknown value type " + payload[16] + " or granularity " + payload[17] + " in journal");
+		}
+		int nameLength = ((payload[18] & 0xff) << 8) | (payload[19] & 0xff);
+		String name = new String(payload, RECORD_FIXED_SIZE, nameLength, UTF8);
+		return new CounterCell(name, type, granularity, time);
+	}
+
+	private static long decodeDelta(byte[] payload) {
+		return getLong(payload, 0);
+	}
+
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static long parseSequence(String fileName) {
+		if (!fileName.startsWith(FILE_PREFIX) || !fileName.endsWith(FILE_SUFFIX)) return -1;
+		if (fileName.startsWith(FREE_PREFIX)) return -1;
+		try {
+			return Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the number of records appended since startup.
+	 *
+	 * @return the number of appended records
+	 */
+	public long getAppendedRecords() {
+		return appendedRecords.get();
+	}
+
+	/**
+	 * Returns the number of records replayed on startup.
+	 *
+	 * @return the number of replayed records
+	 */
+	public long getReplayedRecords() {
+		return replayedRecords.get();
+	}
+
+	/**
+	 * Returns the number of acknowledged segments recycled since startup.
+	 *
+	 * @return the number of recycled segments
+	 */
+	public long getRecycledSegments() {
+		return recycledSegments.get();
+	}
+
+	/**
+	 * Returns the number of segments not acknowledged yet, including the
+	 * current one.
+	 *
+	 * @return the number of pending segments
+	 */
+	public synchronized int getPendingSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Journal segment file.
+	 */
+	private static final class Segment {
+
+		private final long sequence;
+		private final File file;
+		private final MappedByteBuffer buffer;
+
+		private Segment(long sequence, File file, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+}
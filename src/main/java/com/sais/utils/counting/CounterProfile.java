@@ -0,0 +1,233 @@
+package com.sais.utils.counting;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Class representing which {@link TimeGranularity}s and {@link ValueType}s
+ * are stored for a {@link Counter}.
+ *
+ * Values of a not stored granularity are derived at read time from the
+ * finest stored granularity that is finer than it.
+ *
+ * @author andres
+ *
+ */
+public final class CounterProfile {
+
+	/** The profile storing all the granularities and value types */
+	public static final CounterProfile FULL = new CounterProfile(EnumSet.allOf(TimeGranularity.class),
+	                                                             EnumSet.allOf(ValueType.class));
+
+	/** The granularities from the finest to the coarsest */
+	private static final TimeGranularity[] FINEST_FIRST = { TimeGranularity.MINUTELY,
+	                                                        TimeGranularity.HOURLY,
+	                                                        TimeGranularity.DAILY,
+	                                                        TimeGranularity.MONTHLY,
+	                                                        TimeGranularity.YEARLY,
+	                                                        TimeGranularity.ALL };
+
+	private final TimeGranularity[] granularities;
+	private final ValueType[] types;
+	private final boolean[] storedGranularities;
+	private final boolean[] storedTypes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param granularities the stored {@link TimeGranularity}s
+	 * @param types the stored {@link ValueType}s, which must include
+	 *            {@link ValueType#COUNTS}
+	 */
+	public CounterProfile(Set<TimeGranularity> granularities, Set<ValueType> types) {
+		if (granularities == null || granularities.isEmpty()) {
+			throw new IllegalArgumentException("At least one granularity is required");
+		}
+		if (types == null || !types.contains(ValueType.COUNTS)) {
+			throw new IllegalArgumentException("Counts are required");
+		}
+		EnumSet<TimeGranularity> granularitySet = EnumSet.copyOf(granularities);
+		EnumSet<ValueType> typeSet = EnumSet.copyOf(types);
+		this.granularities = granularitySet.toArray(new TimeGranularity[granularitySet.size()]);
+		this.types = typeSet.toArray(new ValueType[typeSet.size()]);
+		this.storedGranularities = new boolean[TimeGranularity.values().length];
+		for (TimeGranularity granularity : granularitySet) {
+			storedGranularities[granularity.ordinal()] = true;
+		}
+		this.storedTypes = new boolean[ValueType.values().length];
+		for (ValueType type : typeSet) {
+			storedTypes[type.ordinal()] = true;
+		}
+	}
+
+	/**
+	 * Returns a profile storing all the value types for the specified
+	 * {@link TimeGranularity}s.
+	 *
+	 * @param granularities the stored {@link TimeGranularity}s
+	 * @return the {@link CounterProfile}
+	 */
+	public static CounterProfile of(TimeGranularity... granularities) {
+		EnumSet<TimeGranularity> set = EnumSet.noneOf(TimeGranularity.class);
+		for (TimeGranularity granularity : granularities) {
+			set.add(granularity);
+		}
+		return new CounterProfile(set, EnumSet.allOf(ValueType.class));
+	}
+
+	/**
+	 * Returns a profile storing only counts for the specified
+	 * {@link TimeGranularity}s.
+	 *
+	 * @param granularities the stored {@link TimeGranularity}s
+	 * @return the {@link CounterProfile}
+	 */
+	public static CounterProfile countsOnly(TimeGranularity... granularities) {
+		EnumSet<TimeGranularity> set = EnumSet.noneOf(TimeGranularity.class);
+		for (TimeGranularity granularity : granularities) {
+			set.add(granularity);
+		}
+		return new CounterProfile(set, EnumSet.of(ValueType.COUNTS));
+	}
+
+	/**
+	 * Returns if the specified {@link TimeGranularity} is stored.
+	 *
+	 * @param granularity the {@link TimeGranularity}
+	 * @return {@code true} if it is stored, {@code false} otherwise
+	 */
+	public boolean stores(TimeGranularity granularity) {
+		return storedGranularities[granularity.ordinal()];
+	}
+
+	/**
+	 * Returns if the specified {@link ValueType} is stored.
+	 *
+	 * @param type the {@link ValueType}
+	 * @return {@code true} if it is stored, {@code false} otherwise
+	 */
+	public boolean stores(ValueType type) {
+		return storedTypes[type.ordinal()];
+	}
+
+	/**
+	 * Returns the stored {@link TimeGranularity} to be read for the specified
+	 * one, that is, itself if it is stored or the coarsest stored granularity
+	 * finer than it otherwise, so the fewest cells are read.
+	 *
+	 * @param granularity the requested {@link TimeGranularity}
+	 * @return the stored {@link TimeGranularity} to be read, or {@code null}
+	 *         if the requested one can't be derived
+	 */
+	public TimeGranularity getSource(TimeGranularity granularity) {
+		int i = FINEST_FIRST.length - 1;
+		while (FINEST_FIRST[i] != granularity) {
+			i--;
+		}
+		for (; i >= 0; i--) {
+			if (stores(FINEST_FIRST[i])) return FINEST_FIRST[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the finest stored {@link TimeGranularity}.
+	 *
+	 * @return the finest stored {@link TimeGranularity}
+	 */
+	public TimeGranularity getFinest() {
+		for (TimeGranularity granularity : FINEST_FIRST) {
+			if (stores(granularity)) return granularity;
+		}
+		throw new AssertionError();
+	}
+
+	/**
+	 * Returns the granularity of the windows in which the finest stored
+	 * granularity is rolled up into the coarser ones, that is, the
+	 * granularity immediately coarser than the finest stored one.
+	 *
+	 * @return the rollup window {@link TimeGranularity}, or {@code null} if
+	 *         the finest stored granularity is yearly or all
+	 */
+	TimeGranularity getRollupWindow() {
+		TimeGranularity finest = getFinest();
+		for (int i = 0; i < FINEST_FIRST.length - 2; i++) {
+			if (FINEST_FIRST[i] == finest) return FINEST_FIRST[i + 1];
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of cells written per update with a value.
+	 *
+	 * @return the number of cells written per update with a value
+	 */
+	int getCellsPerUpdate() {
+		return granularities.length * types.length;
+	}
+
+	TimeGranularity[] getGranularities() {
+		return granularities;
+	}
+
+	ValueType[] getTypes() {
+		return types;
+	}
+
+	/**
+	 * Returns the code of this profile, such as
+	 * {@code "minutelly,hourly;counts,sums"}, to be parsed with
+	 * {@link #fromCode(String)}.
+	 *
+	 * @return the code of this profile
+	 */
+	String getCode() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < granularities.length; i++) {
+			if (i > 0) builder.append(',');
+			builder.append(granularities[i].getCode());
+		}
+		builder.append(';');
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) builder.append(',');
+			builder.append(types[i].getCode());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parses a profile code returned by {@link #getCode()}.
+	 *
+	 * @param code the profile's code
+	 * @return the {@link CounterProfile}
+	 */
+	static CounterProfile fromCode(String code) {
+		int separator = code.indexOf(';');
+		if (separator < 0) {
+			throw new IllegalArgumentException("Invalid counter profile code: " + code);
+		}
+		EnumSet<TimeGranularity> granularities = EnumSet.noneOf(TimeGranularity.class);
+		for (String granularity : code.substring(0, separator).split(",")) {
+			for (TimeGranularity candidate : TimeGranularity.values()) {
+				if (candidate.getCode().equals(granularity)) granularities.add(candidate);
+			}
+		}
+		EnumSet<ValueType> types = EnumSet.noneOf(ValueType.class);
+		for (String type : code.substring(separator + 1).split(",")) {
+			for (ValueType candidate : ValueType.values()) {
+				if (candidate.getCode().equals(type)) types.add(candidate);
+			}
+		}
+		return new CounterProfile(granularities, types);
+	}
+
+	@Override
+	public String toString() {
+		return "CounterProfile[" + getCode() + "]";
+	}
+
+}
@@ -0,0 +1,362 @@
+package com.sais.utils.counting;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+
+/**
+ * In-memory sliding window rates of the updates of selected counters.
+ *
+ * Each tracked counter has a ring of one slot per second covering the last
+ * {@link #MAX_SECONDS} seconds, with the number of updates and the sum of
+ * their values. Every slot is a single long holding both the second it
+ * belongs to and its value, so it is updated with a compare-and-set without
+ * locks, and stale slots are just ignored by readers. Rates and means are
+ * computed over the last seconds up to now, weighting the oldest slot by the
+ * elapsed fraction of the current second, so they are as fresh as the last
+ * update.
+ *
+ * If a Hazelcast instance is provided, the rings of this node are published
+ * every second to a distributed map, one entry per counter and node with a
+ * short time to live, so the cluster wide rates add the published rings of
+ * all the current members.
+ *
+ * Rates are measured by arrival time, not by the dates of the updates.
+ *
+ * @author andres
+ *
+ */
+public class CounterRates {
+
+	/** The maximum number of seconds of a window */
+	public static final int MAX_SECONDS = 900;
+
+	/** The name of the distributed map of the published rings */
+	private static final String MAP_NAME = "counter-rates";
+
+	/** The time in milliseconds between publications */
+	private static final long PUBLISH_INTERVAL = 1000;
+
+	/** The time to live in milliseconds of the published rings */
+	private static final long PUBLISH_TTL = 5 * PUBLISH_INTERVAL;
+
+	/** The number of slots, one more than the seconds for the partial ones */
+	private static final int SLOTS = MAX_SECONDS + 1;
+
+	/** The number of low bits of a slot holding its value */
+	private static final int VALUE_BITS = 44;
+
+	private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+
+	/** The mask of the second stored in the high bits of a slot */
+	private static final long TAG_MASK = (1L << (64 - VALUE_BITS)) - 1;
+
+	private static final char MEMBER_SEPARATOR = '@';
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<String, Ring>();
+	private final HazelcastInstance hazelcast;
+	private final IMap<String, Snapshot> map;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param hazelcast the {@link HazelcastInstance} to publish the rings, or
+	 *            {@code null} to disable cluster wide rates
+	 */
+	CounterRates(HazelcastInstance hazelcast) {
+		this.hazelcast = hazelcast;
+		if (hazelcast == null) {
+			this.map = null;
+			this.scheduler = null;
+			return;
+		}
+		this.map = hazelcast.getMap(MAP_NAME);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-rates");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				} catch (Throwable t) {
+					logger.error("Unexpected error publishing counter rates", t);
+				}
+			}
+		}, PUBLISH_INTERVAL, PUBLISH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts tracking the rates of the specified counter.
+	 *
+	 * @param name the counter's name
+	 */
+	void track(String name) {
+		if (!rings.containsKey(name)) {
+			rings.putIfAbsent(name, new Ring());
+		}
+	}
+
+	/**
+	 * Records an update of the specified counter, if it is tracked.
+	 *
+	 * @param name the counter's name
+	 * @param value the update's value, or {@code null}
+	 */
+	void record(String name, Long value) {
+		Ring ring = rings.get(name);
+		if (ring == null) return;
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int) (second % SLOTS);
+		add(ring.counts, slot, second, 1);
+		if (value != null) add(ring.sums, slot, second, value);
+	}
+
+	/**
+	 * Returns the updates per second of the specified counter in this node
+	 * over the specified last seconds.
+	 *
+	 * @param name the counter's name
+	 * @param seconds the window in seconds, up to {@link #MAX_SECONDS}
+	 * @return the updates per second
+	 */
+	public double getRate(String name, int seconds) {
+		checkSeconds(seconds);
+		Ring ring = getRing(name);
+		return sum(ring.counts, System.currentTimeMillis(), seconds) / seconds;
+	}
+
+	/**
+	 * Returns the mean value of the updates of the specified counter in this
+	 * node over the specified last seconds.
+	 *
+	 * @param name the counter's name
+	 * @param seconds the window in seconds, up to {@link #MAX_SECONDS}
+	 * @return the mean value, or zero if there are no updates
+	 */
+	public double getMean(String name, int seconds) {
+		checkSeconds(seconds);
+		Ring ring = getRing(name);
+		long now = System.currentTimeMillis();
+		double count = sum(ring.counts, now, seconds);
+		return count == 0 ? 0 : sum(ring.sums, now, seconds) / count;
+	}
+
+	/**
+	 * Returns the updates per second of the specified counter in all the
+	 * cluster over the specified last seconds, which include the updates of
+	 * the other nodes up to their last publication.
+	 *
+	 * @param name the counter's name
+	 * @param seconds the window in seconds, up to {@link #MAX_SECONDS}
+	 * @return the updates per second
+	 */
+	public double getClusterRate(String name, int seconds) {
+		checkSeconds(seconds);
+		long now = System.currentTimeMillis();
+		double count = sum(getRing(name).counts, now, seconds);
+		for (Snapshot snapshot : getSnapshots(name)) {
+			count += snapshot.sum(snapshot.counts, now, seconds);
+		}
+		return count / seconds;
+	}
+
+	/**
+	 * Returns the mean value of the updates of the specified counter in all
+	 * the cluster over the specified last seconds.
+	 *
+	 * @param name the counter's name
+	 * @param seconds the window in seconds, up to {@link #MAX_SECONDS}
+	 * @return the mean value, or zero if there are no updates
+	 */
+	public double getClusterMean(String name, int seconds) {
+		checkSeconds(seconds);
+		long now = System.currentTimeMillis();
+		Ring ring = getRing(name);
+		double count = sum(ring.counts, now, seconds);
+		double sum = sum(ring.sums, now, seconds);
+		for (Snapshot snapshot : getSnapshots(name)) {
+			count += snapshot.sum(snapshot.counts, now, seconds);
+			sum += snapshot.sum(snapshot.sums, now, seconds);
+		}
+		return count == 0 ? 0 : sum / count;
+	}
+
+	private Ring getRing(String name) {
+		Ring ring = rings.get(name);
+		if (ring == null) {
+			throw new IllegalStateException("Rates are not tracked for counter " + name);
+		}
+		return ring;
+	}
+
+	private static void checkSeconds(int seconds) {
+		if (seconds <= 0 || seconds > MAX_SECONDS) {
+			throw new IllegalArgumentException("The window must be between 1 and " + MAX_SECONDS + " seconds");
+		}
+	}
+
+	/**
+	 * Returns the rings of the specified counter published by the other
+	 * current members of the cluster.
+	 */
+	private Iterable<Snapshot> getSnapshots(String name) {
+		if (map == null) {
+			throw new IllegalStateException("Cluster wide rates require a Hazelcast instance");
+		}
+		Set<String> keys = new HashSet<String>();
+		for (Member member : hazelcast.getCluster().getMembers()) {
+			if (!member.localMember()) keys.add(name + MEMBER_SEPARATOR + member.getUuid());
+		}
+		return map.getAll(keys).values();
+	}
+
+	/**
+	 * Publishes the rings of all the tracked counters.
+	 */
+	private void publish() {
+		String suffix = MEMBER_SEPARATOR + hazelcast.getCluster().getLocalMember().getUuid();
+		long second = System.currentTimeMillis() / 1000;
+		for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+			Ring ring = entry.getValue();
+			Snapshot snapshot = new Snapshot(second, copy(ring.counts, second), copy(ring.sums, second));
+			map.set(entry.getKey() + suffix, snapshot, PUBLISH_TTL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops publishing the rings.
+	 */
+	void shutdown() {
+		if (scheduler == null) return;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Adds the specified delta to the slot of the specified second, resetting
+	 * it first if it belongs to an older second.
+	 */
+	private static void add(AtomicLongArray array, int slot, long second, long delta) {
+		long tag = second & TAG_MASK;
+		for (;;) {
+			long current = array.get(slot);
+			long value = (current >>> VALUE_BITS) == tag ? unpack(current) + delta : delta;
+			if (array.compareAndSet(slot, current, (tag << VALUE_BITS) | (value & VALUE_MASK))) return;
+		}
+	}
+
+	/**
+	 * Returns the value of the slot of the specified second, which is zero if
+	 * the slot belongs to another second.
+	 */
+	private static long get(AtomicLongArray array, long second) {
+		long current = array.get((int) (second % SLOTS));
+		return (current >>> VALUE_BITS) == (second & TAG_MASK) ? unpack(current) : 0;
+	}
+
+	/**
+	 * Returns the signed value held in the low bits of a slot.
+	 */
+	private static long unpack(long slot) {
+		return (slot << (64 - VALUE_BITS)) >> (64 - VALUE_BITS);
+	}
+
+	/**
+	 * Returns the sum of the slots of the specified last seconds up to the
+	 * specified time, weighting the oldest one by the fraction of the current
+	 * second not elapsed yet.
+	 */
+	private static double sum(AtomicLongArray array, long millis, int seconds) {
+		long second = millis / 1000;
+		double sum = 0;
+		for (long s = second - seconds + 1; s <= second; s++) {
+			sum += get(array, s);
+		}
+		return sum + get(array, second - seconds) * (1 - (millis % 1000) / 1000.0);
+	}
+
+	/**
+	 * Returns the values of all the slots, from the specified second
+	 * backwards.
+	 */
+	private static long[] copy(AtomicLongArray array, long second) {
+		long[] values = new long[SLOTS];
+		for (int i = 0; i < SLOTS; i++) {
+			values[i] = get(array, second - i);
+		}
+		return values;
+	}
+
+	/**
+	 * Ring of the counts and sums of the last seconds of a counter.
+	 */
+	private static final class Ring {
+
+		private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+		private final AtomicLongArray sums = new AtomicLongArray(SLOTS);
+	}
+
+	/**
+	 * Published copy of a {@link Ring}, with the values from its second
+	 * backwards.
+	 */
+	private static final class Snapshot implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long second;
+		private final long[] counts;
+		private final long[] sums;
+
+		private Snapshot(long second, long[] counts, long[] sums) {
+			this.second = second;
+			this.counts = counts;
+			this.sums = sums;
+		}
+
+		private double sum(long[] values, long millis, int seconds) {
+			long now = millis / 1000;
+			double sum = 0;
+			for (long s = now - seconds + 1; s <= now; s++) {
+				sum += get(values, s);
+			}
+			return sum + get(values, now - seconds) * (1 - (millis % 1000) / 1000.0);
+		}
+
+		private long get(long[] values, long s) {
+			long age = second - s;
+			return age >= 0 && age < values.length ? values[(int) age] : 0;
+		}
+	}
+
+}
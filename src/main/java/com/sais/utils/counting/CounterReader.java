@@ -0,0 +1,224 @@
+package com.sais.utils.counting;
+
+import java.util.Arrays;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Reads {@link CounterSeries} from the counters column family.
+ *
+ * The counts, sums and squares of a series are fetched concurrently, each of
+ * them paging through the requested time range with asynchronous queries, and
+ * then they are merged by time into primitive arrays.
+ *
+ * If the column family uses the time partitioned layout, the partitions of the
+ * range are fetched in parallel too, and so are the series of several
+ * counters read together, up to {@link #MAX_PARTITIONS_IN_FLIGHT} partitions
+ * at a time.
+ *
+ * @author andres
+ *
+ */
+class CounterReader {
+
+	/** The maximum number of partitions fetched concurrently per read */
+	static final int MAX_PARTITIONS_IN_FLIGHT = 32;
+
+	private final CounterService service;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 */
+	CounterReader(CounterService service) {
+		this.service = service;
+	}
+
+	/**
+	 * Reads the series of the specified counter, {@link TimeGranularity} and
+	 * time range.
+	 *
+	 * @param name the counter's name
+	 * @param granularity the {@link TimeGranularity}
+	 * @param from the inclusive start of the range in milliseconds, already
+	 *            normalized to the start of its bucket
+	 * @param to the inclusive end of the range in milliseconds
+	 * @param values if sums and squares must be read besides counts
+	 * @return the read {@link CounterSeries}
+	 */
+	CounterSeries read(String name, TimeGranularity granularity, long from, long to, boolean values) {
+		return read(new String[] { name }, granularity, from, to, values)[0];
+	}
+
+	/**
+	 * Reads the series of the specified counters, {@link TimeGranularity} and
+	 * time range, fetching all of them concurrently.
+	 *
+	 * @param names the counters' names
+	 * @param granularity the {@link TimeGranularity}
+	 * @param from the inclusive start of the range in milliseconds, already
+	 *            normalized to the start of its bucket
+	 * @param to the inclusive end of the range in milliseconds
+	 * @param values if sums and squares must be read besides counts
+	 * @return the read {@link CounterSeries}, in the order of the names
+	 */
+	CounterSeries[] read(String[] names, TimeGranularity granularity, long from, long to, boolean values) {
+		CounterSeries[] result = new CounterSeries[names.length];
+
+		// Build the fetches of each counter, value type and partition in time order
+		long[] buckets = service.getTable().getBuckets(granularity, from, to, service.getBucketer());
+		if (buckets.length == 0) {
+			for (int n = 0; n < names.length; n++) {
+				result[n] = new CounterSeries(names[n], granularity, 0, new long[0], new long[0], new long[0], new long[0]);
+			}
+			return result;
+		}
+		ValueType[] types = ValueType.values();
+		int perName = types.length * buckets.length;
+		SeriesFetch[] fetches = new SeriesFetch[names.length * perName];
+		for (int n = 0; n < names.length; n++) {
+			for (int i = 0; i < types.length; i++) {
+				for (int j = 0; j < buckets.length; j++) {
+					SeriesFetch fetch = new SeriesFetch(names[n], types[i], granularity, buckets[j], to);
+					fetch.done = !values && types[i] != ValueType.COUNTS;
+					fetches[n * perName + i * buckets.length + j] = fetch;
+				}
+			}
+		}
+
+		// Collect pages in order, keeping a bounded number of partitions in flight
+		int requested = 0;
+		for (int i = 0; i < fetches.length; i++) {
+			while (requested < fetches.length && requested - i < MAX_PARTITIONS_IN_FLIGHT) {
+				SeriesFetch fetch = fetches[requested++];
+				if (!fetch.done) fetch.request(from);
+			}
+			SeriesFetch fetch = fetches[i];
+			while (!fetch.done) {
+				fetch.collect();
+			}
+		}
+
+		// Concatenate the partitions and merge the value types by time
+		for (int n = 0; n < names.length; n++) {
+			int offset = n * perName;
+			result[n] = merge(names[n],
+			                  granularity,
+			                  concat(fetches, offset + ValueType.COUNTS.ordinal() * buckets.length, buckets.length),
+			                  concat(fetches, offset + ValueType.SUMS.ordinal() * buckets.length, buckets.length),
+			                  concat(fetches, offset + ValueType.SQUARES.ordinal() * buckets.length, buckets.length));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a fetch with the values of the specified consecutive fetches,
+	 * which are sorted by time.
+	 */
+	private SeriesFetch concat(SeriesFetch[] fetches, int offset, int length) {
+		if (length == 1) return fetches[offset];
+		int total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += fetches[i].size;
+		}
+		SeriesFetch first = fetches[offset];
+		SeriesFetch result = new SeriesFetch(first.name, first.type, first.granularity, CounterTable.NO_BUCKET, first.to);
+		result.times = new long[total];
+		result.values = new long[total];
+		for (int i = offset; i < offset + length; i++) {
+			SeriesFetch fetch = fetches[i];
+			System.arraycopy(fetch.times, 0, result.times, result.size, fetch.size);
+			System.arraycopy(fetch.values, 0, result.values, result.size, fetch.size);
+			result.size += fetch.size;
+		}
+		result.done = true;
+		return result;
+	}
+
+	/**
+	 * Merges the fetched values by time, using the counts as the reference
+	 * since every event increments them.
+	 */
+	private static CounterSeries merge(String name,
+	                                   TimeGranularity granularity,
+	                                   SeriesFetch counts,
+	                                   SeriesFetch sums,
+	                                   SeriesFetch squares) {
+		int size = counts.size;
+		long[] times = counts.times;
+		long[] sumValues = new long[size];
+		long[] squareValues = new long[size];
+		int j = 0;
+		int k = 0;
+		for (int i = 0; i < size; i++) {
+			long time = times[i];
+			while (j < sums.size && sums.times[j] < time) j++;
+			if (j < sums.size && sums.times[j] == time) sumValues[i] = sums.values[j];
+			while (k < squares.size && squares.times[k] < time) k++;
+			if (k < squares.size && squares.times[k] == time) squareValues[i] = squares.values[k];
+		}
+		return new CounterSeries(name, granularity, size, times, counts.values, sumValues, squareValues);
+	}
+
+	/**
+	 * Paged fetch of the values of a single {@link ValueType} and partition.
+	 */
+	private class SeriesFetch {
+
+		private final String name;
+		private final ValueType type;
+		private final TimeGranularity granularity;
+		private final long bucket;
+		private final long to;
+
+		private long[] times = new long[16];
+		private long[] values = new long[16];
+		private int size;
+		private ResultSetFuture future;
+		private boolean done;
+
+		private SeriesFetch(String name, ValueType type, TimeGranularity granularity, long bucket, long to) {
+			this.name = name;
+			this.type = type;
+			this.granularity = granularity;
+			this.bucket = bucket;
+			this.to = to;
+		}
+
+		private void request(long from) {
+			Object[] bound = service.getTable().getPartitionKey(name, type, granularity, bucket, 2);
+			bound[bound.length - 2] = from;
+			bound[bound.length - 1] = to;
+			BoundStatement query = service.getStatementCache().bind(service.getTable().getRangeQuery(), bound);
+			query.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+			future = service.getSession().executeAsync(query);
+		}
+
+		private void collect() {
+			int rows = 0;
+			for (Row row : future.getUninterruptibly()) {
+				if (size == times.length) {
+					times = Arrays.copyOf(times, size * 2);
+					values = Arrays.copyOf(values, size * 2);
+				}
+				times[size] = row.getLong(0);
+				values[size] = row.getLong(1);
+				size++;
+				rows++;
+			}
+			future = null;
+			long last = size == 0 ? Long.MIN_VALUE : times[size - 1];
+			if (rows == CounterTable.PAGE_SIZE && last < to) {
+				request(last + 1);
+			} else {
+				done = true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,379 @@
+package com.sais.utils.counting;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+import com.sais.utils.locking.Lock;
+import com.sais.utils.locking.LockService;
+
+/**
+ * Background sweeper deleting the values of the counters older than the
+ * retention configured for their {@link TimeGranularity}.
+ *
+ * Counter columns can't expire, so each sweep deletes the values of all the
+ * counters whose buckets are older than the retention of their granularity.
+ * In the time partitioned layout, the partitions holding only expired values
+ * are deleted at once, and the remaining values are deleted one by one after
+ * reading which of them exist. Deletes are throttled to a maximum rate and
+ * sent in groups of asynchronous statements.
+ *
+ * Sweeps are coordinated with a cluster-wide {@link Lock}, so only one node
+ * sweeps a column family at a time, and each granularity has a checkpoint row
+ * with the time up to which its values have been deleted, so each sweep only
+ * visits the buckets expired since the previous one.
+ *
+ * The counters to be swept are the ones indexed in the names column family,
+ * which is done on their first update by each node with retention enabled,
+ * so every node writing the column family must enable it. The retention of a
+ * granularity rolled up by {@link CounterRollup} must be longer than its
+ * rollup delay.
+ *
+ * @author andres
+ *
+ */
+public class CounterRetention {
+
+	/** The name of the column family indexing the counter names */
+	public static final String NAMES_TABLE_NAME = "counter_names";
+
+	/** The name of the column family holding the sweep checkpoints */
+	public static final String TABLE_NAME = "counter_retention";
+
+	/** The prefix of the sweep locks */
+	private static final String LOCK_PREFIX = "counter_retention";
+
+	/** The maximum number of deletes in flight */
+	private static final int BATCH_SIZE = 100;
+
+	/** The maximum number of names returned by a names query */
+	private static final int NAMES_PAGE_SIZE = 1000;
+
+	static final String INSERT_NAME = "INSERT INTO " + NAMES_TABLE_NAME + " (family, name) VALUES (?, ?)";
+	private static final String SELECT_NAMES = "SELECT name FROM " + NAMES_TABLE_NAME + " "
+	                                           + "WHERE family = ? AND name > ? LIMIT " + NAMES_PAGE_SIZE;
+	private static final String SELECT = "SELECT swept FROM " + TABLE_NAME + " WHERE family = ? AND granularity = ?";
+	private static final String UPDATE = "UPDATE " + TABLE_NAME + " SET swept = ? WHERE family = ? AND granularity = ?";
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private final CounterService service;
+	private final LockService lockService;
+	private final RateLimiter rateLimiter;
+	private final ScheduledExecutorService scheduler;
+	private volatile EnumMap<TimeGranularity, Long> retentions = new EnumMap<TimeGranularity, Long>(TimeGranularity.class);
+
+	/* Metrics */
+	private final AtomicLong sweeps = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong deletedCells = new AtomicLong();
+	private final AtomicLong deletedPartitions = new AtomicLong();
+	private volatile long lastSweepTime;
+	private volatile long lastSweepDuration;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param lockService the {@link LockService} coordinating the nodes
+	 * @param intervalMillis the time in milliseconds between sweeps
+	 * @param maxDeletesPerSecond the maximum number of deletes per second
+	 */
+	CounterRetention(CounterService service, LockService lockService, long intervalMillis, double maxDeletesPerSecond) {
+		if (lockService == null) {
+			throw new IllegalArgumentException("A not null lock service is required");
+		}
+		if (intervalMillis <= 0 || maxDeletesPerSecond <= 0) {
+			throw new IllegalArgumentException("Invalid retention scheduling parameters");
+		}
+		this.service = service;
+		this.lockService = lockService;
+		this.rateLimiter = RateLimiter.create(maxDeletesPerSecond);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-retention");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweep();
+				} catch (Throwable t) {
+					failures.incrementAndGet();
+					logger.error("Unexpected error sweeping expired counters", t);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets the retention of the values of the specified granularity.
+	 *
+	 * @param granularity the {@link TimeGranularity}
+	 * @param retentionMillis the time in milliseconds the values are kept
+	 *            after the end of their bucket
+	 */
+	public synchronized void setRetention(TimeGranularity granularity, long retentionMillis) {
+		if (granularity == null || granularity == TimeGranularity.ALL) {
+			throw new IllegalArgumentException("A not null granularity other than " + TimeGranularity.ALL
+			                                   + " is required");
+		}
+		if (retentionMillis <= 0) {
+			throw new IllegalArgumentException("The retention must be greater than zero");
+		}
+		EnumMap<TimeGranularity, Long> updated = new EnumMap<TimeGranularity, Long>(retentions);
+		updated.put(granularity, retentionMillis);
+		retentions = updated;
+	}
+
+	/**
+	 * Removes the retention of the values of the specified granularity, which
+	 * are kept forever from now on.
+	 *
+	 * @param granularity the {@link TimeGranularity}
+	 */
+	public synchronized void removeRetention(TimeGranularity granularity) {
+		EnumMap<TimeGranularity, Long> updated = new EnumMap<TimeGranularity, Long>(retentions);
+		updated.remove(granularity);
+		retentions = updated;
+	}
+
+	/**
+	 * Returns the retention of the values of the specified granularity.
+	 *
+	 * @param granularity the {@link TimeGranularity}
+	 * @return the retention in milliseconds, or {@code null} if the values
+	 *         are kept forever
+	 */
+	public Long getRetention(TimeGranularity granularity) {
+		return retentions.get(granularity);
+	}
+
+	/**
+	 * Deletes the expired values of all the granularities with a retention,
+	 * unless another node is already sweeping the same column family.
+	 */
+	public void sweep() {
+		CounterTable table = service.getTable();
+		Lock lock = lockService.getLock(LOCK_PREFIX, table.getName());
+		if (!lock.tryLock()) return;
+		try {
+			long start = System.currentTimeMillis();
+			long cells = deletedCells.get();
+			long partitions = deletedPartitions.get();
+			for (Map.Entry<TimeGranularity, Long> entry : retentions.entrySet()) {
+				sweep(table, entry.getKey(), start - entry.getValue());
+			}
+			sweeps.incrementAndGet();
+			lastSweepTime = start;
+			lastSweepDuration = System.currentTimeMillis() - start;
+			logger.info("Counters sweep completed in " + lastSweepDuration + " ms, deleted "
+			            + (deletedCells.get() - cells) + " values and "
+			            + (deletedPartitions.get() - partitions) + " partitions");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the values of the specified granularity of all the counters in
+	 * the buckets ending before the specified time.
+	 */
+	private void sweep(CounterTable table, TimeGranularity granularity, long expiration) {
+		TimeBucketer bucketer = service.getBucketer();
+		long cutoff = bucketer.getStart(granularity, expiration);
+		Row checkpoint = execute(SELECT, table.getName(), granularity.getCode()).one();
+		long from = checkpoint == null || checkpoint.isNull(0) ? Long.MIN_VALUE : checkpoint.getLong(0);
+		if (cutoff <= from) return;
+
+		List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>(BATCH_SIZE);
+		String last = "";
+		for (;;) {
+			int names = 0;
+			for (Row row : execute(SELECT_NAMES, table.getName(), last)) {
+				last = row.getString(0);
+				names++;
+				CounterProfile profile = service.getProfile(last);
+				if (!profile.stores(granularity)) continue;
+				for (ValueType type : profile.getTypes()) {
+					sweep(table, last, type, granularity, from, cutoff, futures);
+				}
+			}
+			if (names < NAMES_PAGE_SIZE) break;
+		}
+		await(futures);
+		execute(UPDATE, cutoff, table.getName(), granularity.getCode());
+	}
+
+	/**
+	 * Deletes the values of a series within the specified time range.
+	 */
+	private void sweep(CounterTable table,
+	                   String name,
+	                   ValueType type,
+	                   TimeGranularity granularity,
+	                   long from,
+	                   long to,
+	                   List<ResultSetFuture> futures) {
+		TimeBucketer bucketer = service.getBucketer();
+		TimeGranularity partitionGranularity = table.getPartitionGranularity(granularity);
+		for (long bucket : table.getBuckets(granularity, from, to - 1, bucketer)) {
+			Object[] key = table.getPartitionKey(name, type, granularity, bucket, 0);
+			if (partitionGranularity != null && bucketer.getNext(partitionGranularity, bucket) <= to) {
+				// The whole partition is expired
+				delete(table.getDeleteQuery(), key, futures);
+				deletedPartitions.incrementAndGet();
+			} else {
+				deleteCells(table, key, from, to, futures);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the existing values of a partition within the specified time
+	 * range.
+	 */
+	private void deleteCells(CounterTable table, Object[] key, long from, long to, List<ResultSetFuture> futures) {
+		Object[] range = new Object[key.length + 2];
+		System.arraycopy(key, 0, range, 0, key.length);
+		range[key.length + 1] = to;
+		long next = from;
+		for (;;) {
+			range[key.length] = next;
+			int rows = 0;
+			for (Row row : read(table.getTimesQuery(), range)) {
+				rows++;
+				long time = row.getLong(0);
+				Object[] cell = new Object[key.length + 1];
+				System.arraycopy(key, 0, cell, 0, key.length);
+				cell[key.length] = time;
+				delete(table.getCellDeleteQuery(), cell, futures);
+				deletedCells.incrementAndGet();
+				next = time + 1;
+			}
+			if (rows < CounterTable.PAGE_SIZE) return;
+		}
+	}
+
+	/**
+	 * Sends a throttled delete, waiting for the previous ones if there are too
+	 * many in flight.
+	 */
+	private void delete(String query, Object[] values, List<ResultSetFuture> futures) {
+		if (futures.size() == BATCH_SIZE) await(futures);
+		rateLimiter.acquire();
+		BoundStatement delete = service.getStatementCache().bind(query, values);
+		delete.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+		futures.add(service.getSession().executeAsync(delete));
+	}
+
+	private static void await(List<ResultSetFuture> futures) {
+		for (ResultSetFuture future : futures) {
+			future.getUninterruptibly();
+		}
+		futures.clear();
+	}
+
+	private ResultSet read(String query, Object... values) {
+		BoundStatement statement = service.getStatementCache().bind(query, values);
+		statement.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+		return service.getSession().execute(statement);
+	}
+
+	private ResultSet execute(String query, Object... values) {
+		BoundStatement statement = service.getStatementCache().bind(query, values);
+		statement.setConsistencyLevel(ConsistencyLevel.QUORUM);
+		return service.getSession().execute(statement);
+	}
+
+	/**
+	 * Stops the periodic sweeps.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of completed sweeps.
+	 *
+	 * @return the number of completed sweeps
+	 */
+	public long getSweeps() {
+		return sweeps.get();
+	}
+
+	/**
+	 * Returns the number of failed sweeps.
+	 *
+	 * @return the number of failed sweeps
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the total number of single values deleted.
+	 *
+	 * @return the total number of deleted values
+	 */
+	public long getDeletedCells() {
+		return deletedCells.get();
+	}
+
+	/**
+	 * Returns the total number of whole partitions deleted.
+	 *
+	 * @return the total number of deleted partitions
+	 */
+	public long getDeletedPartitions() {
+		return deletedPartitions.get();
+	}
+
+	/**
+	 * Returns the start time in milliseconds of the last sweep.
+	 *
+	 * @return the start time in milliseconds of the last sweep
+	 */
+	public long getLastSweepTime() {
+		return lastSweepTime;
+	}
+
+	/**
+	 * Returns the duration in milliseconds of the last sweep.
+	 *
+	 * @return the duration in milliseconds of the last sweep
+	 */
+	public long getLastSweepDuration() {
+		return lastSweepDuration;
+	}
+
+}
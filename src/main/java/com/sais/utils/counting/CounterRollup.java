@@ -0,0 +1,605 @@
+package com.sais.utils.counting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+import com.sais.utils.locking.Lock;
+import com.sais.utils.locking.LockService;
+
+/**
+ * Background worker deriving the coarser granularities of the counters from
+ * their finest stored granularity.
+ *
+ * When rollup is enabled, {@link Counter#update(java.util.Date, Long)} only
+ * writes the finest granularity of the counter's {@link CounterProfile}. This
+ * worker periodically reads each closed rollup window (for example, the
+ * minutes of a closed hour), adds them up and increments all the other stored
+ * granularities with the totals in a single batch.
+ *
+ * Each counter has a checkpoint row, in the family of its column family, with
+ * the start of its next window to be rolled up and the code of its profile,
+ * and the windows of a counter are processed while holding a cluster-wide
+ * {@link Lock}, so each window is rolled up once even with several nodes
+ * running this worker. A crash between writing the totals of a window and
+ * advancing its checkpoint makes that window to be rolled up again.
+ *
+ * Updates are routed by the last checkpoint of their counter known by this
+ * node, without blocking: updates of windows before it are never going to be
+ * rolled up, so all their granularities are written directly, and updates of
+ * windows that can't be closed yet only write the finest granularity. The
+ * updates of counters not registered by this node yet, and the ones whose
+ * window may be being rolled up, are deferred to a background thread, which
+ * registers the counter at the window of its first update and writes them
+ * while holding the counter's lock, after reading its checkpoint. If too many
+ * updates are deferred, the calling thread writes them itself.
+ *
+ * @author andres
+ *
+ */
+public class CounterRollup {
+
+	/** The name of the column family holding the rollup checkpoints */
+	public static final String TABLE_NAME = "counter_rollups";
+
+	/** The prefix of the rollup locks */
+	private static final String LOCK_PREFIX = "counter_rollup";
+
+	/** The maximum number of checkpoints returned by a checkpoints query */
+	private static final int CHECKPOINTS_PAGE_SIZE = 1000;
+
+	/** The maximum number of deferred updates waiting to be written */
+	private static final int MAX_DEFERRED = 10000;
+
+	/** The maximum number of deferred updates written at once */
+	private static final int MAX_DRAINED = 1000;
+
+	/** The output logger's name */
+	private static final String LOGGER_NAME = "com.sais.utils.counting";
+
+	/** The output logger */
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private static final String SELECT_PAGE = "SELECT name, checkpoint, profile FROM " + TABLE_NAME + " "
+	                                          + "WHERE family = ? AND name > ? LIMIT " + CHECKPOINTS_PAGE_SIZE;
+	private static final String SELECT = "SELECT checkpoint FROM " + TABLE_NAME + " WHERE family = ? AND name = ?";
+	private static final String REGISTER = "UPDATE " + TABLE_NAME + " SET checkpoint = ?, profile = ? "
+	                                       + "WHERE family = ? AND name = ?";
+	private static final String UPDATE = "UPDATE " + TABLE_NAME + " SET checkpoint = ? WHERE family = ? AND name = ?";
+
+	/**
+	 * How the increments of an update are written.
+	 */
+	static enum Route {
+
+		/** Only the finest granularity, which is rolled up later */
+		FINEST,
+
+		/** All the stored granularities, as the window is already rolled up */
+		ALL,
+
+		/** Deferred until the counter's checkpoint is read */
+		DEFERRED
+	}
+
+	private final CounterService service;
+	private final LockService lockService;
+	private final String family;
+	private final long closeDelay;
+	private final int maxWindowsPerRun;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService writer;
+
+	/** The last known checkpoint of the counters registered by this node */
+	private final ConcurrentMap<String, Long> checkpoints = new ConcurrentHashMap<String, Long>();
+
+	/** The updates waiting to be written by the background thread */
+	private final BlockingQueue<DeferredUpdate> deferred = new LinkedBlockingQueue<DeferredUpdate>(MAX_DEFERRED);
+
+	/* Metrics */
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong windows = new AtomicLong();
+	private final AtomicLong deferredUpdates = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long lastRunTime;
+	private volatile long lastRunDuration;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param lockService the {@link LockService} coordinating the nodes
+	 * @param intervalMillis the time in milliseconds between runs
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            window is rolled up
+	 * @param maxWindowsPerRun the maximum number of windows rolled up per
+	 *            counter and run
+	 */
+	CounterRollup(CounterService service,
+	              LockService lockService,
+	              long intervalMillis,
+	              long closeDelayMillis,
+	              int maxWindowsPerRun) {
+		if (lockService == null) {
+			throw new IllegalArgumentException("A not null lock service is required");
+		}
+		if (intervalMillis <= 0 || closeDelayMillis < 0 || maxWindowsPerRun <= 0) {
+			throw new IllegalArgumentException("Invalid rollup scheduling parameters");
+		}
+		this.service = service;
+		this.lockService = lockService;
+		this.family = service.getTable().getName();
+		this.closeDelay = closeDelayMillis;
+		this.maxWindowsPerRun = maxWindowsPerRun;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-rollup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "counter-rollup-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rollup();
+				} catch (Throwable t) {
+					failures.incrementAndGet();
+					logger.error("Unexpected error rolling up counters", t);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeDeferred();
+			}
+		});
+	}
+
+	/**
+	 * Returns if the specified {@link CounterProfile} is rolled up, that is, if
+	 * its finest granularity has coarser granularities to be derived from it.
+	 *
+	 * @param profile the {@link CounterProfile}
+	 * @return {@code true} if the profile is rolled up, {@code false}
+	 *         otherwise
+	 */
+	static boolean isRolledUp(CounterProfile profile) {
+		return profile.getRollupWindow() != null && profile.getGranularities().length > 1;
+	}
+
+	/**
+	 * Returns how the increments of the specified update must be written,
+	 * deferring the update if it can't be decided without reading its
+	 * counter's checkpoint.
+	 *
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}, which is rolled up
+	 * @param starts the bucket starts of the update's time, by granularity
+	 * @param millis the update's time in milliseconds
+	 * @param value the update's value for means, deviations and variances
+	 * @return the {@link Route} of the increments, which are already handled
+	 *         if it is {@link Route#DEFERRED}
+	 */
+	Route route(String name, CounterProfile profile, long[] starts, long millis, Long value) {
+		Route route = getRoute(name, profile, starts);
+		if (route != Route.DEFERRED) return route;
+		DeferredUpdate update = new DeferredUpdate(name, profile, millis, value);
+		deferredUpdates.incrementAndGet();
+		if (!deferred.offer(update)) {
+			write(name, Collections.singletonList(update));
+		}
+		return Route.DEFERRED;
+	}
+
+	/**
+	 * Returns how the increments of an update must be written according to
+	 * the last checkpoint of its counter known by this node, without handling
+	 * them.
+	 *
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}, which is rolled up
+	 * @param starts the bucket starts of the update's time, by granularity
+	 * @return the {@link Route} of the increments, or {@link Route#DEFERRED}
+	 *         if it can't be decided without reading the counter's checkpoint
+	 */
+	Route getRoute(String name, CounterProfile profile, long[] starts) {
+		TimeGranularity window = profile.getRollupWindow();
+		long windowStart = starts[window.ordinal()];
+		Long checkpoint = checkpoints.get(name);
+		if (checkpoint == null) return Route.DEFERRED;
+		if (windowStart < checkpoint) return Route.ALL;
+		long boundary = service.getBucketer().getStart(window, System.currentTimeMillis() - closeDelay);
+		return windowStart >= boundary ? Route.FINEST : Route.DEFERRED;
+	}
+
+	/**
+	 * Registers the specified counter to be rolled up from the first window
+	 * not closed yet, if it is not registered already, so the closed windows
+	 * are written by bulk loaders to all the granularities.
+	 *
+	 * This blocks while reading and writing the checkpoint, so it is not
+	 * intended for the updates.
+	 *
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}, which is rolled up
+	 * @return the counter's checkpoint
+	 */
+	long register(String name, CounterProfile profile) {
+		TimeGranularity window = profile.getRollupWindow();
+		long start = service.getBucketer().getStart(window, System.currentTimeMillis() - closeDelay);
+		Lock lock = lockService.getLock(LOCK_PREFIX, family, name);
+		lock.lock();
+		try {
+			long checkpoint = getCheckpoint(name, profile, start);
+			advance(name, checkpoint);
+			return checkpoint;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the specified increments of a window of a counter while holding
+	 * its lock, to all their granularities if the window is already rolled
+	 * up, or only to the finest one otherwise, registering the counter at the
+	 * window if it is not registered yet.
+	 *
+	 * This blocks while writing them, so it is intended for bulk loaders,
+	 * which aggregate the increments of the windows that may be being rolled
+	 * up instead of deferring them one by one.
+	 *
+	 * @param name the counter's name
+	 * @param profile the counter's {@link CounterProfile}, which is rolled up
+	 * @param windowStart the start of the rollup window of the increments
+	 * @param cells the deltas by {@link CounterCell} of all the stored
+	 *            granularities, all of them within the window
+	 * @return the number of written increments
+	 */
+	int write(String name, CounterProfile profile, long windowStart, Map<CounterCell, long[]> cells) {
+		TimeGranularity finest = profile.getFinest();
+		Lock lock = lockService.getLock(LOCK_PREFIX, family, name);
+		lock.lock();
+		try {
+			long checkpoint = getCheckpoint(name, profile, windowStart);
+			boolean rolledUp = windowStart < checkpoint;
+			int written = 0;
+			CounterBatch batch = new CounterBatch(service, Math.min(cells.size(), CounterTable.MAX_BATCH_SIZE));
+			for (Map.Entry<CounterCell, long[]> entry : cells.entrySet()) {
+				CounterCell cell = entry.getKey();
+				long delta = entry.getValue()[0];
+				if (delta == 0 || !rolledUp && cell.getGranularity() != finest) continue;
+				if (batch.size() == CounterTable.MAX_BATCH_SIZE) {
+					batch.execute();
+					batch = new CounterBatch(service, CounterTable.MAX_BATCH_SIZE);
+				}
+				batch.add(cell, delta);
+				written++;
+			}
+			batch.execute();
+			advance(name, checkpoint);
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the checkpoint of the specified counter, registering it at the
+	 * specified window start if it is not registered yet. Requires holding
+	 * the counter's lock.
+	 */
+	private long getCheckpoint(String name, CounterProfile profile, long start) {
+		Row row = execute(SELECT, family, name).one();
+		if (row != null && !row.isNull(0)) return row.getLong(0);
+		execute(REGISTER, start, profile.getCode(), family, name);
+		return start;
+	}
+
+	/**
+	 * Writes the deferred updates until this is shut down.
+	 */
+	private void writeDeferred() {
+		List<DeferredUpdate> updates = new ArrayList<DeferredUpdate>();
+		while (!scheduler.isShutdown() || !deferred.isEmpty()) {
+			try {
+				DeferredUpdate update = deferred.poll(1, TimeUnit.SECONDS);
+				if (update == null) continue;
+				updates.add(update);
+			} catch (InterruptedException e) {
+				break;
+			}
+			deferred.drainTo(updates, MAX_DRAINED - 1);
+			write(updates);
+			updates.clear();
+		}
+	}
+
+	/**
+	 * Writes the specified deferred updates, grouped by counter.
+	 */
+	private void write(List<DeferredUpdate> updates) {
+		Map<String, List<DeferredUpdate>> byName = new LinkedHashMap<String, List<DeferredUpdate>>();
+		for (DeferredUpdate update : updates) {
+			List<DeferredUpdate> counterUpdates = byName.get(update.name);
+			if (counterUpdates == null) {
+				counterUpdates = new ArrayList<DeferredUpdate>();
+				byName.put(update.name, counterUpdates);
+			}
+			counterUpdates.add(update);
+		}
+		for (Map.Entry<String, List<DeferredUpdate>> entry : byName.entrySet()) {
+			try {
+				write(entry.getKey(), entry.getValue());
+			} catch (RuntimeException e) {
+				failures.incrementAndGet();
+				logger.error("Error writing " + entry.getValue().size() + " deferred updates of counter " + entry.getKey(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the specified deferred updates of a counter while holding its
+	 * lock, registering it at the window of its earliest update if it is not
+	 * registered yet, so none of them is written within a window being rolled
+	 * up.
+	 */
+	private void write(String name, List<DeferredUpdate> updates) {
+		TimeBucketer bucketer = service.getBucketer();
+		CounterProfile profile = updates.get(0).profile;
+		Lock lock = lockService.getLock(LOCK_PREFIX, family, name);
+		lock.lock();
+		try {
+			long earliest = Long.MAX_VALUE;
+			for (DeferredUpdate update : updates) {
+				TimeGranularity window = update.profile.getRollupWindow();
+				earliest = Math.min(earliest, bucketer.getStart(window, update.millis));
+			}
+			long checkpoint = getCheckpoint(name, profile, earliest);
+			long[] starts = new long[TimeGranularity.values().length];
+			CounterBatch batch = new CounterBatch(service, CounterTable.MAX_BATCH_SIZE);
+			for (DeferredUpdate update : updates) {
+				CounterProfile updateProfile = update.profile;
+				if (batch.size() + updateProfile.getCellsPerUpdate() > CounterTable.MAX_BATCH_SIZE) {
+					batch.execute();
+					batch = new CounterBatch(service, CounterTable.MAX_BATCH_SIZE);
+				}
+				bucketer.getStarts(update.millis, starts);
+				boolean rolledUp = starts[updateProfile.getRollupWindow().ordinal()] < checkpoint;
+				Counter.add(name, updateProfile, null, batch, starts, update.value, rolledUp ? null : updateProfile.getFinest());
+			}
+			batch.execute();
+			advance(name, checkpoint);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Raises the known checkpoint of a counter registered by this node, if
+	 * the specified one is later.
+	 */
+	private void advance(String name, long checkpoint) {
+		for (;;) {
+			Long known = checkpoints.get(name);
+			if (known == null) {
+				if (checkpoints.putIfAbsent(name, checkpoint) == null) return;
+			} else if (known >= checkpoint || checkpoints.replace(name, known, checkpoint)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Rolls up the closed windows of all the registered counters.
+	 *
+	 * Counters locked by other nodes are skipped until the next run.
+	 */
+	public void rollup() {
+		long start = System.currentTimeMillis();
+		String last = "";
+		for (;;) {
+			int names = 0;
+			for (Row row : execute(SELECT_PAGE, family, last)) {
+				last = row.getString(0);
+				names++;
+				if (scheduler.isShutdown() || row.isNull(1)) continue;
+				try {
+					rollup(last, row.getLong(1), row.getString(2), start);
+				} catch (RuntimeException e) {
+					failures.incrementAndGet();
+					logger.error("Error rolling up counter " + last, e);
+				}
+			}
+			if (names < CHECKPOINTS_PAGE_SIZE || scheduler.isShutdown()) break;
+		}
+		runs.incrementAndGet();
+		lastRunTime = start;
+		lastRunDuration = System.currentTimeMillis() - start;
+	}
+
+	private void rollup(String name, long checkpoint, String profileCode, long now) {
+
+		// Skip counters without closed windows
+		if (checkpoints.containsKey(name)) advance(name, checkpoint);
+		CounterProfile profile = profileCode == null ? service.getProfile(name) : CounterProfile.fromCode(profileCode);
+		if (!isRolledUp(profile)) return;
+		TimeBucketer bucketer = service.getBucketer();
+		TimeGranularity window = profile.getRollupWindow();
+		long boundary = bucketer.getStart(window, now - closeDelay);
+		if (checkpoint >= boundary) return;
+
+		// Lock the counter and read its checkpoint again
+		Lock lock = lockService.getLock(LOCK_PREFIX, family, name);
+		if (!lock.tryLock()) return;
+		try {
+			Row row = execute(SELECT, family, name).one();
+			if (row == null) return;
+			checkpoint = row.getLong(0);
+			TimeGranularity finest = profile.getFinest();
+			boolean values = profile.stores(ValueType.SUMS) || profile.stores(ValueType.SQUARES);
+			for (int i = 0; i < maxWindowsPerRun && checkpoint < boundary; i++) {
+				long next = bucketer.getNext(window, checkpoint);
+				CounterSeries series = service.getReader().read(name, finest, checkpoint, next - 1, values);
+				write(name, profile, checkpoint, series);
+				execute(UPDATE, next, family, name);
+				checkpoint = next;
+				windows.incrementAndGet();
+			}
+			if (checkpoints.containsKey(name)) advance(name, checkpoint);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Increments all the stored granularities but the finest one with the
+	 * totals of the specified window.
+	 */
+	private void write(String name, CounterProfile profile, long windowStart, CounterSeries series) {
+		long count = 0;
+		long sum = 0;
+		long square = 0;
+		for (int i = 0; i < series.size(); i++) {
+			count += series.getCount(i);
+			sum += series.getSum(i);
+			square += series.getSquare(i);
+		}
+		if (count == 0) return;
+		TimeBucketer bucketer = service.getBucketer();
+		TimeGranularity finest = profile.getFinest();
+		CounterBatch batch = new CounterBatch(service, profile.getCellsPerUpdate());
+		for (TimeGranularity granularity : profile.getGranularities()) {
+			if (granularity == finest) continue;
+			long time = bucketer.getStart(granularity, windowStart);
+			for (ValueType type : profile.getTypes()) {
+				long delta = type == ValueType.COUNTS ? count : type == ValueType.SUMS ? sum : square;
+				if (delta != 0) batch.add(new CounterCell(name, type, granularity, time), delta);
+			}
+		}
+		batch.execute();
+	}
+
+	private ResultSet execute(String query, Object... values) {
+		BoundStatement statement = service.getStatementCache().bind(query, values);
+		statement.setConsistencyLevel(ConsistencyLevel.QUORUM);
+		return service.getSession().execute(statement);
+	}
+
+	/**
+	 * Stops the periodic rollup, after writing the deferred updates.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		writer.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of completed runs.
+	 *
+	 * @return the number of completed runs
+	 */
+	public long getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * Returns the total number of rolled up windows.
+	 *
+	 * @return the total number of rolled up windows
+	 */
+	public long getWindows() {
+		return windows.get();
+	}
+
+	/**
+	 * Returns the total number of updates deferred to the background thread.
+	 *
+	 * @return the total number of deferred updates
+	 */
+	public long getDeferredUpdates() {
+		return deferredUpdates.get();
+	}
+
+	/**
+	 * Returns the number of failed counter rollups and deferred writes.
+	 *
+	 * @return the number of failed counter rollups and deferred writes
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the start time in milliseconds of the last run.
+	 *
+	 * @return the start time in milliseconds of the last run
+	 */
+	public long getLastRunTime() {
+		return lastRunTime;
+	}
+
+	/**
+	 * Returns the duration in milliseconds of the last run.
+	 *
+	 * @return the duration in milliseconds of the last run
+	 */
+	public long getLastRunDuration() {
+		return lastRunDuration;
+	}
+
+	/**
+	 * An update whose increments are written by the background thread.
+	 */
+	private static final class DeferredUpdate {
+
+		private final String name;
+		private final CounterProfile profile;
+		private final long millis;
+		private final Long value;
+
+		private DeferredUpdate(String name, CounterProfile profile, long millis, Long value) {
+			this.name = name;
+			this.profile = profile;
+			this.millis = millis;
+			this.value = value;
+		}
+	}
+
+}
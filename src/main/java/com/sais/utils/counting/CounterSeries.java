@@ -0,0 +1,319 @@
+package com.sais.utils.counting;
+
+import java.util.Date;
+
+import com.sais.utils.counting.Counter.StatType;
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Time series of the values of a {@link Counter} for a specific
+ * {@link TimeGranularity}.
+ *
+ * Values are held in primitive arrays aligned by position with the bucket
+ * start times, which are sorted in ascending order. Derived statistics are
+ * computed in a single pass over those arrays.
+ *
+ * @author andres
+ *
+ */
+public class CounterSeries {
+
+	private final String name;
+	private final TimeGranularity granularity;
+	private final int size;
+	private final long[] times;
+	private final long[] counts;
+	private final long[] sums;
+	private final long[] squares;
+
+	/**
+	 * Constructor.
+	 *
+	 * The arrays are not copied, and they may be longer than the series size.
+	 *
+	 * @param name the counter's name
+	 * @param granularity the {@link TimeGranularity}
+	 * @param size the number of buckets
+	 * @param times the bucket start times in milliseconds, in ascending order
+	 * @param counts the number of events per bucket
+	 * @param sums the sum of the event values per bucket
+	 * @param squares the sum of the squared event values per bucket
+	 */
+	CounterSeries(String name,
+	              TimeGranularity granularity,
+	              int size,
+	              long[] times,
+	              long[] counts,
+	              long[] sums,
+	              long[] squares) {
+		this.name = name;
+		this.granularity = granularity;
+		this.size = size;
+		this.times = times;
+		this.counts = counts;
+		this.sums = sums;
+		this.squares = squares;
+	}
+
+	/**
+	 * Returns the counter's name.
+	 *
+	 * @return the counter's name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the {@link TimeGranularity} of this series.
+	 *
+	 * @return the {@link TimeGranularity}
+	 */
+	public TimeGranularity getGranularity() {
+		return granularity;
+	}
+
+	/**
+	 * Returns the number of buckets of this series.
+	 *
+	 * @return the number of buckets
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the start time in milliseconds of the bucket at the specified
+	 * position.
+	 *
+	 * @param index the bucket position
+	 * @return the start time in milliseconds of the bucket
+	 */
+	public long getTime(int index) {
+		checkIndex(index);
+		return times[index];
+	}
+
+	/**
+	 * Returns the start date of the bucket at the specified position.
+	 *
+	 * @param index the bucket position
+	 * @return the start date of the bucket
+	 */
+	public Date getDate(int index) {
+		return new Date(getTime(index));
+	}
+
+	/**
+	 * Returns the number of events of the bucket at the specified position.
+	 *
+	 * @param index the bucket position
+	 * @return the number of events
+	 */
+	public long getCount(int index) {
+		checkIndex(index);
+		return counts[index];
+	}
+
+	/**
+	 * Returns the sum of the event values of the bucket at the specified
+	 * position.
+	 *
+	 * @param index the bucket position
+	 * @return the sum of the event values
+	 */
+	public long getSum(int index) {
+		checkIndex(index);
+		return sums[index];
+	}
+
+	/**
+	 * Returns the sum of the squared event values of the bucket at the
+	 * specified position.
+	 *
+	 * @param index the bucket position
+	 * @return the sum of the squared event values
+	 */
+	public long getSquare(int index) {
+		checkIndex(index);
+		return squares[index];
+	}
+
+	/**
+	 * Returns the bucket start times in milliseconds.
+	 *
+	 * @return a copy of the bucket start times
+	 */
+	public long[] getTimes() {
+		return copy(times);
+	}
+
+	/**
+	 * Returns the specified statistical indicator for each bucket, aligned by
+	 * position with {@link #getTimes()}.
+	 *
+	 * @param stat the {@link StatType}
+	 * @return the value of the statistical indicator for each bucket
+	 */
+	public double[] getStats(StatType stat) {
+		double[] result = new double[size];
+		switch (stat) {
+		case COUNTS:
+			for (int i = 0; i < size; i++) {
+				result[i] = counts[i];
+			}
+			return result;
+		case SUMS:
+			for (int i = 0; i < size; i++) {
+				result[i] = sums[i];
+			}
+			return result;
+		case SQUARES:
+			for (int i = 0; i < size; i++) {
+				result[i] = squares[i];
+			}
+			return result;
+		case MEANS:
+			for (int i = 0; i < size; i++) {
+				result[i] = counts[i] == 0 ? 0.0 : (double) sums[i] / counts[i];
+			}
+			return result;
+		case DEVIATIONS:
+			for (int i = 0; i < size; i++) {
+				result[i] = Math.sqrt(variance(counts[i], sums[i], squares[i]));
+			}
+			return result;
+		case VARIANCES:
+			for (int i = 0; i < size; i++) {
+				result[i] = variance(counts[i], sums[i], squares[i]);
+			}
+			return result;
+		default:
+			throw new RuntimeException();
+		}
+	}
+
+	/**
+	 * Returns the sub-series of the buckets starting within the specified
+	 * inclusive time range.
+	 *
+	 * @param from the inclusive range start in milliseconds
+	 * @param to the inclusive range end in milliseconds
+	 * @return the sub-series within the range, sharing the arrays of this
+	 */
+	CounterSeries slice(long from, long to) {
+		int start = lowerBound(from);
+		int end = to == Long.MAX_VALUE ? size : lowerBound(to + 1);
+		if (start == 0 && end == size) return this;
+		int length = Math.max(0, end - start);
+		long[][] arrays = new long[4][length];
+		System.arraycopy(times, start, arrays[0], 0, length);
+		System.arraycopy(counts, start, arrays[1], 0, length);
+		System.arraycopy(sums, start, arrays[2], 0, length);
+		System.arraycopy(squares, start, arrays[3], 0, length);
+		return new CounterSeries(name, granularity, length, arrays[0], arrays[1], arrays[2], arrays[3]);
+	}
+
+	/**
+	 * Returns the concatenation of the specified series, whose buckets must be
+	 * all after the buckets of this.
+	 *
+	 * @param next the series to be appended
+	 * @return the concatenated series
+	 */
+	CounterSeries append(CounterSeries next) {
+		if (next.size == 0) return this;
+		if (size == 0) return next;
+		int length = size + next.size;
+		long[][] arrays = new long[4][length];
+		System.arraycopy(times, 0, arrays[0], 0, size);
+		System.arraycopy(counts, 0, arrays[1], 0, size);
+		System.arraycopy(sums, 0, arrays[2], 0, size);
+		System.arraycopy(squares, 0, arrays[3], 0, size);
+		System.arraycopy(next.times, 0, arrays[0], size, next.size);
+		System.arraycopy(next.counts, 0, arrays[1], size, next.size);
+		System.arraycopy(next.sums, 0, arrays[2], size, next.size);
+		System.arraycopy(next.squares, 0, arrays[3], size, next.size);
+		return new CounterSeries(name, granularity, length, arrays[0], arrays[1], arrays[2], arrays[3]);
+	}
+
+	/**
+	 * Returns the series resulting from adding up the buckets of this into
+	 * the buckets of the specified coarser {@link TimeGranularity}.
+	 *
+	 * @param target the coarser {@link TimeGranularity}
+	 * @param bucketer the {@link TimeBucketer} defining the bucket boundaries
+	 * @return the rolled up series
+	 */
+	CounterSeries rollup(TimeGranularity target, TimeBucketer bucketer) {
+		long[] rolledTimes = new long[size];
+		long[] rolledCounts = new long[size];
+		long[] rolledSums = new long[size];
+		long[] rolledSquares = new long[size];
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			long time = bucketer.getStart(target, times[i]);
+			if (length == 0 || rolledTimes[length - 1] != time) {
+				rolledTimes[length++] = time;
+			}
+			rolledCounts[length - 1] += counts[i];
+			rolledSums[length - 1] += sums[i];
+			rolledSquares[length - 1] += squares[i];
+		}
+		return new CounterSeries(name, target, length, rolledTimes, rolledCounts, rolledSums, rolledSquares);
+	}
+
+	/**
+	 * Returns the position of the first bucket starting at or after the
+	 * specified time.
+	 */
+	private int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (times[middle] < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the sample variance of a bucket.
+	 */
+	private static double variance(long count, long sum, long square) {
+		if (count <= 1) return 0.0;
+		double n = count;
+		double s = sum;
+		double variance = (square - s * s / n) / (n - 1);
+		return variance < 0.0 ? 0.0 : variance;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+	}
+
+	private long[] copy(long[] array) {
+		long[] copy = new long[size];
+		System.arraycopy(array, 0, copy, 0, size);
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(name).append(' ').append(granularity.getCode()).append(" [");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) builder.append(", ");
+			builder.append(times[i]).append('=').append(counts[i]);
+		}
+		builder.append(']');
+		return builder.toString();
+	}
+
+}
@@ -1,25 +1,846 @@
 package com.sais.utils.counting;
 
-import com.datastax.driver.core.Cluster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import org.joda.time.DateTimeZone;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.Cluster.Builder;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.sais.utils.cassandra.ConsistencyLevel;
+import com.sais.utils.cassandra.SessionRegistry;
+import com.sais.utils.cassandra.StatementCache;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.locking.LockService;
 
 public class CounterService {
-	
-	private String columnFamilyName;
+
+	/** The maximum number of tag values remembered as indexed by this node */
+	private static final int MAX_INDEXED_TAGS = 100000;
+
+	/** The maximum number of counter names remembered as indexed by this node */
+	private static final int MAX_INDEXED_NAMES = 100000;
+
+	private CounterTable table;
+	private String keyspaceName;
 	private Session session;
+	private StatementCache statementCache;
+	private TimeBucketer bucketer;
+	private CounterReader reader;
+	private volatile CounterAggregator aggregator;
+	private volatile CounterCache cache;
+	private volatile CounterRollup rollup;
+	private volatile CounterJournal journal;
+	private volatile CounterClusterAggregation clusterAggregation;
+	private volatile CounterHistograms histograms;
+	private volatile CounterDistincts distincts;
+	private volatile CounterHeavyHitters heavyHitters;
+	private volatile CounterRates rates;
+	private volatile CounterRetention retention;
+	private volatile ConsistencyLevel writeConsistencyLevel = ConsistencyLevel.QUORUM;
+	private volatile ConsistencyLevel readConsistencyLevel = ConsistencyLevel.QUORUM;
+	private volatile Semaphore pendingWrites;
+	private int maxPendingWrites;
+	private final Cache<String, Boolean> indexedTags = CacheBuilder.newBuilder().maximumSize(MAX_INDEXED_TAGS).build();
+	private final ConcurrentMap<String, Boolean> indexedNames = CacheBuilder.newBuilder()
+	                                                                        .maximumSize(MAX_INDEXED_NAMES)
+	                                                                        .<String, Boolean> build()
+	                                                                        .asMap();
+	private volatile TreeMap<String, CounterProfile> profiles = new TreeMap<String, CounterProfile>();
 
+	/**
+	 * Constructor using the JVM's default time zone for the time buckets.
+	 *
+	 * @param contactPoints the Cassandra's contact point hosts separated by
+	 *            commas
+	 * @param keyspaceName the name of the keyspace to be used
+	 * @param columnFamilyName the name of the counters column family
+	 */
 	public CounterService(String contactPoints, String keyspaceName, String columnFamilyName) {
-		this.columnFamilyName = columnFamilyName;
-		Builder builder = Cluster.builder();
-		builder.addContactPoints(contactPoints.split(","));
-		Cluster cluster = builder.build();
-		this.session = cluster.connect(keyspaceName);
+		this(contactPoints, keyspaceName, columnFamilyName, DateTimeZone.getDefault());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param contactPoints the Cassandra's contact point hosts separated by
+	 *            commas
+	 * @param keyspaceName the name of the keyspace to be used
+	 * @param columnFamilyName the name of the counters column family
+	 * @param zone the time zone defining the boundaries of the time buckets
+	 */
+	public CounterService(String contactPoints, String keyspaceName, String columnFamilyName, DateTimeZone zone) {
+		this(contactPoints, keyspaceName, new CounterTable(columnFamilyName), zone);
+	}
+
+	/**
+	 * Constructor for a counters column family with the time partitioned
+	 * layout, such as the {@code counts_bucketed} one of the schema, whose
+	 * partition key includes a time bucket so the partition size is bounded.
+	 *
+	 * Minutely values are partitioned by month and hourly values by year, and
+	 * range reads fetch all the partitions of the range in parallel. The
+	 * partitions before the specified origin are neither read nor deleted, so
+	 * it should be before the oldest stored value.
+	 *
+	 * @param contactPoints the Cassandra's contact point hosts separated by
+	 *            commas
+	 * @param keyspaceName the name of the keyspace to be used
+	 * @param columnFamilyName the name of the time partitioned counters column
+	 *            family
+	 * @param zone the time zone defining the boundaries of the time buckets
+	 * @param origin the date of the oldest partition to be read
+	 */
+	public CounterService(String contactPoints,
+	                      String keyspaceName,
+	                      String columnFamilyName,
+	                      DateTimeZone zone,
+	                      Date origin) {
+		this(contactPoints, keyspaceName, partitionedTable(columnFamilyName, origin), zone);
+	}
+
+	private CounterService(String contactPoints, String keyspaceName, CounterTable table, DateTimeZone zone) {
+		this.table = table;
+		this.bucketer = new TimeBucketer(zone);
+		this.reader = new CounterReader(this);
+		this.keyspaceName = keyspaceName;
+		this.session = SessionRegistry.acquire(contactPoints, keyspaceName);
+		this.statementCache = SessionRegistry.getStatementCache(session);
     }
-	
+
+	private static CounterTable partitionedTable(String columnFamilyName, Date origin) {
+		if (origin == null) {
+			throw new IllegalArgumentException("A not null partitions origin is required");
+		}
+		return new CounterTable(columnFamilyName, true, origin.getTime());
+	}
+
+	/**
+	 * Returns the {@link Counter} with the specified name, using the
+	 * {@link CounterProfile} registered for the longest prefix of its name, or
+	 * {@link CounterProfile#FULL} if there is none.
+	 *
+	 * @param name the counter's name
+	 * @return the {@link Counter}
+	 */
 	public Counter getCounter(String name) {
-		return new Counter(session, columnFamilyName, name);
+		return new Counter(this, name, getProfile(name));
+	}
+
+	/**
+	 * Returns the {@link Counter} with the specified name and
+	 * {@link CounterProfile}.
+	 *
+	 * @param name the counter's name
+	 * @param profile the {@link CounterProfile} defining the stored values
+	 * @return the {@link Counter}
+	 */
+	public Counter getCounter(String name, CounterProfile profile) {
+		return new Counter(this, name, profile);
+	}
+
+	/**
+	 * Returns the {@link TaggedCounter} with the specified base name, counting
+	 * the specified combinations of dimensions besides the base total.
+	 *
+	 * @param baseName the base name of the counters
+	 * @param combinations the combinations of dimensions to be counted, such
+	 *            as {@code {"country"}} and {@code {"country", "device"}}
+	 * @return the {@link TaggedCounter}
+	 */
+	public TaggedCounter getTaggedCounter(String baseName, String[]... combinations) {
+		return new TaggedCounter(this, baseName, combinations);
+	}
+
+	/**
+	 * Registers the {@link CounterProfile} to be used by the counters whose
+	 * names start with the specified prefix.
+	 *
+	 * If several registered prefixes match a name then the longest one is
+	 * used. Already obtained counters are not affected.
+	 *
+	 * @param prefix the counter name prefix, which may be empty to match all
+	 *            the counters
+	 * @param profile the {@link CounterProfile}
+	 */
+	public synchronized void registerProfile(String prefix, CounterProfile profile) {
+		if (prefix == null || profile == null) {
+			throw new IllegalArgumentException("A not null prefix and profile are required");
+		}
+		TreeMap<String, CounterProfile> updated = new TreeMap<String, CounterProfile>(profiles);
+		updated.put(prefix, profile);
+		profiles = updated;
+	}
+
+	/**
+	 * Returns the {@link CounterProfile} registered for the longest prefix of
+	 * the specified counter name.
+	 *
+	 * @param name the counter's name
+	 * @return the {@link CounterProfile}, which is {@link CounterProfile#FULL}
+	 *         if no prefix matches
+	 */
+	public CounterProfile getProfile(String name) {
+		TreeMap<String, CounterProfile> current = profiles;
+		String key = current.floorKey(name);
+		while (key != null) {
+			if (name.startsWith(key)) return current.get(key);
+			key = current.lowerKey(key);
+		}
+		return CounterProfile.FULL;
+	}
+
+	/**
+	 * Enables the aggregation of the increments of all the {@link Counter}s of
+	 * this service.
+	 *
+	 * Once enabled, the increments are combined in memory and written to the
+	 * database when the number of buffered cells reaches {@code maxCells} or
+	 * every {@code flushIntervalMillis}, whatever happens first.
+	 *
+	 * @param maxCells the maximum number of buffered cells
+	 * @param flushIntervalMillis the maximum time in milliseconds between
+	 *            flushes
+	 * @return the created {@link CounterAggregator}
+	 */
+	public synchronized CounterAggregator enableAggregation(int maxCells, long flushIntervalMillis) {
+		if (aggregator != null) {
+			throw new IllegalStateException("Aggregation is already enabled");
+		}
+		aggregator = new CounterAggregator(this, maxCells, flushIntervalMillis);
+		return aggregator;
+	}
+
+	/**
+	 * Returns the {@link CounterAggregator} of this service.
+	 *
+	 * @return the {@link CounterAggregator}, or {@code null} if aggregation is
+	 *         not enabled
+	 */
+	public CounterAggregator getAggregator() {
+		return aggregator;
+	}
+
+	/**
+	 * Enables the local write-ahead journal of the increments buffered by the
+	 * {@link CounterAggregator} of this service, which must be already
+	 * enabled.
+	 *
+	 * The segments left in the directory by a previous run are replayed into
+	 * the aggregator, and they are recycled once flushed. This should be
+	 * enabled before updating any counter.
+	 *
+	 * @param directory the directory of the segment files
+	 * @param segmentSize the size in bytes of each segment file
+	 * @param syncIntervalMillis the time in milliseconds between forces of
+	 *            the journal to disk, or zero to leave it to the operating
+	 *            system
+	 * @return the created {@link CounterJournal}
+	 * @throws IOException if the journal can't be opened
+	 */
+	public synchronized CounterJournal enableJournal(File directory, int segmentSize, long syncIntervalMillis)
+	        throws IOException {
+		if (aggregator == null) {
+			throw new IllegalStateException("Aggregation must be enabled before the journal");
+		}
+		if (journal != null) {
+			throw new IllegalStateException("Journal is already enabled");
+		}
+		CounterJournal created = new CounterJournal(directory, segmentSize, syncIntervalMillis);
+		created.open(aggregator);
+		aggregator.setJournal(created);
+		journal = created;
+		return journal;
+	}
+
+	/**
+	 * Returns the {@link CounterJournal} of this service.
+	 *
+	 * @return the {@link CounterJournal}, or {@code null} if the journal is
+	 *         not enabled
+	 */
+	public CounterJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Enables the cluster wide aggregation of the increments of this service
+	 * through the Hazelcast cluster of the specified {@link LockService}.
+	 *
+	 * Once enabled, each flush of the {@link CounterAggregator} sends the
+	 * increments of the counters owned by other members of the cluster to
+	 * them, and only writes the increments of the counters owned by this node,
+	 * combined with the ones received from the rest of the cluster. All the
+	 * nodes must enable it for the same keyspace and column family.
+	 *
+	 * @param lockService the {@link LockService} whose cluster is used
+	 * @return the created {@link CounterClusterAggregation}
+	 */
+	public synchronized CounterClusterAggregation enableClusterAggregation(LockService lockService) {
+		if (aggregator == null) {
+			throw new IllegalStateException("Aggregation must be enabled before the cluster aggregation");
+		}
+		if (clusterAggregation != null) {
+			throw new IllegalStateException("Cluster aggregation is already enabled");
+		}
+		if (lockService == null) {
+			throw new IllegalArgumentException("A not null lock service is required");
+		}
+		clusterAggregation = new CounterClusterAggregation(keyspaceName + '.' + table.getName(),
+		                                                   lockService.getHazelcastInstance(),
+		                                                   aggregator);
+		aggregator.setCluster(clusterAggregation);
+		return clusterAggregation;
+	}
+
+	/**
+	 * Returns the {@link CounterClusterAggregation} of this service.
+	 *
+	 * @return the {@link CounterClusterAggregation}, or {@code null} if
+	 *         cluster aggregation is not enabled
+	 */
+	public CounterClusterAggregation getClusterAggregation() {
+		return clusterAggregation;
+	}
+
+	/**
+	 * Creates a bulk loader of events for the counters of this service.
+	 *
+	 * The loader pre-aggregates the events in memory by time bucket, up to
+	 * {@code maxCells} buffered cells, and writes them as asynchronous
+	 * batches grouped by partition, up to {@code maxInFlight} at a time.
+	 *
+	 * @param maxCells the maximum number of buffered cells
+	 * @param maxInFlight the maximum number of batches in flight
+	 * @return the created {@link CounterIngestion}
+	 */
+	public CounterIngestion createIngestion(int maxCells, int maxInFlight) {
+		return new CounterIngestion(this, maxCells, maxInFlight);
+	}
+
+	/**
+	 * Ingests the specified events with a bulk loader buffering up to
+	 * {@code maxCells} cells and keeping up to {@code maxInFlight} batches in
+	 * flight.
+	 *
+	 * @param events the {@link CounterEvent}s to be ingested
+	 * @param maxCells the maximum number of buffered cells
+	 * @param maxInFlight the maximum number of batches in flight
+	 * @return the {@link CounterIngestion} with the final metrics
+	 * @see #createIngestion(int, int)
+	 */
+	public CounterIngestion ingest(Iterator<CounterEvent> events, int maxCells, int maxInFlight) {
+		return createIngestion(maxCells, maxInFlight).ingest(events);
+	}
+
+	/**
+	 * Creates an exporter of the stored values of the counters of this
+	 * service to binary or CSV files.
+	 *
+	 * @param parallelism the number of counters exported in parallel
+	 * @return the created {@link CounterExport}
+	 * @see CounterExportReader
+	 */
+	public CounterExport createExport(int parallelism) {
+		return new CounterExport(this, parallelism);
+	}
+
+	/**
+	 * Enables the caching of the series read by all the {@link Counter}s of
+	 * this service.
+	 *
+	 * Closed buckets are cached until evicted, whereas open buckets are cached
+	 * only for {@code openBucketTtlMillis}. A bucket is considered closed
+	 * {@code closeDelayMillis} after its end, which should be at least the
+	 * aggregation flush interval if aggregation is enabled.
+	 *
+	 * @param maxBuckets the maximum number of cached buckets
+	 * @param openBucketTtlMillis the time to live in milliseconds of the
+	 *            cached open buckets
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            bucket is considered closed
+	 * @return the created {@link CounterCache}
+	 */
+	public synchronized CounterCache enableCache(long maxBuckets, long openBucketTtlMillis, long closeDelayMillis) {
+		if (cache != null) {
+			throw new IllegalStateException("Cache is already enabled");
+		}
+		cache = new CounterCache(this, maxBuckets, openBucketTtlMillis, closeDelayMillis);
+		return cache;
+	}
+
+	/**
+	 * Returns the {@link CounterCache} of this service.
+	 *
+	 * @return the {@link CounterCache}, or {@code null} if caching is not
+	 *         enabled
+	 */
+	public CounterCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Enables the histograms of the values of the counters of this service,
+	 * recorded with {@link Counter#recordValue(Date, long)}.
+	 *
+	 * Values are binned and buffered in memory, and the bin counts are added
+	 * to the histograms column family every {@code flushIntervalMillis}.
+	 *
+	 * @param flushIntervalMillis the time in milliseconds between flushes
+	 * @return the created {@link CounterHistograms}
+	 */
+	public synchronized CounterHistograms enableHistograms(long flushIntervalMillis) {
+		if (histograms != null) {
+			throw new IllegalStateException("Histograms are already enabled");
+		}
+		histograms = new CounterHistograms(this, flushIntervalMillis);
+		return histograms;
+	}
+
+	/**
+	 * Returns the {@link CounterHistograms} of this service.
+	 *
+	 * @return the {@link CounterHistograms}, or {@code null} if histograms
+	 *         are not enabled
+	 */
+	public CounterHistograms getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * Enables the approximate distinct counting of the items of the counters
+	 * of this service, added with {@link Counter#addDistinct(Date, String)}.
+	 *
+	 * Items are merged into in-memory {@link HyperLogLog} estimators by time
+	 * bucket, and the changed estimators are written to the distincts column
+	 * family every {@code flushIntervalMillis}. The estimators of a bucket are
+	 * released once it has been closed for {@code closeDelayMillis}.
+	 *
+	 * @param flushIntervalMillis the time in milliseconds between flushes
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            bucket is considered closed
+	 * @return the created {@link CounterDistincts}
+	 */
+	public CounterDistincts enableDistinctCounting(long flushIntervalMillis, long closeDelayMillis) {
+		return enableDistinctCounting(flushIntervalMillis, closeDelayMillis, null);
+	}
+
+	/**
+	 * Enables the approximate distinct counting of the items of the counters
+	 * of this service, writing the estimators as the specified writer.
+	 *
+	 * The writer id must be unique among the running services of the column
+	 * family, such as the host and port of the process, and stable across
+	 * restarts, so a restarted service keeps writing its own rows instead of
+	 * adding new ones to the long buckets.
+	 *
+	 * @param flushIntervalMillis the time in milliseconds between flushes
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            bucket is considered closed
+	 * @param writerId the stable identifier of this service as a writer, or
+	 *            {@code null} to use a new one
+	 * @return the created {@link CounterDistincts}
+	 * @see #enableDistinctCounting(long, long)
+	 */
+	public synchronized CounterDistincts enableDistinctCounting(long flushIntervalMillis,
+	                                                            long closeDelayMillis,
+	                                                            String writerId) {
+		if (distincts != null) {
+			throw new IllegalStateException("Distinct counting is already enabled");
+		}
+		distincts = new CounterDistincts(this, flushIntervalMillis, closeDelayMillis, writerId);
+		return distincts;
+	}
+
+	/**
+	 * Returns the {@link CounterDistincts} of this service.
+	 *
+	 * @return the {@link CounterDistincts}, or {@code null} if distinct
+	 *         counting is not enabled
+	 */
+	public CounterDistincts getDistincts() {
+		return distincts;
+	}
+
+	/**
+	 * Enables the tracking of the most updated counters of this service per
+	 * time window.
+	 *
+	 * Each window tracks the {@code capacity} hottest counter names in memory,
+	 * the last {@code retainedWindows} windows are kept, and the closed ones
+	 * are written to the heavy hitters column family if {@code persist} is
+	 * {@code true}. Only the updates of {@link Counter}s and
+	 * {@link TaggedCounter}s are tracked, not the bulk ingestions.
+	 *
+	 * @param granularity the {@link TimeGranularity} of the windows
+	 * @param capacity the number of counter names tracked per window
+	 * @param retainedWindows the number of windows kept in memory
+	 * @param persist if the closed windows must be persisted
+	 * @return the created {@link CounterHeavyHitters}
+	 */
+	public synchronized CounterHeavyHitters enableHeavyHitters(TimeGranularity granularity,
+	                                                           int capacity,
+	                                                           int retainedWindows,
+	                                                           boolean persist) {
+		if (heavyHitters != null) {
+			throw new IllegalStateException("Heavy hitters are already enabled");
+		}
+		heavyHitters = new CounterHeavyHitters(this, granularity, capacity, retainedWindows, persist);
+		return heavyHitters;
+	}
+
+	/**
+	 * Returns the {@link CounterHeavyHitters} of this service.
+	 *
+	 * @return the {@link CounterHeavyHitters}, or {@code null} if heavy
+	 *         hitters are not enabled
+	 */
+	public CounterHeavyHitters getHeavyHitters() {
+		return heavyHitters;
+	}
+
+	/**
+	 * Enables the in-memory sliding window rates of this node, for the
+	 * counters tracked with {@link Counter#trackRates()}.
+	 *
+	 * @return the created {@link CounterRates}
+	 */
+	public CounterRates enableRates() {
+		return enableRates(null);
+	}
+
+	/**
+	 * Enables the in-memory sliding window rates of the counters tracked with
+	 * {@link Counter#trackRates()}, publishing them through the Hazelcast
+	 * cluster of the specified {@link LockService} so cluster wide rates can
+	 * be read from any node.
+	 *
+	 * @param lockService the {@link LockService} whose cluster is used, or
+	 *            {@code null} to disable cluster wide rates
+	 * @return the created {@link CounterRates}
+	 */
+	public synchronized CounterRates enableRates(LockService lockService) {
+		if (rates != null) {
+			throw new IllegalStateException("Rates are already enabled");
+		}
+		rates = new CounterRates(lockService == null ? null : lockService.getHazelcastInstance());
+		return rates;
+	}
+
+	/**
+	 * Returns the {@link CounterRates} of this service.
+	 *
+	 * @return the {@link CounterRates}, or {@code null} if rates are not
+	 *         enabled
+	 */
+	public CounterRates getRates() {
+		return rates;
+	}
+
+	/**
+	 * Enables the background deletion of the values older than the retention
+	 * of their granularity, set with
+	 * {@link CounterRetention#setRetention(TimeGranularity, long)}.
+	 *
+	 * Once enabled, the name of each updated counter is indexed so it can be
+	 * swept, and every {@code intervalMillis} one of the nodes deletes the
+	 * expired values of all the indexed counters, coordinated through the
+	 * specified {@link LockService}.
+	 *
+	 * @param lockService the {@link LockService} coordinating the nodes
+	 * @param intervalMillis the time in milliseconds between sweeps
+	 * @param maxDeletesPerSecond the maximum number of deletes per second
+	 * @return the created {@link CounterRetention}
+	 */
+	public synchronized CounterRetention enableRetention(LockService lockService,
+	                                                     long intervalMillis,
+	                                                     double maxDeletesPerSecond) {
+		if (retention != null) {
+			throw new IllegalStateException("Retention is already enabled");
+		}
+		retention = new CounterRetention(this, lockService, intervalMillis, maxDeletesPerSecond);
+		return retention;
+	}
+
+	/**
+	 * Returns the {@link CounterRetention} of this service.
+	 *
+	 * @return the {@link CounterRetention}, or {@code null} if retention is
+	 *         not enabled
+	 */
+	public CounterRetention getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Indexes the specified counter name to be swept by the retention, if it
+	 * is enabled and the name is not indexed yet by this node. Each node
+	 * remembers a bounded number of recently indexed names, and the names
+	 * evicted from it are indexed again on their next update.
+	 *
+	 * @param name the counter's name
+	 */
+	void indexName(final String name) {
+		if (retention == null || indexedNames.containsKey(name)) return;
+		if (indexedNames.putIfAbsent(name, Boolean.TRUE) != null) return;
+		BoundStatement insert = statementCache.bind(CounterRetention.INSERT_NAME, table.getName(), name);
+		insert.setConsistencyLevel(writeConsistencyLevel.toCQLDriverCL());
+		Futures.addCallback(session.executeAsync(insert), new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet result) {
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// Index it again on its next update
+				indexedNames.remove(name);
+			}
+		});
+	}
+
+	/**
+	 * Enables the background rollup of the counters of this service.
+	 *
+	 * Once enabled, updates only write the finest granularity stored by the
+	 * {@link CounterProfile} of each counter, and the coarser granularities are
+	 * periodically derived from it by the returned {@link CounterRollup}. A
+	 * rollup window, that is, the granularity immediately coarser than the
+	 * finest stored one, is rolled up {@code closeDelayMillis} after its end,
+	 * so the coarser granularities lag behind by up to a window plus that
+	 * delay, which should be at least the aggregation flush interval if
+	 * aggregation is enabled. Updates older than the already rolled up windows
+	 * are written to all the stored granularities, and the cache close delay
+	 * should cover the rollup lag.
+	 *
+	 * Each counter is rolled up with the profile of its first update, which
+	 * is stored with its checkpoint, so all the updates of a counter should
+	 * use the same profile.
+	 *
+	 * @param lockService the {@link LockService} coordinating the nodes
+	 * @param intervalMillis the time in milliseconds between runs
+	 * @param closeDelayMillis the time in milliseconds after its end when a
+	 *            window is rolled up
+	 * @param maxWindowsPerRun the maximum number of windows rolled up per
+	 *            counter and run
+	 * @return the created {@link CounterRollup}
+	 */
+	public synchronized CounterRollup enableRollup(LockService lockService,
+	                                               long intervalMillis,
+	                                               long closeDelayMillis,
+	                                               int maxWindowsPerRun) {
+		if (rollup != null) {
+			throw new IllegalStateException("Rollup is already enabled");
+		}
+		rollup = new CounterRollup(this, lockService, intervalMillis, closeDelayMillis, maxWindowsPerRun);
+		return rollup;
+	}
+
+	/**
+	 * Returns the {@link CounterRollup} of this service.
+	 *
+	 * @return the {@link CounterRollup}, or {@code null} if rollup is not
+	 *         enabled
+	 */
+	public CounterRollup getRollup() {
+		return rollup;
+	}
+
+	/**
+	 * Limits the number of pending asynchronous writes of the counters of this
+	 * service.
+	 *
+	 * Once the limit is reached,
+	 * {@link Counter#updateAsync(Date, Long)} blocks until a pending write
+	 * completes, so callers slow down with the database instead of piling up
+	 * requests.
+	 *
+	 * @param maxPendingWrites the maximum number of pending asynchronous
+	 *            writes
+	 */
+	public synchronized void limitPendingWrites(int maxPendingWrites) {
+		if (maxPendingWrites <= 0) {
+			throw new IllegalArgumentException("The maximum number of pending writes must be greater than zero");
+		}
+		if (pendingWrites != null) {
+			throw new IllegalStateException("Pending writes are already limited");
+		}
+		this.maxPendingWrites = maxPendingWrites;
+		pendingWrites = new Semaphore(maxPendingWrites);
+	}
+
+	/**
+	 * Writes the specified batch asynchronously, waiting for a permit if the
+	 * number of pending writes is limited.
+	 *
+	 * @param batch the {@link CounterBatch} to be written
+	 * @return a {@link ListenableFuture} done when the batch is written
+	 */
+	ListenableFuture<Void> executeAsync(CounterBatch batch) {
+		final Semaphore permits = pendingWrites;
+		if (permits != null) permits.acquireUninterruptibly();
+		ResultSetFuture future;
+		try {
+			future = session.executeAsync(batch.toStatement());
+		} catch (RuntimeException e) {
+			if (permits != null) permits.release();
+			throw e;
+		}
+		if (permits != null) {
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					permits.release();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+		return Futures.transform(future, new Function<ResultSet, Void>() {
+			@Override
+			public Void apply(ResultSet result) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of pending asynchronous writes.
+	 *
+	 * @return the number of pending asynchronous writes, or zero if they are
+	 *         not limited
+	 */
+	public int getPendingWrites() {
+		Semaphore permits = pendingWrites;
+		return permits == null ? 0 : maxPendingWrites - permits.availablePermits();
+	}
+
+	/**
+	 * Sets the consistency level of the counter writes, which is
+	 * {@link ConsistencyLevel#QUORUM} by default.
+	 *
+	 * @param consistencyLevel the {@link ConsistencyLevel} of the writes
+	 */
+	public void setWriteConsistencyLevel(ConsistencyLevel consistencyLevel) {
+		if (consistencyLevel == null) {
+			throw new IllegalArgumentException("A not null consistency level is required");
+		}
+		this.writeConsistencyLevel = consistencyLevel;
+	}
+
+	/**
+	 * Returns the consistency level of the counter writes.
+	 *
+	 * @return the {@link ConsistencyLevel} of the writes
+	 */
+	public ConsistencyLevel getWriteConsistencyLevel() {
+		return writeConsistencyLevel;
+	}
+
+	/**
+	 * Sets the consistency level of the counter reads, which is
+	 * {@link ConsistencyLevel#QUORUM} by default.
+	 *
+	 * @param consistencyLevel the {@link ConsistencyLevel} of the reads
+	 */
+	public void setReadConsistencyLevel(ConsistencyLevel consistencyLevel) {
+		if (consistencyLevel == null) {
+			throw new IllegalArgumentException("A not null consistency level is required");
+		}
+		this.readConsistencyLevel = consistencyLevel;
+	}
+
+	/**
+	 * Returns the consistency level of the counter reads.
+	 *
+	 * @return the {@link ConsistencyLevel} of the reads
+	 */
+	public ConsistencyLevel getReadConsistencyLevel() {
+		return readConsistencyLevel;
+	}
+
+	/**
+	 * Flushes the buffered increments, if any, stops the rollup and releases
+	 * the database connections.
+	 */
+	public synchronized void shutdown() {
+		if (clusterAggregation != null) {
+			clusterAggregation.shutdown();
+		}
+		if (aggregator != null) {
+			aggregator.shutdown();
+		}
+		if (journal != null) {
+			journal.shutdown();
+		}
+		if (histograms != null) {
+			histograms.shutdown();
+		}
+		if (distincts != null) {
+			distincts.shutdown();
+		}
+		if (heavyHitters != null) {
+			heavyHitters.shutdown();
+		}
+		if (rates != null) {
+			rates.shutdown();
+		}
+		if (retention != null) {
+			retention.shutdown();
+		}
+		if (rollup != null) {
+			rollup.shutdown();
+		}
+		SessionRegistry.release(session);
+	}
+
+	/**
+	 * Returns the cache of the prepared statements used by this service.
+	 *
+	 * @return the {@link StatementCache}
+	 */
+	public StatementCache getStatementCache() {
+		return statementCache;
+	}
+
+	/**
+	 * Returns the time zone defining the boundaries of the time buckets.
+	 *
+	 * @return the {@link DateTimeZone}
+	 */
+	public DateTimeZone getTimeZone() {
+		return bucketer.getZone();
+	}
+
+	ConcurrentMap<String, Boolean> getIndexedTags() {
+		return indexedTags.asMap();
+	}
+
+	TimeBucketer getBucketer() {
+		return bucketer;
+	}
+
+	CounterReader getReader() {
+		return reader;
+	}
+
+	CounterTable getTable() {
+		return table;
+	}
+
+	Session getSession() {
+		return session;
 	}
-	
 
 }
@@ -0,0 +1,317 @@
+package com.sais.utils.counting;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Class holding the CQL statement shapes used to access a counters column
+ * family.
+ *
+ * Statements use bind markers for all their values, so each shape is prepared
+ * only once.
+ *
+ * A column family may use the time partitioned layout, whose partition key
+ * includes a time bucket besides the name, value type and granularity, so the
+ * size of a partition is bounded: minutely values are partitioned by month,
+ * hourly values by year, and the coarser granularities, which grow slowly, use
+ * a single partition with bucket zero.
+ *
+ * @author andres
+ *
+ */
+final class CounterTable {
+
+	/** The maximum number of increments in a cached batch shape */
+	static final int MAX_BATCH_SIZE = 256;
+
+	/** The maximum number of rows returned by a range query */
+	static final int PAGE_SIZE = 1000;
+
+	/** The bucket of the granularities stored in a single partition */
+	static final long NO_BUCKET = 0;
+
+	private final String name;
+	private final boolean partitioned;
+	private final long origin;
+	private final String incrementQuery;
+	private final String deleteQuery;
+	private final String rangeQuery;
+	private final String cellDeleteQuery;
+	private final String timesQuery;
+	private final AtomicReferenceArray<String> incrementBatches;
+
+	/**
+	 * Constructor of a column family with a single partition per series.
+	 *
+	 * @param name the column family name
+	 */
+	CounterTable(String name) {
+		this(name, false, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name the column family name
+	 * @param partitioned if the column family uses the time partitioned layout
+	 * @param origin the time in milliseconds of the first partition to be read
+	 *            and deleted if the layout is time partitioned
+	 */
+	CounterTable(String name, boolean partitioned, long origin) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("A not null or empty column family name is required");
+		}
+		this.name = name;
+		this.partitioned = partitioned;
+		this.origin = origin;
+		String partitionKey = partitioned ? "name = ? AND type = ? AND granularity = ? AND bucket = ?"
+		                                  : "name = ? AND type = ? AND granularity = ?";
+		this.incrementQuery = "UPDATE " + name + " SET value = value + ? WHERE " + partitionKey + " AND time = ?";
+		this.deleteQuery = "DELETE FROM " + name + " WHERE " + (partitioned ? partitionKey : "name = ?");
+		this.rangeQuery = "SELECT time, value FROM " + name + " "
+		                  + "WHERE " + partitionKey + " AND time >= ? AND time <= ? "
+		                  + "LIMIT " + PAGE_SIZE;
+		this.cellDeleteQuery = "DELETE FROM " + name + " WHERE " + partitionKey + " AND time = ?";
+		this.timesQuery = "SELECT time FROM " + name + " "
+		                  + "WHERE " + partitionKey + " AND time >= ? AND time < ? "
+		                  + "LIMIT " + PAGE_SIZE;
+		this.incrementBatches = new AtomicReferenceArray<String>(MAX_BATCH_SIZE + 1);
+	}
+
+	/**
+	 * Returns the column family name.
+	 *
+	 * @return the column family name
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns if the column family uses the time partitioned layout.
+	 *
+	 * @return {@code true} if the layout is time partitioned, {@code false}
+	 *         otherwise
+	 */
+	boolean isPartitioned() {
+		return partitioned;
+	}
+
+	/**
+	 * Returns the number of bind values of an increment.
+	 *
+	 * @return the number of bind values of an increment
+	 */
+	int getValuesPerIncrement() {
+		return partitioned ? 6 : 5;
+	}
+
+	/**
+	 * Returns the granularity of the time buckets partitioning the values of
+	 * the specified {@link TimeGranularity}.
+	 *
+	 * @param granularity the {@link TimeGranularity} of the values
+	 * @return the partitioning {@link TimeGranularity}, or {@code null} if
+	 *         the values are stored in a single partition
+	 */
+	TimeGranularity getPartitionGranularity(TimeGranularity granularity) {
+		return partitioned ? partitionGranularityOf(granularity) : null;
+	}
+
+	/**
+	 * Returns the granularity of the time buckets partitioning the values of
+	 * the specified {@link TimeGranularity} in the time partitioned layout.
+	 *
+	 * @param granularity the {@link TimeGranularity} of the values
+	 * @return the partitioning {@link TimeGranularity}, or {@code null} if
+	 *         the values are stored in a single partition
+	 */
+	static TimeGranularity partitionGranularityOf(TimeGranularity granularity) {
+		switch (granularity) {
+		case MINUTELY:
+			return TimeGranularity.MONTHLY;
+		case HOURLY:
+			return TimeGranularity.YEARLY;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the partition bucket of the specified cell.
+	 *
+	 * @param granularity the cell's {@link TimeGranularity}
+	 * @param time the cell's normalized time in milliseconds
+	 * @param bucketer the {@link TimeBucketer} of the time buckets
+	 * @return the partition bucket, which is {@link #NO_BUCKET} if the values
+	 *         are stored in a single partition
+	 */
+	long getBucket(TimeGranularity granularity, long time, TimeBucketer bucketer) {
+		TimeGranularity partitionGranularity = getPartitionGranularity(granularity);
+		return partitionGranularity == null ? NO_BUCKET : bucketer.getStart(partitionGranularity, time);
+	}
+
+	/**
+	 * Returns the partition buckets to be read for the specified
+	 * {@link TimeGranularity} and time range, in time order.
+	 *
+	 * The range is bounded by the origin of this and by the partition of the
+	 * current time.
+	 *
+	 * @param granularity the {@link TimeGranularity} of the values
+	 * @param from the inclusive start of the range in milliseconds
+	 * @param to the inclusive end of the range in milliseconds
+	 * @param bucketer the {@link TimeBucketer} of the time buckets
+	 * @return the partition buckets in time order
+	 */
+	long[] getBuckets(TimeGranularity granularity, long from, long to, TimeBucketer bucketer) {
+		TimeGranularity partitionGranularity = getPartitionGranularity(granularity);
+		if (partitionGranularity == null) {
+			return new long[] { NO_BUCKET };
+		}
+		return getPartitionStarts(partitionGranularity, Math.max(from, origin), to, bucketer);
+	}
+
+	/**
+	 * Returns the starts of the buckets of the specified partitioning
+	 * {@link TimeGranularity} within the specified time range, in time order.
+	 *
+	 * The range is bounded by the partition of the current time.
+	 *
+	 * @param partitionGranularity the partitioning {@link TimeGranularity}
+	 * @param from the inclusive start of the range in milliseconds
+	 * @param to the inclusive end of the range in milliseconds
+	 * @param bucketer the {@link TimeBucketer} of the time buckets
+	 * @return the partition buckets in time order
+	 */
+	static long[] getPartitionStarts(TimeGranularity partitionGranularity, long from, long to, TimeBucketer bucketer) {
+		long first = bucketer.getStart(partitionGranularity, from);
+		long last = bucketer.getStart(partitionGranularity, Math.min(to, System.currentTimeMillis()));
+		if (last < first) {
+			return new long[0];
+		}
+		long[] buckets = new long[16];
+		int size = 0;
+		for (long bucket = first; bucket <= last; bucket = bucketer.getNext(partitionGranularity, bucket)) {
+			if (size == buckets.length) buckets = Arrays.copyOf(buckets, size * 2);
+			buckets[size++] = bucket;
+		}
+		return Arrays.copyOf(buckets, size);
+	}
+
+	/**
+	 * Returns the bind values of the partition key of a series.
+	 *
+	 * @param counter the counter's name
+	 * @param type the {@link ValueType}
+	 * @param granularity the {@link TimeGranularity}
+	 * @param bucket the partition bucket, ignored if the layout is not time
+	 *            partitioned
+	 * @param extra the number of additional bind values to be reserved after
+	 *            the partition key
+	 * @return the bind values, with room for the additional values
+	 */
+	Object[] getPartitionKey(String counter, ValueType type, TimeGranularity granularity, long bucket, int extra) {
+		Object[] values = new Object[(partitioned ? 4 : 3) + extra];
+		values[0] = counter;
+		values[1] = type.getCode();
+		values[2] = granularity.getCode();
+		if (partitioned) values[3] = bucket;
+		return values;
+	}
+
+	/**
+	 * Returns a counter batch query with the specified number of increments.
+	 *
+	 * Each increment takes {@link #getValuesPerIncrement()} bind values: the
+	 * delta, the counter name, the value type code, the granularity code, the
+	 * partition bucket if the layout is time partitioned and the normalized
+	 * time.
+	 *
+	 * @param size the number of increments
+	 * @return a counter batch query with the specified number of increments
+	 */
+	String getIncrementBatch(int size) {
+		if (size <= 0 || size > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("The batch size must be between 1 and " + MAX_BATCH_SIZE);
+		}
+		String query = incrementBatches.get(size);
+		if (query == null) {
+			query = buildCounterBatch(incrementQuery, size);
+			incrementBatches.set(size, query);
+		}
+		return query;
+	}
+
+	/**
+	 * Returns a counter batch query repeating the specified increment query.
+	 *
+	 * @param incrementQuery the increment query
+	 * @param size the number of increments
+	 * @return the counter batch query
+	 */
+	static String buildCounterBatch(String incrementQuery, int size) {
+		StringBuilder builder = new StringBuilder(32 + size * (incrementQuery.length() + 3));
+		builder.append("BEGIN COUNTER BATCH\n");
+		for (int i = 0; i < size; i++) {
+			builder.append('\t');
+			builder.append(incrementQuery);
+			builder.append(";\n");
+		}
+		builder.append("APPLY BATCH");
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the query deleting all the values of a counter, or a single
+	 * partition of a series if the layout is time partitioned.
+	 *
+	 * It takes the counter name as the only bind value, or the partition key
+	 * if the layout is time partitioned.
+	 *
+	 * @return the query deleting the values of a counter
+	 */
+	String getDeleteQuery() {
+		return deleteQuery;
+	}
+
+	/**
+	 * Returns the query reading a page of the values of a counter series.
+	 *
+	 * It takes as bind values the partition key and the inclusive time range,
+	 * and it returns at most {@link #PAGE_SIZE} rows.
+	 *
+	 * @return the query reading a page of the values of a counter series
+	 */
+	String getRangeQuery() {
+		return rangeQuery;
+	}
+
+	/**
+	 * Returns the query deleting a single value of a counter series.
+	 *
+	 * It takes as bind values the partition key and the normalized time.
+	 *
+	 * @return the query deleting a single value of a counter series
+	 */
+	String getCellDeleteQuery() {
+		return cellDeleteQuery;
+	}
+
+	/**
+	 * Returns the query reading a page of the times of the values of a counter
+	 * series.
+	 *
+	 * It takes as bind values the partition key, the inclusive range start and
+	 * the exclusive range end, and it returns at most {@link #PAGE_SIZE} rows.
+	 *
+	 * @return the query reading a page of the times of a counter series
+	 */
+	String getTimesQuery() {
+		return timesQuery;
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.sais.utils.counting;
+
+/**
+ * Mergeable histogram of non negative values with logarithmic bins.
+ *
+ * Each bin covers the values between two consecutive powers of a base
+ * slightly greater than one, so any quantile is estimated with a relative
+ * error of at most {@link #RELATIVE_ACCURACY} using a fixed number of bins,
+ * and two histograms are merged just by adding their bin counts. This is what
+ * allows storing histograms as plain counter cells, one per non empty bin.
+ *
+ * @author andres
+ *
+ */
+public final class Histogram {
+
+	/** The maximum relative error of the estimated values */
+	public static final double RELATIVE_ACCURACY = 0.01;
+
+	/** The base of the logarithmic bins */
+	private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+
+	/** The number of bins covering all the non negative long values */
+	static final int NUM_BINS = binOf(Long.MAX_VALUE) + 1;
+
+	private final long[] counts;
+	private long count;
+
+	/**
+	 * Constructor of an empty histogram.
+	 */
+	public Histogram() {
+		this.counts = new long[NUM_BINS];
+	}
+
+	/**
+	 * Returns the bin of the specified value.
+	 *
+	 * Zero has its own bin, and the positive values are binned by the ceiling
+	 * of their logarithm.
+	 *
+	 * @param value the non negative value
+	 * @return the bin of the value
+	 */
+	static int binOf(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Histogram values can't be negative: " + value);
+		}
+		if (value == 0) return 0;
+		return 1 + (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+	}
+
+	/**
+	 * Returns the value representing the specified bin, which is within the
+	 * relative accuracy of all the values of the bin.
+	 *
+	 * @param bin the bin
+	 * @return the representative value
+	 */
+	static long valueOf(int bin) {
+		if (bin <= 1) return bin;
+		return Math.round(2 * Math.pow(GAMMA, bin - 1) / (GAMMA + 1));
+	}
+
+	/**
+	 * Adds the specified value.
+	 *
+	 * @param value the non negative value
+	 */
+	public void add(long value) {
+		add(binOf(value), 1);
+	}
+
+	/**
+	 * Adds the specified count of values to a bin.
+	 *
+	 * @param bin the bin
+	 * @param binCount the number of values
+	 */
+	void add(int bin, long binCount) {
+		if (bin < 0 || bin >= NUM_BINS) return;
+		counts[bin] += binCount;
+		count += binCount;
+	}
+
+	/**
+	 * Adds all the values of the specified histogram to this.
+	 *
+	 * @param other the {@link Histogram} to be merged
+	 */
+	public void merge(Histogram other) {
+		for (int i = 0; i < NUM_BINS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+	}
+
+	/**
+	 * Returns the number of values.
+	 *
+	 * @return the number of values
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the estimated value of the specified quantile.
+	 *
+	 * @param quantile the quantile between 0 and 1, such as 0.99 for the 99th
+	 *            percentile
+	 * @return the estimated value, or zero if this is empty
+	 */
+	public long getQuantile(double quantile) {
+		if (quantile < 0 || quantile > 1) {
+			throw new IllegalArgumentException("The quantile must be between 0 and 1");
+		}
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_BINS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return valueOf(i);
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns the estimated minimum value.
+	 *
+	 * @return the estimated minimum value, or zero if this is empty
+	 */
+	public long getMin() {
+		for (int i = 0; i < NUM_BINS; i++) {
+			if (counts[i] != 0) return valueOf(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the estimated maximum value.
+	 *
+	 * @return the estimated maximum value, or zero if this is empty
+	 */
+	public long getMax() {
+		for (int i = NUM_BINS - 1; i >= 0; i--) {
+			if (counts[i] != 0) return valueOf(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the estimated mean value.
+	 *
+	 * @return the estimated mean value, or zero if this is empty
+	 */
+	public double getMean() {
+		if (count == 0) return 0;
+		double sum = 0;
+		for (int i = 0; i < NUM_BINS; i++) {
+			if (counts[i] != 0) sum += (double) valueOf(i) * counts[i];
+		}
+		return sum / count;
+	}
+
+	@Override
+	public String toString() {
+		return "Histogram[count=" + count
+		       + ", p50=" + getQuantile(0.5)
+		       + ", p99=" + getQuantile(0.99)
+		       + ", max=" + getMax() + "]";
+	}
+
+}
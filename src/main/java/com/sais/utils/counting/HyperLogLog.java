@@ -0,0 +1,174 @@
+package com.sais.utils.counting;
+
+import java.nio.charset.Charset;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HyperLogLog estimator of the number of distinct items of a set.
+ *
+ * It keeps {@link #REGISTERS} registers of one byte, so it takes a fixed
+ * amount of memory whatever the number of items, and its estimations have a
+ * standard error of about 1.6%. The union of several sets is estimated by
+ * merging their registers, taking the maximum of each one.
+ *
+ * @author andres
+ *
+ */
+public final class HyperLogLog {
+
+	/** The number of bits of the hash used to select a register */
+	private static final int PRECISION = 12;
+
+	/** The number of registers */
+	static final int REGISTERS = 1 << PRECISION;
+
+	/** The bias correction constant for the number of registers */
+	private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+	/** The serialization format of the registers as a plain array */
+	private static final byte DENSE = 0;
+
+	/** The serialization format of the not empty registers by index */
+	private static final byte SPARSE = 1;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] registers;
+
+	/**
+	 * Constructor of an empty estimator.
+	 */
+	public HyperLogLog() {
+		this.registers = new byte[REGISTERS];
+	}
+
+	/**
+	 * Adds the specified item.
+	 *
+	 * @param item the item
+	 */
+	public void add(String item) {
+		addHash(hash(item));
+	}
+
+	/**
+	 * Returns the 64 bits hash of the specified item.
+	 *
+	 * @param item the item
+	 * @return the hash of the item
+	 */
+	static long hash(String item) {
+		return HASH.hashString(item, UTF8).asLong();
+	}
+
+	/**
+	 * Adds the item with the specified 64 bits hash.
+	 *
+	 * @param hash the item's hash
+	 * @return {@code true} if a register changed, {@code false} otherwise
+	 */
+	boolean addHash(long hash) {
+		int index = (int) (hash >>> (64 - PRECISION));
+		long rest = hash << PRECISION;
+		byte rank = (byte) (rest == 0 ? 64 - PRECISION + 1 : Long.numberOfLeadingZeros(rest) + 1);
+		if (rank > registers[index]) {
+			registers[index] = rank;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Merges the specified estimator into this, so this estimates the union
+	 * of both sets.
+	 *
+	 * @param other the {@link HyperLogLog} to be merged
+	 */
+	public void merge(HyperLogLog other) {
+		for (int i = 0; i < REGISTERS; i++) {
+			if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * Returns the estimated number of distinct items.
+	 *
+	 * @return the estimated number of distinct items
+	 */
+	public long cardinality() {
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < REGISTERS; i++) {
+			sum += 1.0 / (1L << registers[i]);
+			if (registers[i] == 0) zeros++;
+		}
+		double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+		if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+			// Linear counting is more accurate for small cardinalities
+			estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Returns the serialized registers, listing only the not empty ones if
+	 * that is shorter.
+	 *
+	 * @return the serialized registers
+	 */
+	byte[] toBytes() {
+		int used = 0;
+		for (int i = 0; i < REGISTERS; i++) {
+			if (registers[i] != 0) used++;
+		}
+		if (used * 3 < REGISTERS) {
+			byte[] bytes = new byte[1 + used * 3];
+			bytes[0] = SPARSE;
+			int j = 1;
+			for (int i = 0; i < REGISTERS; i++) {
+				if (registers[i] == 0) continue;
+				bytes[j++] = (byte) (i >>> 8);
+				bytes[j++] = (byte) i;
+				bytes[j++] = registers[i];
+			}
+			return bytes;
+		}
+		byte[] bytes = new byte[1 + REGISTERS];
+		bytes[0] = DENSE;
+		System.arraycopy(registers, 0, bytes, 1, REGISTERS);
+		return bytes;
+	}
+
+	/**
+	 * Merges the specified serialized registers into this.
+	 *
+	 * @param bytes the registers serialized with {@link #toBytes()}
+	 * @param offset the offset of the serialized registers
+	 * @param length the length of the serialized registers
+	 */
+	void merge(byte[] bytes, int offset, int length) {
+		if (length == 0) return;
+		if (bytes[offset] == SPARSE) {
+			for (int j = offset + 1; j + 2 < offset + length; j += 3) {
+				int index = ((bytes[j] & 0xff) << 8) | (bytes[j + 1] & 0xff);
+				if (index < REGISTERS && bytes[j + 2] > registers[index]) registers[index] = bytes[j + 2];
+			}
+		} else {
+			int count = Math.min(REGISTERS, length - 1);
+			for (int i = 0; i < count; i++) {
+				byte register = bytes[offset + 1 + i];
+				if (register > registers[i]) registers[i] = register;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HyperLogLog[" + cardinality() + "]";
+	}
+
+}
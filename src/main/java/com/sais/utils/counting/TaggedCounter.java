@@ -0,0 +1,301 @@
+package com.sais.utils.counting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sais.utils.counting.Counter.TimeGranularity;
+import com.sais.utils.counting.Counter.ValueType;
+
+/**
+ * Counter with dimensions, identified by a base name and a map of tags.
+ *
+ * Each update writes the total of the base name plus one counter for each
+ * configured combination of dimensions whose tags are all present in the
+ * event. The counter of a combination is named after the base name and the
+ * sorted tags of the combination, such as
+ * {@code requests;country=es;device=ios}, and it uses the
+ * {@link CounterProfile} registered for the base name. The increments of all
+ * the counters are written in a single batch grouped by counter, that is, by
+ * partition, unless they exceed the maximum batch size, in which case they are
+ * split between counters, so no partition is written by two batches.
+ *
+ * The values of the configured dimensions are indexed asynchronously in the
+ * tags column family, so the breakdown of a dimension can be read with a
+ * single concurrent fetch of the counters of all its values. Each node
+ * remembers a bounded number of recently indexed values, and the values
+ * evicted from it are indexed again on their next update. Tags of dimensions
+ * not in any combination are ignored.
+ *
+ * @author andres
+ *
+ */
+public class TaggedCounter {
+
+	/** The name of the column family indexing the tag values */
+	public static final String TAGS_TABLE_NAME = "counter_tags";
+
+	private static final String INSERT_TAG = "INSERT INTO " + TAGS_TABLE_NAME + " (base, dimension, value) VALUES (?, ?, ?)";
+	private static final String SELECT_TAGS = "SELECT value FROM " + TAGS_TABLE_NAME + " WHERE base = ? AND dimension = ?";
+
+	private final CounterService service;
+	private final String baseName;
+	private final CounterProfile profile;
+	private final String[][] combinations;
+
+	/** The sorted dimensions of all the combinations */
+	private final String[] dimensions;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param service the owner {@link CounterService}
+	 * @param baseName the base name of the counters
+	 * @param combinations the combinations of dimensions to be counted
+	 */
+	TaggedCounter(CounterService service, String baseName, String[]... combinations) {
+		if (baseName == null || baseName.isEmpty()) {
+			throw new IllegalArgumentException("A not null or empty counter name is required");
+		}
+		this.service = service;
+		this.baseName = baseName;
+		this.profile = service.getProfile(baseName);
+		this.combinations = new String[combinations.length][];
+		for (int i = 0; i < combinations.length; i++) {
+			String[] dimensions = combinations[i].clone();
+			for (String dimension : dimensions) {
+				checkTag(dimension);
+			}
+			Arrays.sort(dimensions);
+			this.combinations[i] = dimensions;
+		}
+		TreeSet<String> dimensions = new TreeSet<String>();
+		for (String[] combination : this.combinations) {
+			dimensions.addAll(Arrays.asList(combination));
+		}
+		this.dimensions = dimensions.toArray(new String[dimensions.size()]);
+	}
+
+	/**
+	 * Returns the base name of the counters.
+	 *
+	 * @return the base name
+	 */
+	public String getBaseName() {
+		return baseName;
+	}
+
+	/**
+	 * Updates the base counter and the counters of all the configured
+	 * combinations of the specified tags.
+	 *
+	 * @param tags the event's tags by dimension
+	 * @param date the event's date
+	 * @param value the event's value for means, deviations and variances
+	 */
+	public void update(Map<String, String> tags, Date date, Long value) {
+		for (CounterBatch batch : prepare(tags, date, value)) {
+			batch.execute();
+		}
+	}
+
+	/**
+	 * Asynchronously updates the base counter and the counters of all the
+	 * configured combinations of the specified tags.
+	 *
+	 * @param tags the event's tags by dimension
+	 * @param date the event's date
+	 * @param value the event's value for means, deviations and variances
+	 * @return a {@link ListenableFuture} done when the increments are written
+	 * @see Counter#updateAsync(Date, Long)
+	 */
+	public ListenableFuture<Void> updateAsync(Map<String, String> tags, Date date, Long value) {
+		List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+		for (CounterBatch batch : prepare(tags, date, value)) {
+			futures.add(service.executeAsync(batch));
+		}
+		if (futures.isEmpty()) return Futures.immediateFuture(null);
+		if (futures.size() == 1) return futures.get(0);
+		return Futures.transform(Futures.allAsList(futures), new Function<List<Void>, Void>() {
+			@Override
+			public Void apply(List<Void> results) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Computes the increments of all the counters of the specified event,
+	 * returning the batches to be written, which are none if aggregation is
+	 * enabled.
+	 */
+	private List<CounterBatch> prepare(Map<String, String> tags, Date date, Long value) {
+		index(tags, service.getIndexedTags());
+		CounterAggregator aggregator = service.getAggregator();
+		List<CounterBatch> batches = new ArrayList<CounterBatch>(1);
+		int cellsPerUpdate = profile.getCellsPerUpdate();
+		CounterBatch batch = null;
+		long millis = date.getTime();
+		for (int i = -1; i < combinations.length; i++) {
+			String name = i < 0 ? baseName : getName(combinations[i], tags);
+			if (name == null) continue;
+			if (aggregator == null && (batch == null || batch.size() + cellsPerUpdate > CounterTable.MAX_BATCH_SIZE)) {
+				batch = new CounterBatch(service, cellsPerUpdate * (combinations.length + 1));
+				batches.add(batch);
+			}
+			Counter.prepare(service, name, profile, aggregator, batch, millis, value);
+		}
+		return batches;
+	}
+
+	/**
+	 * Indexes the values of the configured dimensions of the specified tags
+	 * not indexed yet by this node, without waiting for the writes.
+	 */
+	private void index(Map<String, String> tags, final ConcurrentMap<String, Boolean> indexed) {
+		for (String dimension : dimensions) {
+			String value = tags.get(dimension);
+			if (value == null) continue;
+			final String key = baseName + ';' + dimension + '=' + value;
+			if (indexed.containsKey(key)) continue;
+			checkTag(value);
+			if (indexed.putIfAbsent(key, Boolean.TRUE) != null) continue;
+			BoundStatement insert = service.getStatementCache().bind(INSERT_TAG, baseName, dimension, value);
+			insert.setConsistencyLevel(service.getWriteConsistencyLevel().toCQLDriverCL());
+			Futures.addCallback(service.getSession().executeAsync(insert), new FutureCallback<ResultSet>() {
+				@Override
+				public void onSuccess(ResultSet result) {
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					// Index it again on its next update
+					indexed.remove(key);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the {@link Counter} of the specified tags, which must be one of
+	 * the configured combinations, or the base counter if they are empty.
+	 *
+	 * @param tags the tags by dimension
+	 * @return the {@link Counter}
+	 */
+	public Counter getCounter(Map<String, String> tags) {
+		String[] dimensions = tags.keySet().toArray(new String[tags.size()]);
+		Arrays.sort(dimensions);
+		return new Counter(service, dimensions.length == 0 ? baseName : getName(dimensions, tags), profile);
+	}
+
+	/**
+	 * Returns the indexed values of the specified dimension.
+	 *
+	 * @param dimension the dimension
+	 * @return the sorted values of the dimension
+	 */
+	public List<String> getValues(String dimension) {
+		BoundStatement select = service.getStatementCache().bind(SELECT_TAGS, baseName, dimension);
+		select.setConsistencyLevel(service.getReadConsistencyLevel().toCQLDriverCL());
+		List<String> values = new ArrayList<String>();
+		for (Row row : service.getSession().execute(select)) {
+			values.add(row.getString(0));
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the series of each value of the specified dimension, within the
+	 * counters with the specified fixed tags.
+	 *
+	 * The combination of the fixed dimensions plus the requested one must be
+	 * configured, and the series of all the values are fetched concurrently.
+	 *
+	 * @param dimension the dimension to be broken down
+	 * @param filter the fixed tags by dimension, which may be empty
+	 * @param granularity the {@link TimeGranularity}
+	 * @param start the inclusive range start, which is rounded down to the
+	 *            start of its bucket
+	 * @param finish the inclusive range end
+	 * @return the {@link CounterSeries} by dimension value, sorted by value
+	 * @throws IllegalArgumentException if the requested granularity can't be
+	 *             derived from the stored ones
+	 */
+	public Map<String, CounterSeries> getBreakdown(String dimension,
+	                                               Map<String, String> filter,
+	                                               TimeGranularity granularity,
+	                                               Date start,
+	                                               Date finish) {
+		TimeGranularity source = profile.getSource(granularity);
+		if (source == null) {
+			throw new IllegalArgumentException("Granularity " + granularity + " is not stored by " + profile);
+		}
+
+		// Build the names of the counters of each value
+		List<String> values = getValues(dimension);
+		String[] dimensions = filter.keySet().toArray(new String[filter.size() + 1]);
+		dimensions[filter.size()] = dimension;
+		Arrays.sort(dimensions);
+		Map<String, String> tags = new TreeMap<String, String>(filter);
+		String[] names = new String[values.size()];
+		for (int i = 0; i < names.length; i++) {
+			tags.put(dimension, values.get(i));
+			names[i] = getName(dimensions, tags);
+		}
+
+		// Read all of them at once, deriving the granularity if needed
+		TimeBucketer bucketer = service.getBucketer();
+		long from = bucketer.getStart(granularity, start.getTime());
+		long to = finish.getTime();
+		if (source != granularity) {
+			long next = bucketer.getNext(granularity, bucketer.getStart(granularity, to));
+			to = next == Long.MAX_VALUE ? next : next - 1;
+		}
+		boolean sums = profile.stores(ValueType.SUMS) || profile.stores(ValueType.SQUARES);
+		CounterSeries[] series = service.getReader().read(names, source, from, to, sums);
+		Map<String, CounterSeries> breakdown = new TreeMap<String, CounterSeries>();
+		for (int i = 0; i < names.length; i++) {
+			breakdown.put(values.get(i), source == granularity ? series[i] : series[i].rollup(granularity, bucketer));
+		}
+		return breakdown;
+	}
+
+	/**
+	 * Returns the name of the counter of the specified sorted dimensions, or
+	 * {@code null} if any of them is missing in the tags.
+	 */
+	private String getName(String[] dimensions, Map<String, String> tags) {
+		StringBuilder builder = new StringBuilder(baseName);
+		for (String dimension : dimensions) {
+			String value = tags.get(dimension);
+			if (value == null) return null;
+			builder.append(';').append(dimension).append('=').append(value);
+		}
+		return builder.toString();
+	}
+
+	private static void checkTag(String tag) {
+		if (tag == null || tag.isEmpty() || tag.indexOf(';') >= 0 || tag.indexOf('=') >= 0) {
+			throw new IllegalArgumentException("Tags can't be null or empty or contain ';' or '=': " + tag);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return baseName;
+	}
+
+}
@@ -0,0 +1,231 @@
+package com.sais.utils.counting;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeField;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Computes the start of the time buckets of every {@link TimeGranularity} in a
+ * specific time zone.
+ *
+ * The boundaries of the current minute, hour, day, month and year are cached
+ * in an immutable snapshot, so bucketing a time within the cached minute is
+ * just a range check, and bucketing a time within the cached hour is plain
+ * arithmetic. The snapshot is replaced at most once per minute as time moves
+ * forward, and older times, as well as times ahead of the clock, are computed
+ * with the chronology's primitive rounding, so no objects are allocated per
+ * call and an event dated in the future doesn't evict the current snapshot.
+ * Bucketing all the granularities of a time at once with
+ * {@link #getStarts(long, long[])} looks the snapshot up only once.
+ *
+ * @author andres
+ *
+ */
+final class TimeBucketer {
+
+	private static final long MINUTE = 60 * 1000L;
+
+	/** The tolerated advance of the bucketed times over the local clock */
+	private static final long CLOCK_TOLERANCE = MINUTE;
+
+	private final DateTimeZone zone;
+	private final DateTimeField minuteField;
+	private final DateTimeField hourField;
+	private final DateTimeField dayField;
+	private final DateTimeField monthField;
+	private final DateTimeField yearField;
+
+	/** The boundaries of the latest bucketed minute */
+	private volatile Boundaries current;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param zone the {@link DateTimeZone} defining the bucket boundaries
+	 */
+	TimeBucketer(DateTimeZone zone) {
+		if (zone == null) {
+			throw new IllegalArgumentException("A not null time zone is required");
+		}
+		Chronology chronology = ISOChronology.getInstance(zone);
+		this.zone = zone;
+		this.minuteField = chronology.minuteOfHour();
+		this.hourField = chronology.hourOfDay();
+		this.dayField = chronology.dayOfMonth();
+		this.monthField = chronology.monthOfYear();
+		this.yearField = chronology.year();
+		this.current = compute(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the time zone defining the bucket boundaries.
+	 *
+	 * @return the {@link DateTimeZone}
+	 */
+	DateTimeZone getZone() {
+		return zone;
+	}
+
+	/**
+	 * Returns the start of the bucket of the specified {@link TimeGranularity}
+	 * containing the specified time.
+	 *
+	 * @param granularity the {@link TimeGranularity}
+	 * @param millis the time in milliseconds
+	 * @return the start in milliseconds of the bucket containing the time
+	 */
+	long getStart(TimeGranularity granularity, long millis) {
+		Boundaries boundaries = lookup(millis);
+		switch (granularity) {
+		case ALL:
+			return 0;
+		case MINUTELY:
+			return boundaries == null ? minuteField.roundFloor(millis) : minuteStart(boundaries, millis);
+		case HOURLY:
+			return boundaries == null ? hourField.roundFloor(millis) : boundaries.hourStart;
+		case DAILY:
+			return boundaries == null ? dayField.roundFloor(millis) : boundaries.dayStart;
+		case MONTHLY:
+			return boundaries == null ? monthField.roundFloor(millis) : boundaries.monthStart;
+		case YEARLY:
+			return boundaries == null ? yearField.roundFloor(millis) : boundaries.yearStart;
+		default:
+			throw new RuntimeException();
+		}
+	}
+
+	/**
+	 * Fills the specified array with the start of the bucket containing the
+	 * specified time for each {@link TimeGranularity}, indexed by ordinal.
+	 *
+	 * @param millis the time in milliseconds
+	 * @param starts the array to be filled, with at least one position per
+	 *            {@link TimeGranularity}
+	 */
+	void getStarts(long millis, long[] starts) {
+		Boundaries boundaries = lookup(millis);
+		starts[TimeGranularity.ALL.ordinal()] = 0;
+		if (boundaries == null) {
+			starts[TimeGranularity.MINUTELY.ordinal()] = minuteField.roundFloor(millis);
+			starts[TimeGranularity.HOURLY.ordinal()] = hourField.roundFloor(millis);
+			starts[TimeGranularity.DAILY.ordinal()] = dayField.roundFloor(millis);
+			starts[TimeGranularity.MONTHLY.ordinal()] = monthField.roundFloor(millis);
+			starts[TimeGranularity.YEARLY.ordinal()] = yearField.roundFloor(millis);
+		} else {
+			starts[TimeGranularity.MINUTELY.ordinal()] = minuteStart(boundaries, millis);
+			starts[TimeGranularity.HOURLY.ordinal()] = boundaries.hourStart;
+			starts[TimeGranularity.DAILY.ordinal()] = boundaries.dayStart;
+			starts[TimeGranularity.MONTHLY.ordinal()] = boundaries.monthStart;
+			starts[TimeGranularity.YEARLY.ordinal()] = boundaries.yearStart;
+		}
+	}
+
+	/**
+	 * Returns the start of the bucket following the one of the specified
+	 * {@link TimeGranularity} starting at the specified time.
+	 *
+	 * @param granularity the {@link TimeGranularity}
+	 * @param start the start in milliseconds of a bucket
+	 * @return the start in milliseconds of the next bucket
+	 */
+	long getNext(TimeGranularity granularity, long start) {
+		switch (granularity) {
+		case ALL:
+			return Long.MAX_VALUE;
+		case MINUTELY:
+			return start + MINUTE;
+		case HOURLY:
+			return hourField.add(start, 1);
+		case DAILY:
+			return dayField.add(start, 1);
+		case MONTHLY:
+			return monthField.add(start, 1);
+		case YEARLY:
+			return yearField.add(start, 1);
+		default:
+			throw new RuntimeException();
+		}
+	}
+
+	/**
+	 * Returns the cached boundaries valid for the specified time, refreshing
+	 * the cache if the time is after the cached minute.
+	 *
+	 * @param millis the time in milliseconds
+	 * @return the {@link Boundaries} containing the time, or {@code null} if
+	 *         it is older than the cached hour or ahead of the clock
+	 */
+	private Boundaries lookup(long millis) {
+		Boundaries boundaries = current;
+		if (millis >= boundaries.hourStart && millis < boundaries.hourEnd) {
+			if (millis >= boundaries.minuteStart + MINUTE) {
+				// Move the cached minute forward within the same hour
+				boundaries = boundaries.withMinute(minuteStart(boundaries, millis));
+				current = boundaries;
+			}
+			return boundaries;
+		}
+		if (millis < boundaries.hourStart || millis > System.currentTimeMillis() + CLOCK_TOLERANCE) {
+			return null;
+		}
+		boundaries = compute(millis);
+		current = boundaries;
+		return boundaries;
+	}
+
+	/**
+	 * Returns the start of the minute containing the specified time, which
+	 * must be within the hour of the specified {@link Boundaries}.
+	 */
+	private static long minuteStart(Boundaries boundaries, long millis) {
+		if (millis >= boundaries.minuteStart && millis < boundaries.minuteStart + MINUTE) {
+			return boundaries.minuteStart;
+		}
+		return boundaries.hourStart + ((millis - boundaries.hourStart) / MINUTE) * MINUTE;
+	}
+
+	private Boundaries compute(long millis) {
+		long hourStart = hourField.roundFloor(millis);
+		return new Boundaries(minuteField.roundFloor(millis),
+		                      hourStart,
+		                      hourField.add(hourStart, 1),
+		                      dayField.roundFloor(millis),
+		                      monthField.roundFloor(millis),
+		                      yearField.roundFloor(millis));
+	}
+
+	/**
+	 * Immutable snapshot of the bucket boundaries of a specific minute.
+	 */
+	private static final class Boundaries {
+
+		private final long minuteStart;
+		private final long hourStart;
+		private final long hourEnd;
+		private final long dayStart;
+		private final long monthStart;
+		private final long yearStart;
+
+		private Boundaries(long minuteStart,
+		                   long hourStart,
+		                   long hourEnd,
+		                   long dayStart,
+		                   long monthStart,
+		                   long yearStart) {
+			this.minuteStart = minuteStart;
+			this.hourStart = hourStart;
+			this.hourEnd = hourEnd;
+			this.dayStart = dayStart;
+			this.monthStart = monthStart;
+			this.yearStart = yearStart;
+		}
+
+		private Boundaries withMinute(long minuteStart) {
+			return new Boundaries(minuteStart, hourStart, hourEnd, dayStart, monthStart, yearStart);
+		}
+	}
+
+}
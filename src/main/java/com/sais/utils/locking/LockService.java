@@ -82,4 +82,14 @@ public class LockService {
 		return new LockStack(map);
 	}
 
+	/**
+	 * Returns the Hazelcast instance backing the locks, so other distributed
+	 * structures can share its cluster.
+	 * 
+	 * @return the {@link HazelcastInstance}
+	 */
+	public HazelcastInstance getHazelcastInstance() {
+		return hazelcastInstance;
+	}
+
 }
@@ -3,6 +3,7 @@ package com.sais.utils.logging;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
@@ -14,13 +15,12 @@ import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 
-import com.datastax.driver.core.Cluster;
-import com.datastax.driver.core.Cluster.Builder;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.querybuilder.Batch;
-import com.datastax.driver.core.querybuilder.Insert;
-import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.sais.utils.cassandra.SessionRegistry;
+import com.sais.utils.cassandra.StatementCache;
 
 /**
  * Log4j {@link Appender} using Cassandra distributed database.
@@ -49,6 +49,7 @@ public class CassandraAppender extends AppenderSkeleton {
 
 	/* Inner attributes */
 	private Session session;
+	private StatementCache statementCache;
 	private String hostName;
 	private String hostAddress;
 	private final BlockingQueue<LoggingEvent> queue = new LinkedBlockingQueue<LoggingEvent>();
@@ -153,10 +154,8 @@ public class CassandraAppender extends AppenderSkeleton {
 	}
 
 	private void initialize() {
-		Builder builder = Cluster.builder();
-		builder.addContactPoints(hosts.split(","));
-		Cluster cluster = builder.build();
-		this.session = cluster.connect(keyspaceName);
+		this.session = SessionRegistry.acquire(hosts, keyspaceName);
+		this.statementCache = SessionRegistry.getStatementCache(session);
 		this.initialized = true;
 	}
 
@@ -180,8 +179,10 @@ public class CassandraAppender extends AppenderSkeleton {
 	 */
 	@Override
 	public void close() {
+		if (!initialized) return;
 		flush();
-		session.shutdown();
+		SessionRegistry.release(session);
+		initialized = false;
 	}
 
 	/***
@@ -197,68 +198,100 @@ public class CassandraAppender extends AppenderSkeleton {
 		List<LoggingEvent> events = new ArrayList<LoggingEvent>();
 		int numEvents = queue.drainTo(events);
 		if (numEvents <= 0) return;
-		Batch batch = QueryBuilder.batch();
+		List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>(numEvents);
+		Insert insert = new Insert();
 		for (LoggingEvent event : events) {
-			addToBatch(batch, event);
+			insert.clear();
+			build(insert, event);
+			futures.add(session.executeAsync(insert.bind()));
 		}
 		if (synchronicity) {
-			session.execute(batch);
-		} else {
-			session.executeAsync(batch);
+			for (ResultSetFuture future : futures) {
+				future.getUninterruptibly();
+			}
 		}
 	}
 
-	private void insert(Insert insert, String name, Object value) {
-		if (value != null) insert.value(name, value);
-	}
-
-	private void addToBatch(Batch batch, LoggingEvent event) {
-
-		// Build query
-		Insert insert = QueryBuilder.insertInto(columnFamilyName);
-		insert.setConsistencyLevel(consistencyLevel);
-		if (ttlSeconds != null) insert.using(QueryBuilder.ttl(ttlSeconds));
+	private void build(Insert insert, LoggingEvent event) {
 
 		// Append general info
-		insert(insert, "key", UUID.fromString(new com.eaio.uuid.UUID().toString()));
-		insert(insert, "logger_name", event.getLoggerName());
-		insert(insert, "log_level", event.getLevel().toString());
-		insert(insert, "log_timestamp", event.getTimeStamp());
-		insert(insert, "context_host_name", hostName);
-		insert(insert, "context_host_ip", hostAddress);
-		insert(insert, "context_app_start_time", LoggingEvent.getStartTime());
-		insert(insert, "context_ndc", event.getNDC());
-		insert(insert, "context_thread", event.getThreadName());
-		insert(insert, "context_file", event.getLocationInformation().getFileName());
-		insert(insert, "context_class", event.getLocationInformation().getClassName());
-		insert(insert, "context_method", event.getLocationInformation().getMethodName());
-		insert(insert, "context_line", event.getLocationInformation().getLineNumber());
+		insert.value("key", UUID.fromString(new com.eaio.uuid.UUID().toString()));
+		insert.value("logger_name", event.getLoggerName());
+		insert.value("log_level", event.getLevel().toString());
+		insert.value("log_timestamp", new Date(event.getTimeStamp()));
+		insert.value("context_host_name", hostName);
+		insert.value("context_host_ip", hostAddress);
+		insert.value("context_app_start_time", new Date(LoggingEvent.getStartTime()));
+		insert.value("context_ndc", event.getNDC());
+		insert.value("context_thread", event.getThreadName());
+		insert.value("context_file", event.getLocationInformation().getFileName());
+		insert.value("context_class", event.getLocationInformation().getClassName());
+		insert.value("context_method", event.getLocationInformation().getMethodName());
+		insert.value("context_line", event.getLocationInformation().getLineNumber());
 
 		// Append message info
 		Object message = event.getMessage();
 		if (message == null) {
-			insert(insert, "message_exists", false);
+			insert.value("message_exists", false);
 		} else {
-			insert(insert, "message_exists", true);
-			insert(insert, "message_class", message.getClass().getName());
-			insert(insert, "message_rendered", event.getRenderedMessage());
+			insert.value("message_exists", true);
+			insert.value("message_class", message.getClass().getName());
+			insert.value("message_rendered", event.getRenderedMessage());
 		}
 
 		// Append exception info
 		ThrowableInformation ti = event.getThrowableInformation();
 		Throwable throwable = ti == null ? null : ti.getThrowable();
 		if (throwable == null) {
-			insert(insert, "throwable_exists", false);
+			insert.value("throwable_exists", false);
 		} else {
 			String stacktrace = StringUtils.join(event.getThrowableStrRep(), '\n');
-			insert(insert, "throwable_exists", true);
-			insert(insert, "throwable_class", throwable.getClass().getName());
-			insert(insert, "throwable_message", throwable.getMessage());
-			insert(insert, "throwable_stacktrace", stacktrace);
+			insert.value("throwable_exists", true);
+			insert.value("throwable_class", throwable.getClass().getName());
+			insert.value("throwable_message", throwable.getMessage());
+			insert.value("throwable_stacktrace", stacktrace);
 		}
+	}
 
-		// Add to batch
-		batch.add(insert);
+	/**
+	 * Reusable builder of the insert statement of a single logging event.
+	 * 
+	 * Null values are skipped to avoid writing tombstones, so the statement
+	 * shape depends on the set of present columns. Each shape is prepared only
+	 * once through the appender's {@link StatementCache}.
+	 */
+	private class Insert {
+
+		private final StringBuilder columns = new StringBuilder(512);
+		private final StringBuilder markers = new StringBuilder(64);
+		private final List<Object> values = new ArrayList<Object>(24);
+
+		private void clear() {
+			columns.setLength(0);
+			markers.setLength(0);
+			values.clear();
+		}
+
+		private void value(String name, Object value) {
+			if (value == null) return;
+			if (!values.isEmpty()) {
+				columns.append(", ");
+				markers.append(", ");
+			}
+			columns.append(name);
+			markers.append('?');
+			values.add(value);
+		}
+
+		private BoundStatement bind() {
+			StringBuilder query = new StringBuilder(columns.length() + markers.length() + 64);
+			query.append("INSERT INTO ").append(columnFamilyName);
+			query.append(" (").append(columns).append(") VALUES (").append(markers).append(')');
+			if (ttlSeconds != null) query.append(" USING TTL ").append(ttlSeconds.intValue());
+			BoundStatement statement = statementCache.bind(query.toString(), values.toArray());
+			statement.setConsistencyLevel(consistencyLevel);
+			return statement;
+		}
 	}
 
 }
@@ -0,0 +1,122 @@
+package com.sais.utils.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests of {@link Mutator}, including a benchmark of the allocations of new
+ * and reset mutators.
+ *
+ * @author andres
+ *
+ */
+public class MutatorTest {
+
+	private static final Keyspace KEYSPACE = new Keyspace("ks");
+
+	/** The number of benchmarked mutators */
+	private static final int MUTATORS = 100000;
+
+	@Test
+	public void coalescesTheMutationsOfARow() {
+		Mutator mutator = new Mutator(KEYSPACE, null, ConsistencyLevel.ONE, NullPolicy.IGNORE);
+		mutator.insertColumn("t", "id", 1, "b", "x");
+		mutator.insertColumn("t", "id", 2, "a", "y");
+		mutator.insertColumn("t", "id", 1, "a", "z");
+		mutator.deleteColumn("t", "id", 2, "c");
+		assertEquals(Arrays.asList("UPDATE ks.t SET a = ?, b = ? WHERE id = ?",
+		                           "DELETE c FROM ks.t WHERE id = ?",
+		                           "UPDATE ks.t SET a = ? WHERE id = ?"), mutator.getStatements());
+		assertEquals(Arrays.<Object>asList("z", "x", 1, 2, "y", 2), mutator.getValues());
+		assertEquals(2, mutator.getPartitionBatches().size());
+	}
+
+	@Test
+	public void writesAfterARowDeleteDeleteTheOtherColumns() {
+		Keyspace keyspace = new Keyspace("ks") {
+			@Override
+			String[] getRegularColumns(String table) {
+				return new String[] { "a", "b", "c" };
+			}
+		};
+		Mutator mutator = new Mutator(keyspace, null, ConsistencyLevel.ONE, NullPolicy.IGNORE);
+		mutator.insertColumn("t", "id", 1, "a", "x");
+		mutator.deleteRow("t", "id", 1);
+		mutator.insertColumn("t", "id", 1, "b", "y");
+		mutator.deleteRow("t", "id", 2);
+		assertEquals(Arrays.asList("DELETE a, c FROM ks.t WHERE id = ?",
+		                           "UPDATE ks.t SET b = ? WHERE id = ?",
+		                           "DELETE FROM ks.t WHERE id = ?"), mutator.getStatements());
+		assertEquals(Arrays.<Object>asList(1, "y", 1, 2), mutator.getValues());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void writesAfterARowDeleteRequireTheColumns() {
+		Mutator mutator = new Mutator(KEYSPACE, null, ConsistencyLevel.ONE, NullPolicy.IGNORE);
+		mutator.deleteRow("t", "id", 1);
+		mutator.insertColumn("t", "id", 1, "a", "x");
+		mutator.getStatements();
+	}
+
+	@Test
+	public void resetMutatorsAllocateLessThanNewOnes() {
+		com.sun.management.ThreadMXBean threads = threadMXBean();
+		// Warm up, so the measured mutators run compiled
+		fill(null);
+		fill(new Mutator(KEYSPACE, null, ConsistencyLevel.ONE, NullPolicy.IGNORE));
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long sink = fill(null);
+		long newTime = System.nanoTime() - start;
+		long newBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+		before = threads.getThreadAllocatedBytes(thread);
+		start = System.nanoTime();
+		sink += fill(new Mutator(KEYSPACE, null, ConsistencyLevel.ONE, NullPolicy.IGNORE));
+		long resetTime = System.nanoTime() - start;
+		long resetBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+		System.out.println("Mutator of 10 rows x 5 columns: new " + newBytes / MUTATORS + " bytes and "
+		                   + newTime / MUTATORS + " ns, reset " + resetBytes / MUTATORS + " bytes and "
+		                   + resetTime / MUTATORS + " ns per mutator (" + sink + ")");
+		assertTrue("Reset " + resetBytes + " bytes, new " + newBytes + " bytes", resetBytes < newBytes / 2);
+	}
+
+	/**
+	 * Fills the benchmarked number of mutators with 10 rows of 5 columns each
+	 * and renders their partition batches, resetting the specified mutator or
+	 * creating new ones if it is {@code null}.
+	 */
+	private static long fill(Mutator reused) {
+		long sink = 0;
+		for (int m = 0; m < MUTATORS; m++) {
+			Mutator current = reused != null ? reused.reset() : new Mutator(KEYSPACE, null, ConsistencyLevel.ONE, NullPolicy.IGNORE);
+			for (int row = 0; row < 10; row++) {
+				Integer key = row;
+				current.insertColumn("t", "id", key, "a", "a");
+				current.insertColumn("t", "id", key, "b", "b");
+				current.insertColumn("t", "id", key, "c", "c");
+				current.insertColumn("t", "id", key, "d", "d");
+				current.insertColumn("t", "id", key, "e", "e");
+			}
+			sink += current.getPartitionBatches().size();
+		}
+		return sink;
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		return threads;
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.sais.utils.counting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.sais.utils.counting.Counter.TimeGranularity;
+
+/**
+ * Tests of {@link TimeBucketer}, including a benchmark of the allocations of
+ * its hot path.
+ *
+ * @author andres
+ *
+ */
+public class TimeBucketerTest {
+
+	private static final DateTimeZone ZONE = DateTimeZone.forID("Europe/Madrid");
+
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	/** The number of benchmarked calls */
+	private static final int CALLS = 1000000;
+
+	@Test
+	public void startsMatchJodaRounding() {
+		TimeBucketer bucketer = new TimeBucketer(ZONE);
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		long[] starts = new long[TimeGranularity.values().length];
+		for (int i = 0; i < 100000; i++) {
+			// Mostly around now, as the real traffic, but also years away
+			long millis = i % 10 == 0 ? now + (long) ((random.nextDouble() - 0.5) * 40 * 365 * 24 * HOUR)
+			                          : now + (long) ((random.nextDouble() - 0.8) * 3 * HOUR);
+			bucketer.getStarts(millis, starts);
+			DateTime date = new DateTime(millis, ZONE);
+			assertStart(date.minuteOfHour().roundFloorCopy(), TimeGranularity.MINUTELY, bucketer, millis, starts);
+			assertStart(date.hourOfDay().roundFloorCopy(), TimeGranularity.HOURLY, bucketer, millis, starts);
+			assertStart(date.dayOfMonth().roundFloorCopy(), TimeGranularity.DAILY, bucketer, millis, starts);
+			assertStart(date.monthOfYear().roundFloorCopy(), TimeGranularity.MONTHLY, bucketer, millis, starts);
+			assertStart(date.year().roundFloorCopy(), TimeGranularity.YEARLY, bucketer, millis, starts);
+			assertEquals(0, starts[TimeGranularity.ALL.ordinal()]);
+		}
+	}
+
+	private static void assertStart(DateTime expected,
+	                                TimeGranularity granularity,
+	                                TimeBucketer bucketer,
+	                                long millis,
+	                                long[] starts) {
+		assertEquals(granularity + " of " + millis, expected.getMillis(), starts[granularity.ordinal()]);
+		assertEquals(granularity + " of " + millis, expected.getMillis(), bucketer.getStart(granularity, millis));
+	}
+
+	@Test
+	public void futureEventsDontChangeCurrentStarts() {
+		TimeBucketer bucketer = new TimeBucketer(ZONE);
+		long now = System.currentTimeMillis();
+		long future = now + 30 * 24 * HOUR;
+		assertEquals(new DateTime(future, ZONE).hourOfDay().roundFloorCopy().getMillis(),
+		             bucketer.getStart(TimeGranularity.HOURLY, future));
+		assertEquals(new DateTime(now, ZONE).hourOfDay().roundFloorCopy().getMillis(),
+		             bucketer.getStart(TimeGranularity.HOURLY, now));
+	}
+
+	@Test
+	public void getStartsAllocatesNothing() {
+		com.sun.management.ThreadMXBean threads = threadMXBean();
+		TimeBucketer bucketer = new TimeBucketer(ZONE);
+		long[] starts = new long[TimeGranularity.values().length];
+		long sink = 0;
+		// Warm up, so the measured calls run compiled
+		for (int i = 0; i < CALLS; i++) {
+			bucketer.getStarts(System.currentTimeMillis() - (i & 1023), starts);
+			sink += starts[i % starts.length];
+		}
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			bucketer.getStarts(System.currentTimeMillis() - (i & 1023), starts);
+			sink += starts[i % starts.length];
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		System.out.println("TimeBucketer.getStarts: " + allocated + " bytes and " + elapsed / CALLS + " ns per "
+		                   + CALLS + " calls (" + sink + ")");
+		// A few snapshots may be replaced if a minute ends while measuring
+		assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		return threads;
+	}
+
+}